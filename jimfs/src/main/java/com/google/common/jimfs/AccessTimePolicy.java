@@ -0,0 +1,47 @@
+/*
+ * Copyright 2026 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.jimfs;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Policies for updating the last access time of files when they're read, like the {@code
+ * strictatime}, {@code relatime} and {@code noatime} mount options of Linux. The policy can be set
+ * in {@code Configuration.Builder} when creating a Jimfs file system instance.
+ *
+ * <p>The policy only applies to reads of file content and directory listings; setting the last
+ * access time explicitly, for example with {@link java.nio.file.Files#setAttribute}, always works.
+ */
+public enum AccessTimePolicy {
+
+  /** Updates the last access time of a file every time it's read. This is the default. */
+  STRICT,
+
+  /**
+   * Updates the last access time of a file when it's read only if the previous access time is
+   * earlier than or equal to the last modified time, or is more than a day old. This keeps the
+   * access time useful for telling whether a file has been read since it was last modified while
+   * avoiding an update on nearly every read.
+   */
+  RELATIME,
+
+  /** Never updates the last access time of a file when it's read. */
+  NOATIME;
+
+  /** How old the last access time must be for {@link #RELATIME} to update it regardless. */
+  static final long RELATIME_INTERVAL_MILLIS = TimeUnit.DAYS.toMillis(1);
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright 2026 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.jimfs;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.Closeable;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import org.checkerframework.checker.nullness.compatqual.NullableDecl;
+
+/**
+ * Shrinks the cache of unused blocks of a {@link HeapDisk} over time. The cache decays
+ * periodically, releasing blocks that went unused for a whole period, and is trimmed whenever the
+ * JVM's {@link java.lang.management.MemoryMXBean} reports that a memory pool exceeded its usage
+ * threshold or collection usage threshold.
+ *
+ * <p>All trimmers share a single daemon thread and a single memory listener, which exist only
+ * while at least one trimmer is running. While any are running, the collection usage threshold of
+ * each heap memory pool that doesn't already have one is set to the lowest trim threshold of the
+ * running trimmers; the thresholds are cleared again once the last trimmer stops.
+ *
+ * <p>The trimmer only weakly references the disk, so that a file system that is never closed can
+ * still be garbage collected; the trimmer stops itself once that happens.
+ */
+final class BlockCacheTrimmer implements Closeable {
+
+  /**
+   * Thread factory for the decay thread, which should be a daemon thread so as not to keep the VM
+   * running if the user doesn't close the file system.
+   */
+  private static final ThreadFactory THREAD_FACTORY =
+      new ThreadFactoryBuilder()
+          .setNameFormat("com.google.common.jimfs.BlockCacheTrimmer-thread-%d")
+          .setDaemon(true)
+          .build();
+
+  /** The listener for memory notifications, which trims the caches of all running trimmers. */
+  @VisibleForTesting
+  static final NotificationListener MEMORY_LISTENER =
+      new NotificationListener() {
+        @Override
+        public void handleNotification(Notification notification, Object handback) {
+          String type = notification.getType();
+          if (type.equals(MemoryNotificationInfo.MEMORY_THRESHOLD_EXCEEDED)
+              || type.equals(MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED)) {
+            for (BlockCacheTrimmer trimmer : running()) {
+              HeapDisk disk = trimmer.disk.get();
+              if (disk == null) {
+                trimmer.close();
+              } else {
+                disk.trim();
+              }
+            }
+          }
+        }
+      };
+
+  /** The trimmers that have been started and not yet closed. */
+  @GuardedBy("BlockCacheTrimmer.class")
+  private static final Set<BlockCacheTrimmer> running = new LinkedHashSet<>();
+
+  /** The executor running the decay tasks of all running trimmers, or null if there are none. */
+  @GuardedBy("BlockCacheTrimmer.class")
+  @NullableDecl
+  private static ScheduledThreadPoolExecutor decayService;
+
+  /**
+   * The collection usage thresholds set on memory pools by the trimmers, keyed by pool name. A
+   * threshold that has since been changed by something else is left alone.
+   */
+  @GuardedBy("BlockCacheTrimmer.class")
+  private static final Map<String, Long> thresholds = new HashMap<>();
+
+  private final WeakReference<HeapDisk> disk;
+  private final long decayNanos;
+  private final double trimThreshold;
+
+  @GuardedBy("BlockCacheTrimmer.class")
+  @NullableDecl
+  private ScheduledFuture<?> decayTask;
+
+  @GuardedBy("BlockCacheTrimmer.class")
+  private boolean closed;
+
+  /**
+   * Creates a new trimmer for the given disk, decaying its cache every {@code decayNanos} and
+   * setting the collection usage thresholds of heap memory pools at the given fraction of their
+   * maximum size, or leaving them alone if the fraction is 0.
+   */
+  BlockCacheTrimmer(HeapDisk disk, long decayNanos, double trimThreshold) {
+    checkArgument(decayNanos > 0, "decayNanos (%s) must be positive", decayNanos);
+    checkArgument(
+        trimThreshold >= 0 && trimThreshold <= 1,
+        "trimThreshold (%s) must be between 0 and 1",
+        trimThreshold);
+    this.disk = new WeakReference<>(disk);
+    this.decayNanos = decayNanos;
+    this.trimThreshold = trimThreshold;
+  }
+
+  /** Starts decaying the cache periodically and listening for memory notifications. */
+  void start() {
+    synchronized (BlockCacheTrimmer.class) {
+      if (closed || decayTask != null) {
+        return;
+      }
+
+      if (running.isEmpty()) {
+        decayService = new ScheduledThreadPoolExecutor(1, THREAD_FACTORY);
+        decayService.setRemoveOnCancelPolicy(true);
+        memoryEmitter().addNotificationListener(MEMORY_LISTENER, null, null);
+      }
+      running.add(this);
+      decayTask =
+          decayService.scheduleWithFixedDelay(
+              new Runnable() {
+                @Override
+                public void run() {
+                  HeapDisk disk = BlockCacheTrimmer.this.disk.get();
+                  if (disk == null) {
+                    close();
+                  } else {
+                    disk.decayCache();
+                  }
+                }
+              },
+              decayNanos,
+              decayNanos,
+              TimeUnit.NANOSECONDS);
+      updateThresholds();
+    }
+  }
+
+  /**
+   * Stops decaying the cache. If this was the last running trimmer, the decay thread is stopped,
+   * the memory listener is removed and the thresholds that were set are cleared.
+   */
+  @Override
+  public void close() {
+    synchronized (BlockCacheTrimmer.class) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      if (decayTask == null) {
+        return;
+      }
+
+      decayTask.cancel(false);
+      running.remove(this);
+      updateThresholds();
+      if (running.isEmpty()) {
+        decayService.shutdown();
+        decayService = null;
+        try {
+          memoryEmitter().removeNotificationListener(MEMORY_LISTENER);
+        } catch (ListenerNotFoundException ignore) {
+        }
+      }
+    }
+  }
+
+  /** Returns a snapshot of the running trimmers. */
+  private static ImmutableList<BlockCacheTrimmer> running() {
+    synchronized (BlockCacheTrimmer.class) {
+      return ImmutableList.copyOf(running);
+    }
+  }
+
+  /**
+   * Sets the collection usage threshold of each heap memory pool to the lowest trim threshold of
+   * the running trimmers, or clears the thresholds that were set if no running trimmer has one.
+   * Pools whose threshold was set by something else are left alone.
+   */
+  @GuardedBy("BlockCacheTrimmer.class")
+  private static void updateThresholds() {
+    double fraction = 0;
+    for (BlockCacheTrimmer trimmer : running) {
+      if (trimmer.trimThreshold > 0 && (fraction == 0 || trimmer.trimThreshold < fraction)) {
+        fraction = trimmer.trimThreshold;
+      }
+    }
+
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() != MemoryType.HEAP || !pool.isCollectionUsageThresholdSupported()) {
+        continue;
+      }
+
+      String name = pool.getName();
+      Long set = thresholds.get(name);
+      long current = pool.getCollectionUsageThreshold();
+      if (set == null ? current != 0 : current != set) {
+        // the threshold belongs to something else
+        thresholds.remove(name);
+        continue;
+      }
+
+      MemoryUsage usage = pool.getUsage();
+      long max = usage == null ? -1 : usage.getMax();
+      if (fraction == 0 || max <= 0) {
+        if (set != null) {
+          pool.setCollectionUsageThreshold(0);
+          thresholds.remove(name);
+        }
+      } else {
+        long threshold = (long) (max * fraction);
+        pool.setCollectionUsageThreshold(threshold);
+        thresholds.put(name, threshold);
+      }
+    }
+  }
+
+  private static NotificationEmitter memoryEmitter() {
+    return (NotificationEmitter) ManagementFactory.getMemoryMXBean();
+  }
+}
@@ -0,0 +1,478 @@
+/*
+ * Copyright 2026 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.jimfs;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.nio.file.StandardOpenOption.DELETE_ON_CLOSE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import org.checkerframework.checker.nullness.compatqual.NullableDecl;
+
+/**
+ * Compresses the blocks of files on a {@link HeapDisk} that haven't been accessed for a while.
+ *
+ * <p>Files register with the compressor when they are created. If a delay is configured, a sweep
+ * runs periodically, and any file that hasn't been read or written since at least the delay has
+ * its blocks compressed in place. Reads of a compressed block decompress it into a bounded LRU
+ * cache of hot blocks, leaving the file itself unchanged; writes replace the compressed block in
+ * the file with a newly allocated, decompressed block.
+ *
+ * <p>If a spill directory is configured, compressed blocks are written to a scratch file in that
+ * directory rather than kept in memory, along with blocks that don't compress well, which are
+ * written as is. The scratch file is divided into block-sized slots that are reused as spilled
+ * blocks are discarded, and is deleted when the compressor is closed. When spilling, the disk also
+ * {@linkplain #evict evicts} the blocks of the least recently used files to make room when it's
+ * full, which makes the size of the disk a ceiling on the memory used for blocks rather than on
+ * the total size of the files.
+ *
+ * <p>Compressed blocks don't count against the size of the disk; the space for the blocks they
+ * replaced is freed when they're compressed. As such, writing to a compressed block can fail if
+ * the disk is full.
+ */
+final class BlockCompressor implements Closeable {
+
+  /**
+   * Thread factory for sweeping threads, which should be daemon threads so as not to keep the VM
+   * running if the user doesn't close the file system.
+   */
+  private static final ThreadFactory THREAD_FACTORY =
+      new ThreadFactoryBuilder()
+          .setNameFormat("com.google.common.jimfs.BlockCompressor-thread-%d")
+          .setDaemon(true)
+          .build();
+
+  private static final Logger LOGGER = Logger.getLogger(BlockCompressor.class.getName());
+
+  private final BlockStorage storage;
+  private final int blockSize;
+  private final long delayNanos;
+  private final Ticker ticker;
+
+  /** Directory to create the spill file in, or null if blocks aren't spilled. */
+  @NullableDecl private final Path spillDirectory;
+
+  /** Files that may be compressed. */
+  private final Set<RegularFile> files = Sets.newConcurrentHashSet();
+
+  /** Decompressed copies of recently read compressed blocks, in access order. */
+  @GuardedBy("hotBlocks")
+  private final Map<CompressedBlock, Object> hotBlocks;
+
+  private final AtomicInteger compressedBlockCount = new AtomicInteger();
+  private final AtomicLong compressedSize = new AtomicLong();
+  private final AtomicInteger spilledBlockCount = new AtomicInteger();
+
+  /** The spill file, opened when the first block is spilled. */
+  @NullableDecl private volatile FileChannel spillFile;
+
+  /** Whether or not opening the spill file failed, in which case blocks are kept in memory. */
+  @GuardedBy("this")
+  private boolean spillFailed;
+
+  /** Slots in the spill file that have been used and freed, for reuse. */
+  @GuardedBy("this")
+  private int[] freeSlots = new int[16];
+
+  @GuardedBy("this")
+  private int freeSlotCount;
+
+  /** Number of slots in the spill file. */
+  @GuardedBy("this")
+  private int slotCount;
+
+  /** Buffers and deflater used for compression; only used by the sweeping thread. */
+  @GuardedBy("this")
+  private final byte[] uncompressed;
+
+  @GuardedBy("this")
+  private final byte[] compressed;
+
+  @GuardedBy("this")
+  private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+
+  @GuardedBy("this")
+  private ScheduledExecutorService sweepingService;
+
+  @GuardedBy("this")
+  private boolean closed;
+
+  /**
+   * Creates a new compressor for blocks of the given size and storage that compresses files that
+   * haven't been accessed for {@code delayNanos} (or only evicts files, if it's -1), keeping up to
+   * {@code maxHotBlockCount} decompressed blocks cached for reading. Blocks are spilled to a file
+   * in {@code spillDirectory} if it isn't null.
+   */
+  BlockCompressor(
+      BlockStorage storage,
+      int blockSize,
+      long delayNanos,
+      final int maxHotBlockCount,
+      @NullableDecl Path spillDirectory,
+      Ticker ticker) {
+    checkArgument(delayNanos >= -1, "delayNanos (%s) may not be negative", delayNanos);
+    checkArgument(
+        maxHotBlockCount >= 0, "maxHotBlockCount (%s) may not be negative", maxHotBlockCount);
+    this.storage = checkNotNull(storage);
+    this.blockSize = blockSize;
+    this.delayNanos = delayNanos;
+    this.spillDirectory = spillDirectory;
+    this.ticker = checkNotNull(ticker);
+    this.uncompressed = new byte[blockSize];
+    this.compressed = new byte[blockSize];
+    this.hotBlocks =
+        new LinkedHashMap<CompressedBlock, Object>(16, 0.75f, true) {
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<CompressedBlock, Object> eldest) {
+            return size() > maxHotBlockCount;
+          }
+        };
+  }
+
+  /**
+   * Starts sweeping for cold files periodically on a background thread, if a delay for files to go
+   * cold was configured.
+   */
+  synchronized void start() {
+    if (sweepingService == null && delayNanos != -1) {
+      long interval = Math.max(delayNanos / 2, TimeUnit.MILLISECONDS.toNanos(1));
+      sweepingService = Executors.newSingleThreadScheduledExecutor(THREAD_FACTORY);
+      sweepingService.scheduleWithFixedDelay(
+          new Runnable() {
+            @Override
+            public void run() {
+              sweep();
+            }
+          },
+          interval,
+          interval,
+          TimeUnit.NANOSECONDS);
+    }
+  }
+
+  /** Stops sweeping for cold files and deletes the spill file, if any. */
+  @Override
+  public synchronized void close() throws IOException {
+    if (!closed) {
+      closed = true;
+      if (sweepingService != null) {
+        sweepingService.shutdown();
+      }
+      deflater.end();
+      if (spillFile != null) {
+        spillFile.close();
+      }
+    }
+  }
+
+  /** Returns whether or not this compressor spills blocks to a file. */
+  boolean spills() {
+    return spillDirectory != null;
+  }
+
+  /** Registers the given file as one whose blocks may be compressed. */
+  void register(RegularFile file) {
+    files.add(file);
+  }
+
+  /** Unregisters the given file, which should have no more blocks. */
+  void unregister(RegularFile file) {
+    files.remove(file);
+  }
+
+  /** Compresses the blocks of any files that have gone cold. */
+  @VisibleForTesting
+  void sweep() {
+    long now = ticker.read();
+    for (RegularFile file : files) {
+      file.compressIfCold(now, delayNanos, this);
+    }
+  }
+
+  /**
+   * Compresses the blocks of the least recently used files, regardless of how long ago they were
+   * used, until at least {@code count} blocks have been freed or there are no more files whose
+   * blocks can be compressed. Returns the number of blocks freed.
+   */
+  int evict(int count) {
+    long now = ticker.read();
+    List<Candidate> candidates = new ArrayList<>();
+    for (RegularFile file : files) {
+      candidates.add(new Candidate(file, file.lastAccessed(now)));
+    }
+    Collections.sort(candidates);
+
+    int freed = 0;
+    for (int i = 0; i < candidates.size() && freed < count; i++) {
+      freed += candidates.get(i).file.compress(this);
+    }
+    return freed;
+  }
+
+  /**
+   * Returns a compressed copy of the given block, or null if compressing the block wouldn't save at
+   * least a quarter of its size. If spilling, the copy is written to the spill file instead, and
+   * the block is spilled uncompressed if it doesn't compress well; null is only returned if writing
+   * to the spill file fails. Only called while holding the write lock of the file containing the
+   * block.
+   */
+  @NullableDecl
+  synchronized CompressedBlock compress(Object block) {
+    if (closed) {
+      return null;
+    }
+
+    storage.get(block, 0, uncompressed, 0, blockSize);
+    deflater.reset();
+    deflater.setInput(uncompressed, 0, blockSize);
+    deflater.finish();
+    int maxLength = blockSize - blockSize / 4;
+    int length = deflater.deflate(compressed, 0, maxLength);
+    boolean deflated = deflater.finished();
+
+    if (spillDirectory != null && !spillFailed) {
+      return deflated ? spill(compressed, length, true) : spill(uncompressed, blockSize, false);
+    } else if (!deflated) {
+      return null;
+    }
+
+    byte[] data = new byte[length];
+    System.arraycopy(compressed, 0, data, 0, length);
+    compressedBlockCount.incrementAndGet();
+    compressedSize.addAndGet(length);
+    return new CompressedBlock(data, length, true, -1);
+  }
+
+  /**
+   * Writes the first {@code length} bytes of the given array to a free slot in the spill file,
+   * returning the spilled block, or null if the write fails.
+   */
+  @GuardedBy("this")
+  @NullableDecl
+  private CompressedBlock spill(byte[] bytes, int length, boolean deflated) {
+    FileChannel file = spillFile;
+    if (file == null) {
+      try {
+        Path path = Files.createTempFile(spillDirectory, "jimfs-", ".spill");
+        file = FileChannel.open(path, READ, WRITE, DELETE_ON_CLOSE);
+      } catch (IOException | RuntimeException e) {
+        LOGGER.log(Level.WARNING, "failed to create spill file; keeping blocks in memory", e);
+        spillFailed = true;
+        return null;
+      }
+      spillFile = file;
+    }
+
+    int slot = freeSlotCount > 0 ? freeSlots[--freeSlotCount] : slotCount++;
+    try {
+      ByteBuffer buf = ByteBuffer.wrap(bytes, 0, length);
+      long position = slot * (long) blockSize;
+      while (buf.hasRemaining()) {
+        position += file.write(buf, position);
+      }
+    } catch (IOException e) {
+      freeSlot(slot);
+      return null;
+    }
+
+    spilledBlockCount.incrementAndGet();
+    return new CompressedBlock(null, length, deflated, slot);
+  }
+
+  @GuardedBy("this")
+  private void freeSlot(int slot) {
+    if (freeSlotCount == freeSlots.length) {
+      freeSlots = Arrays.copyOf(freeSlots, freeSlots.length * 2);
+    }
+    freeSlots[freeSlotCount++] = slot;
+  }
+
+  /**
+   * Returns a block containing the decompressed content of the given compressed block, which must
+   * not be written to.
+   *
+   * @throws IOException if the block was spilled and reading it from the spill file fails
+   */
+  Object decompressed(CompressedBlock block) throws IOException {
+    synchronized (hotBlocks) {
+      Object hot = hotBlocks.get(block);
+      if (hot != null) {
+        return hot;
+      }
+    }
+
+    // blocks evicted from the cache are never reused, so a reader can keep using the block even if
+    // it's evicted while the reader is still reading from it
+    Object hot = storage.allocate(blockSize);
+    decompress(block, hot);
+    synchronized (hotBlocks) {
+      hotBlocks.put(block, hot);
+    }
+    return hot;
+  }
+
+  /**
+   * Decompresses the content of the given compressed block into the given block.
+   *
+   * @throws IOException if the block was spilled and reading it from the spill file fails
+   */
+  void decompress(CompressedBlock block, Object target) throws IOException {
+    byte[] data = block.data != null ? block.data : readSpilled(block);
+    if (!block.deflated) {
+      storage.put(target, 0, data, 0, blockSize);
+      return;
+    }
+
+    Inflater inflater = new Inflater();
+    try {
+      inflater.setInput(data, 0, block.length);
+      if (target instanceof byte[]) {
+        inflater.inflate((byte[]) target, 0, blockSize);
+      } else {
+        byte[] bytes = new byte[blockSize];
+        inflater.inflate(bytes, 0, blockSize);
+        storage.put(target, 0, bytes, 0, blockSize);
+      }
+    } catch (DataFormatException e) {
+      throw new AssertionError(e); // the data was created by our own deflater
+    } finally {
+      inflater.end();
+    }
+  }
+
+  /** Reads the data of the given spilled block from the spill file. */
+  private byte[] readSpilled(CompressedBlock block) throws IOException {
+    byte[] data = new byte[block.length];
+    ByteBuffer buf = ByteBuffer.wrap(data);
+    long position = block.slot * (long) blockSize;
+    while (buf.hasRemaining()) {
+      int read = spillFile.read(buf, position);
+      if (read == -1) {
+        throw new EOFException("spill file truncated");
+      }
+      position += read;
+    }
+    return data;
+  }
+
+  /** Discards the given compressed block, which is no longer referenced by any file. */
+  void discard(CompressedBlock block) {
+    if (block.data == null) {
+      spilledBlockCount.decrementAndGet();
+      synchronized (this) {
+        freeSlot(block.slot);
+      }
+    } else {
+      compressedBlockCount.decrementAndGet();
+      compressedSize.addAndGet(-block.length);
+    }
+    synchronized (hotBlocks) {
+      hotBlocks.remove(block);
+    }
+  }
+
+  /** Returns the number of compressed blocks currently stored. */
+  int compressedBlockCount() {
+    return compressedBlockCount.get();
+  }
+
+  /** Returns the total size in bytes of the compressed blocks currently stored in memory. */
+  long compressedSize() {
+    return compressedSize.get();
+  }
+
+  /** Returns the number of blocks currently spilled to the spill file. */
+  int spilledBlockCount() {
+    return spilledBlockCount.get();
+  }
+
+  /** Returns the current size in bytes of the spill file. */
+  synchronized long spillFileSize() {
+    return slotCount * (long) blockSize;
+  }
+
+  /** A candidate file for eviction, ordered from least to most recently used. */
+  private static final class Candidate implements Comparable<Candidate> {
+
+    private final RegularFile file;
+    private final long lastAccessed;
+
+    Candidate(RegularFile file, long lastAccessed) {
+      this.file = file;
+      this.lastAccessed = lastAccessed;
+    }
+
+    @Override
+    public int compareTo(Candidate other) {
+      return Long.compare(lastAccessed, other.lastAccessed);
+    }
+  }
+
+  /**
+   * An immutable compressed block, stored in a file's block list in place of the block it
+   * replaced. Its data is either held in memory or spilled to the spill file, and is stored as is
+   * rather than deflated if it was spilled without compressing well. Compared by identity.
+   */
+  static final class CompressedBlock {
+
+    /** The block's data, or null if it was spilled. */
+    @NullableDecl private final byte[] data;
+
+    private final int length;
+    private final boolean deflated;
+
+    /** The block's slot in the spill file, or -1 if it wasn't spilled. */
+    private final int slot;
+
+    private CompressedBlock(@NullableDecl byte[] data, int length, boolean deflated, int slot) {
+      this.data = data;
+      this.length = length;
+      this.deflated = deflated;
+      this.slot = slot;
+    }
+  }
+}
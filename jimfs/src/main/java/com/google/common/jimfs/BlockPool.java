@@ -0,0 +1,122 @@
+/*
+ * Copyright 2026 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.jimfs;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.base.MoreObjects;
+import java.util.ArrayDeque;
+import org.checkerframework.checker.nullness.compatqual.NullableDecl;
+
+/**
+ * A bounded pool of unused blocks that can be shared by any number of file systems with the same
+ * block size and {@link BlockStorage}. A file system using a pool (see {@link
+ * Configuration.Builder#setBlockPool(BlockPool)}) takes blocks from the pool before creating new
+ * ones, gives blocks it can't cache itself to the pool and returns all of its blocks to the pool
+ * when it's closed. This way, file systems that are created and closed in quick succession, such
+ * as those created by tests, reuse the same blocks rather than each allocating its own.
+ *
+ * <p>A pool is safe for use by multiple threads. It holds at most its maximum size in blocks;
+ * blocks given to a full pool are left for garbage collection.
+ *
+ * <p>Blocks taken from a pool may contain content left over from a file in another file system.
+ * That content is never visible to files, which always overwrite or zero blocks before reading
+ * them, but it does stay in memory until then.
+ */
+public final class BlockPool {
+
+  /**
+   * Creates a new pool of heap blocks of the {@linkplain Configuration.Builder#DEFAULT_BLOCK_SIZE
+   * default block size}, holding at most {@code maxSize} bytes of blocks.
+   */
+  public static BlockPool create(long maxSize) {
+    return create(Configuration.Builder.DEFAULT_BLOCK_SIZE, BlockStorage.HEAP, maxSize);
+  }
+
+  /**
+   * Creates a new pool of blocks of the given size and storage, holding at most {@code maxSize}
+   * bytes of blocks. The actual maximum size will be the nearest multiple of the block size that
+   * is less than or equal to the given size.
+   */
+  public static BlockPool create(int blockSize, BlockStorage storage, long maxSize) {
+    checkArgument(blockSize > 0, "blockSize (%s) must be positive", blockSize);
+    checkArgument(maxSize >= 0, "maxSize (%s) may not be negative", maxSize);
+    int maxBlockCount = (int) Math.min(maxSize / blockSize, Integer.MAX_VALUE);
+    return new BlockPool(blockSize, checkNotNull(storage), maxBlockCount);
+  }
+
+  private final int blockSize;
+  private final BlockStorage storage;
+  private final int maxBlockCount;
+
+  @GuardedBy("this")
+  private final ArrayDeque<Object> blocks = new ArrayDeque<>();
+
+  private BlockPool(int blockSize, BlockStorage storage, int maxBlockCount) {
+    this.blockSize = blockSize;
+    this.storage = storage;
+    this.maxBlockCount = maxBlockCount;
+  }
+
+  /** Returns the size of the blocks in this pool. */
+  public int blockSize() {
+    return blockSize;
+  }
+
+  /** Returns the storage of the blocks in this pool. */
+  public BlockStorage blockStorage() {
+    return storage;
+  }
+
+  /** Returns the maximum total size in bytes of the blocks this pool holds. */
+  public long maxSize() {
+    return maxBlockCount * (long) blockSize;
+  }
+
+  /** Returns the total size in bytes of the blocks this pool currently holds. */
+  public synchronized long size() {
+    return blocks.size() * (long) blockSize;
+  }
+
+  /** Removes all blocks from this pool, leaving them for garbage collection. */
+  public synchronized void clear() {
+    blocks.clear();
+  }
+
+  /** Removes and returns a block from this pool, or returns null if the pool is empty. */
+  @NullableDecl
+  synchronized Object poll() {
+    return blocks.pollLast();
+  }
+
+  /** Adds the given unused block to this pool if the pool isn't full. */
+  synchronized void offer(Object block) {
+    if (blocks.size() < maxBlockCount) {
+      blocks.addLast(block);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return MoreObjects.toStringHelper(this)
+        .add("blockSize", blockSize)
+        .add("blockStorage", storage)
+        .add("maxSize", maxSize())
+        .toString();
+  }
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright 2026 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.jimfs;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Storage backends for the blocks that hold the content of regular files. The storage can be set
+ * in {@code Configuration.Builder} when creating a Jimfs file system instance.
+ *
+ * <p>Regardless of the storage used, blocks are allocated and cached by the file system in the
+ * same way, and the maximum size and cache size settings of the configuration apply equally.
+ */
+public enum BlockStorage {
+
+  /**
+   * Stores each block in a {@code byte[]} on the Java heap. This is the default, and is generally
+   * the fastest option for small to medium sized file systems.
+   */
+  HEAP {
+    @Override
+    Object allocate(int size) {
+      return new byte[size];
+    }
+
+    @Override
+    int size(Object block) {
+      return ((byte[]) block).length;
+    }
+
+    @Override
+    byte get(Object block, int offset) {
+      return ((byte[]) block)[offset];
+    }
+
+    @Override
+    void put(Object block, int offset, byte b) {
+      ((byte[]) block)[offset] = b;
+    }
+
+    @Override
+    void zero(Object block, int offset, int len) {
+      Util.zero((byte[]) block, offset, len);
+    }
+
+    @Override
+    void get(Object block, int offset, byte[] b, int off, int len) {
+      System.arraycopy((byte[]) block, offset, b, off, len);
+    }
+
+    @Override
+    void get(Object block, int offset, ByteBuffer buf, int len) {
+      buf.put((byte[]) block, offset, len);
+    }
+
+    @Override
+    void put(Object block, int offset, byte[] b, int off, int len) {
+      System.arraycopy(b, off, (byte[]) block, offset, len);
+    }
+
+    @Override
+    void put(Object block, int offset, ByteBuffer buf, int len) {
+      buf.get((byte[]) block, offset, len);
+    }
+
+    @Override
+    void copy(Object from, Object to) {
+      byte[] fromBlock = (byte[]) from;
+      System.arraycopy(fromBlock, 0, (byte[]) to, 0, fromBlock.length);
+    }
+
+    @Override
+    ByteBuffer asByteBuffer(Object block, int offset, int len) {
+      return ByteBuffer.wrap((byte[]) block, offset, len);
+    }
+
+    @Override
+    int contentHashCode(Object block) {
+      return Arrays.hashCode((byte[]) block);
+    }
+
+    @Override
+    boolean contentEquals(Object a, Object b) {
+      return Arrays.equals((byte[]) a, (byte[]) b);
+    }
+  },
+
+  /**
+   * Stores each block in a {@linkplain ByteBuffer#allocateDirect(int) direct} {@code ByteBuffer},
+   * outside of the Java heap. This keeps the content of large file systems from being scanned and
+   * copied by the garbage collector, at the cost of somewhat slower access to individual blocks.
+   *
+   * <p>Memory used by this storage counts against the JVM's limit on direct memory (see the {@code
+   * -XX:MaxDirectMemorySize} option) rather than against the heap. Blocks are carved out of slabs
+   * of up to 4 MB rather than allocated individually, which makes allocating them much cheaper and
+   * leaves the garbage collector far fewer direct buffers to clean up. As with heap storage, memory
+   * used for blocks that are not cached for reuse is only released when the blocks are garbage
+   * collected, and a slab is only released once all of its blocks are.
+   */
+  DIRECT {
+    @Override
+    Object allocate(int size) {
+      return ByteBuffer.allocateDirect(size);
+    }
+
+    @Override
+    boolean usesSlabs() {
+      return true;
+    }
+
+    @Override
+    Object[] allocateSlab(int size, int count) {
+      ByteBuffer slab = ByteBuffer.allocateDirect(size * count);
+      Object[] blocks = new Object[count];
+      for (int i = 0; i < count; i++) {
+        slab.limit((i + 1) * size);
+        slab.position(i * size);
+        blocks[i] = slab.slice();
+      }
+      return blocks;
+    }
+
+    @Override
+    int size(Object block) {
+      return ((ByteBuffer) block).capacity();
+    }
+
+    @Override
+    byte get(Object block, int offset) {
+      return ((ByteBuffer) block).get(offset);
+    }
+
+    @Override
+    void put(Object block, int offset, byte b) {
+      ((ByteBuffer) block).put(offset, b);
+    }
+
+    @Override
+    void zero(Object block, int offset, int len) {
+      Util.zero(asByteBuffer(block, offset, len));
+    }
+
+    @Override
+    void get(Object block, int offset, byte[] b, int off, int len) {
+      asByteBuffer(block, offset, len).get(b, off, len);
+    }
+
+    @Override
+    void get(Object block, int offset, ByteBuffer buf, int len) {
+      buf.put(asByteBuffer(block, offset, len));
+    }
+
+    @Override
+    void put(Object block, int offset, byte[] b, int off, int len) {
+      asByteBuffer(block, offset, len).put(b, off, len);
+    }
+
+    @Override
+    void put(Object block, int offset, ByteBuffer buf, int len) {
+      int limit = buf.limit();
+      buf.limit(buf.position() + len);
+      asByteBuffer(block, offset, len).put(buf);
+      buf.limit(limit);
+    }
+
+    @Override
+    void copy(Object from, Object to) {
+      ByteBuffer fromBlock = ((ByteBuffer) from).duplicate();
+      fromBlock.clear();
+      ByteBuffer toBlock = ((ByteBuffer) to).duplicate();
+      toBlock.clear();
+      toBlock.put(fromBlock);
+    }
+
+    @Override
+    ByteBuffer asByteBuffer(Object block, int offset, int len) {
+      // duplicate so that concurrent readers never share position/limit state
+      ByteBuffer buf = ((ByteBuffer) block).duplicate();
+      buf.limit(offset + len);
+      buf.position(offset);
+      return buf;
+    }
+
+    @Override
+    int contentHashCode(Object block) {
+      return asByteBuffer(block, 0, size(block)).hashCode();
+    }
+
+    @Override
+    boolean contentEquals(Object a, Object b) {
+      return asByteBuffer(a, 0, size(a)).equals(asByteBuffer(b, 0, size(b)));
+    }
+  };
+
+  /** Creates a new block of the given size. */
+  abstract Object allocate(int size);
+
+  /**
+   * Returns whether or not new blocks should be carved out of larger slabs created with {@link
+   * #allocateSlab(int, int)} rather than being allocated individually.
+   */
+  boolean usesSlabs() {
+    return false;
+  }
+
+  /**
+   * Creates {@code count} new blocks of the given size that share a single underlying allocation.
+   * By default, the blocks are allocated individually.
+   */
+  Object[] allocateSlab(int size, int count) {
+    Object[] blocks = new Object[count];
+    for (int i = 0; i < count; i++) {
+      blocks[i] = allocate(size);
+    }
+    return blocks;
+  }
+
+  /** Returns the size of the given block. */
+  abstract int size(Object block);
+
+  /** Returns the byte at the given offset in the given block. */
+  abstract byte get(Object block, int offset);
+
+  /** Sets the byte at the given offset in the given block. */
+  abstract void put(Object block, int offset, byte b);
+
+  /** Zeroes len bytes in the given block starting at the given offset. */
+  abstract void zero(Object block, int offset, int len);
+
+  /**
+   * Reads len bytes starting at the given offset in the given block into the given slice of the
+   * given byte array.
+   */
+  abstract void get(Object block, int offset, byte[] b, int off, int len);
+
+  /** Reads len bytes starting at the given offset in the given block into the given byte buffer. */
+  abstract void get(Object block, int offset, ByteBuffer buf, int len);
+
+  /** Puts the given slice of the given array at the given offset in the given block. */
+  abstract void put(Object block, int offset, byte[] b, int off, int len);
+
+  /** Puts the next len bytes of the given byte buffer at the given offset in the given block. */
+  abstract void put(Object block, int offset, ByteBuffer buf, int len);
+
+  /** Copies the full content of block {@code from} to block {@code to}, which is the same size. */
+  abstract void copy(Object from, Object to);
+
+  /**
+   * Returns a new byte buffer view of len bytes of the given block starting at the given offset.
+   * Changes to the content of the buffer are reflected in the block.
+   */
+  abstract ByteBuffer asByteBuffer(Object block, int offset, int len);
+
+  /** Returns a hash code for the full content of the given block. */
+  abstract int contentHashCode(Object block);
+
+  /** Returns whether or not the given blocks have the same size and content. */
+  abstract boolean contentEquals(Object a, Object b);
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2026 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.jimfs;
+
+import static com.google.common.jimfs.Util.clear;
+import static com.google.common.jimfs.Util.nextPowerOf2;
+
+import java.util.Arrays;
+import org.checkerframework.checker.nullness.compatqual.NullableDecl;
+
+/**
+ * The block list of a {@link RegularFile}: a two-level table of slots, each holding a block, a
+ * hole (null) or a compressed block.
+ *
+ * <p>Slots are stored in fixed-size chunks, so growing the table only ever allocates new chunks and
+ * copies the small array of chunk references, never the slots themselves. The exception is a table
+ * with a single chunk, which grows geometrically up to the chunk size so that small files don't pay
+ * for a whole chunk. When the table shrinks, chunks that are no longer needed are released.
+ */
+final class BlockTable {
+
+  private static final int CHUNK_SHIFT = 10;
+
+  /** Number of slots in each chunk, other than a table's only chunk. */
+  static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+
+  private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+  private static final Object[][] NO_CHUNKS = {};
+
+  /**
+   * The chunks of the table. Every chunk is {@link #CHUNK_SIZE} slots long, except that the first
+   * may be shorter if it's the only chunk. Chunks at and after index {@code capacity / CHUNK_SIZE}
+   * may be null.
+   */
+  private Object[][] chunks = NO_CHUNKS;
+
+  /** The number of slots in the table, which is the total length of its non-null chunks. */
+  private int capacity;
+
+  /** Creates a new table with no slots. */
+  BlockTable() {}
+
+  /** Creates a new table with at least the given number of slots. */
+  BlockTable(int initialCapacity) {
+    ensureCapacity(initialCapacity);
+  }
+
+  /** Returns the number of slots in this table. */
+  int capacity() {
+    return capacity;
+  }
+
+  /** Returns the content of the slot at the given index. */
+  @NullableDecl
+  Object get(int index) {
+    return chunks[index >>> CHUNK_SHIFT][index & CHUNK_MASK];
+  }
+
+  /** Sets the content of the slot at the given index. */
+  void set(int index, @NullableDecl Object block) {
+    chunks[index >>> CHUNK_SHIFT][index & CHUNK_MASK] = block;
+  }
+
+  /** Ensures that this table has at least the given number of slots. */
+  void ensureCapacity(int minCapacity) {
+    if (minCapacity <= capacity) {
+      return;
+    }
+
+    if (minCapacity <= CHUNK_SIZE) {
+      int length = Math.min(nextPowerOf2(minCapacity), CHUNK_SIZE);
+      if (chunks.length == 0) {
+        chunks = new Object[][] {new Object[length]};
+      } else {
+        chunks[0] = Arrays.copyOf(chunks[0], length);
+      }
+      capacity = length;
+      return;
+    }
+
+    int chunkCount = (int) (((long) minCapacity + CHUNK_MASK) >>> CHUNK_SHIFT);
+    if (chunkCount > chunks.length) {
+      chunks = Arrays.copyOf(chunks, Math.max(chunkCount, chunks.length * 2));
+    }
+    if (chunks[0] == null) {
+      chunks[0] = new Object[CHUNK_SIZE];
+    } else if (chunks[0].length < CHUNK_SIZE) {
+      chunks[0] = Arrays.copyOf(chunks[0], CHUNK_SIZE);
+    }
+    for (int i = 1; i < chunkCount; i++) {
+      if (chunks[i] == null) {
+        chunks[i] = new Object[CHUNK_SIZE];
+      }
+    }
+    capacity = chunkCount << CHUNK_SHIFT;
+  }
+
+  /**
+   * Clears the slots from index {@code count} to index {@code end}, which must be the last
+   * non-empty slots in this table, releasing chunks that are no longer needed. One spare chunk is
+   * kept past the last one in use so that a table that repeatedly grows and shrinks across a chunk
+   * boundary doesn't keep reallocating the same chunk.
+   */
+  void truncate(int count, int end) {
+    int keep = capacity;
+    if (capacity > CHUNK_SIZE) {
+      int chunksInUse = Math.max(1, (count + CHUNK_MASK) >>> CHUNK_SHIFT);
+      keep = Math.min((chunksInUse + 1) << CHUNK_SHIFT, capacity);
+      for (int i = keep >>> CHUNK_SHIFT; i < chunks.length; i++) {
+        chunks[i] = null;
+      }
+      capacity = keep;
+    }
+
+    int index = count;
+    int limit = Math.min(end, keep);
+    while (index < limit) {
+      Object[] chunk = chunks[index >>> CHUNK_SHIFT];
+      int off = index & CHUNK_MASK;
+      int len = Math.min(chunk.length - off, limit - index);
+      clear(chunk, off, len);
+      index += len;
+    }
+  }
+
+  /**
+   * Copies {@code count} slots starting at index {@code srcIndex} in table {@code src} to table
+   * {@code dest} starting at index {@code destIndex}. The destination table must already have
+   * enough slots.
+   */
+  static void copy(BlockTable src, int srcIndex, BlockTable dest, int destIndex, int count) {
+    while (count > 0) {
+      Object[] srcChunk = src.chunks[srcIndex >>> CHUNK_SHIFT];
+      Object[] destChunk = dest.chunks[destIndex >>> CHUNK_SHIFT];
+      int srcOff = srcIndex & CHUNK_MASK;
+      int destOff = destIndex & CHUNK_MASK;
+      int len = Math.min(count, Math.min(srcChunk.length - srcOff, destChunk.length - destOff));
+      System.arraycopy(srcChunk, srcOff, destChunk, destOff, len);
+      srcIndex += len;
+      destIndex += len;
+      count -= len;
+    }
+  }
+}
@@ -34,6 +34,7 @@ import com.google.common.collect.Sets;
 import java.nio.channels.FileChannel;
 import java.nio.file.FileSystem;
 import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
 import java.nio.file.SecureDirectoryStream;
 import java.nio.file.WatchService;
 import java.nio.file.attribute.BasicFileAttributeView;
@@ -43,6 +44,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 import org.checkerframework.checker.nullness.compatqual.NullableDecl;
 
@@ -228,11 +230,26 @@ public final class Configuration {
   final int blockSize;
   final long maxSize;
   final long maxCacheSize;
+  final long minCacheSize;
+  final long cacheDecayNanos;
+  final double cacheTrimThreshold;
+  final BlockStorage blockStorage;
+  final long blockCompressionDelayNanos;
+  final long maxDecompressedCacheSize;
+  @NullableDecl final Path spillDirectory;
+  final boolean blockDeduplication;
+  final int maxInlineSize;
+  final boolean tailPacking;
+  @NullableDecl final BlockPool blockPool;
+  final boolean concurrentAppends;
+  final boolean concurrentWrites;
+  final boolean coalescedStreamWrites;
 
   // Attribute configuration
   final ImmutableSet<String> attributeViews;
   final ImmutableSet<AttributeProvider> attributeProviders;
   final ImmutableMap<String, Object> defaultAttributeValues;
+  final AccessTimePolicy accessTimePolicy;
 
   // Watch service
   final WatchServiceConfiguration watchServiceConfig;
@@ -252,6 +269,20 @@ public final class Configuration {
     this.blockSize = builder.blockSize;
     this.maxSize = builder.maxSize;
     this.maxCacheSize = builder.maxCacheSize;
+    this.minCacheSize = builder.minCacheSize;
+    this.cacheDecayNanos = builder.cacheDecayNanos;
+    this.cacheTrimThreshold = builder.cacheTrimThreshold;
+    this.blockStorage = builder.blockStorage;
+    this.blockCompressionDelayNanos = builder.blockCompressionDelayNanos;
+    this.maxDecompressedCacheSize = builder.maxDecompressedCacheSize;
+    this.spillDirectory = builder.spillDirectory;
+    this.blockDeduplication = builder.blockDeduplication;
+    this.maxInlineSize = builder.maxInlineSize;
+    this.tailPacking = builder.tailPacking;
+    this.blockPool = builder.blockPool;
+    this.concurrentAppends = builder.concurrentAppends;
+    this.concurrentWrites = builder.concurrentWrites;
+    this.coalescedStreamWrites = builder.coalescedStreamWrites;
     this.attributeViews = builder.attributeViews;
     this.attributeProviders =
         builder.attributeProviders == null
@@ -261,6 +292,7 @@ public final class Configuration {
         builder.defaultAttributeValues == null
             ? ImmutableMap.<String, Object>of()
             : ImmutableMap.copyOf(builder.defaultAttributeValues);
+    this.accessTimePolicy = builder.accessTimePolicy;
     this.watchServiceConfig = builder.watchServiceConfig;
     this.roots = builder.roots;
     this.workingDirectory = builder.workingDirectory;
@@ -292,6 +324,48 @@ public final class Configuration {
     if (maxCacheSize != Builder.DEFAULT_MAX_CACHE_SIZE) {
       helper.add("maxCacheSize", maxCacheSize);
     }
+    if (minCacheSize != 0) {
+      helper.add("minCacheSize", minCacheSize);
+    }
+    if (cacheDecayNanos != -1) {
+      helper.add("cacheDecayNanos", cacheDecayNanos);
+    }
+    if (cacheTrimThreshold != Builder.DEFAULT_CACHE_TRIM_THRESHOLD) {
+      helper.add("cacheTrimThreshold", cacheTrimThreshold);
+    }
+    if (blockStorage != Builder.DEFAULT_BLOCK_STORAGE) {
+      helper.add("blockStorage", blockStorage);
+    }
+    if (blockCompressionDelayNanos != -1) {
+      helper.add("blockCompressionDelayNanos", blockCompressionDelayNanos);
+    }
+    if (blockCompressionDelayNanos != -1 || spillDirectory != null) {
+      helper.add("maxDecompressedCacheSize", maxDecompressedCacheSize);
+    }
+    if (spillDirectory != null) {
+      helper.add("spillDirectory", spillDirectory);
+    }
+    if (blockDeduplication) {
+      helper.add("blockDeduplication", blockDeduplication);
+    }
+    if (maxInlineSize != 0) {
+      helper.add("maxInlineSize", maxInlineSize);
+    }
+    if (tailPacking) {
+      helper.add("tailPacking", tailPacking);
+    }
+    if (blockPool != null) {
+      helper.add("blockPool", blockPool);
+    }
+    if (concurrentAppends) {
+      helper.add("concurrentAppends", concurrentAppends);
+    }
+    if (concurrentWrites) {
+      helper.add("concurrentWrites", concurrentWrites);
+    }
+    if (coalescedStreamWrites) {
+      helper.add("coalescedStreamWrites", coalescedStreamWrites);
+    }
     if (!attributeViews.isEmpty()) {
       helper.add("attributeViews", attributeViews);
     }
@@ -301,6 +375,9 @@ public final class Configuration {
     if (!defaultAttributeValues.isEmpty()) {
       helper.add("defaultAttributeValues", defaultAttributeValues);
     }
+    if (accessTimePolicy != AccessTimePolicy.STRICT) {
+      helper.add("accessTimePolicy", accessTimePolicy);
+    }
     if (watchServiceConfig != WatchServiceConfiguration.DEFAULT) {
       helper.add("watchServiceConfig", watchServiceConfig);
     }
@@ -326,6 +403,15 @@ public final class Configuration {
     /** Equal to the configured max size. */
     public static final long DEFAULT_MAX_CACHE_SIZE = -1;
 
+    /** 90% of the maximum size of a memory pool. */
+    private static final double DEFAULT_CACHE_TRIM_THRESHOLD = 0.9;
+
+    /** Blocks stored on the heap. */
+    public static final BlockStorage DEFAULT_BLOCK_STORAGE = BlockStorage.HEAP;
+
+    /** 16 MB. */
+    public static final long DEFAULT_MAX_DECOMPRESSED_CACHE_SIZE = 16 * 1024 * 1024;
+
     // Path configuration
     private final PathType pathType;
     private ImmutableSet<PathNormalization> nameDisplayNormalization = ImmutableSet.of();
@@ -336,11 +422,26 @@ public final class Configuration {
     private int blockSize = DEFAULT_BLOCK_SIZE;
     private long maxSize = DEFAULT_MAX_SIZE;
     private long maxCacheSize = DEFAULT_MAX_CACHE_SIZE;
+    private long minCacheSize = 0;
+    private long cacheDecayNanos = -1;
+    private double cacheTrimThreshold = DEFAULT_CACHE_TRIM_THRESHOLD;
+    private BlockStorage blockStorage = DEFAULT_BLOCK_STORAGE;
+    private long blockCompressionDelayNanos = -1;
+    private long maxDecompressedCacheSize = DEFAULT_MAX_DECOMPRESSED_CACHE_SIZE;
+    @NullableDecl private Path spillDirectory;
+    private boolean blockDeduplication = false;
+    private int maxInlineSize = 0;
+    private boolean tailPacking = false;
+    @NullableDecl private BlockPool blockPool;
+    private boolean concurrentAppends = false;
+    private boolean concurrentWrites = false;
+    private boolean coalescedStreamWrites = false;
 
     // Attribute configuration
     private ImmutableSet<String> attributeViews = ImmutableSet.of();
     private Set<AttributeProvider> attributeProviders = null;
     private Map<String, Object> defaultAttributeValues;
+    private AccessTimePolicy accessTimePolicy = AccessTimePolicy.STRICT;
 
     // Watch service
     private WatchServiceConfiguration watchServiceConfig = WatchServiceConfiguration.DEFAULT;
@@ -363,6 +464,20 @@ public final class Configuration {
       this.blockSize = configuration.blockSize;
       this.maxSize = configuration.maxSize;
       this.maxCacheSize = configuration.maxCacheSize;
+      this.minCacheSize = configuration.minCacheSize;
+      this.cacheDecayNanos = configuration.cacheDecayNanos;
+      this.cacheTrimThreshold = configuration.cacheTrimThreshold;
+      this.blockStorage = configuration.blockStorage;
+      this.blockCompressionDelayNanos = configuration.blockCompressionDelayNanos;
+      this.maxDecompressedCacheSize = configuration.maxDecompressedCacheSize;
+      this.spillDirectory = configuration.spillDirectory;
+      this.blockDeduplication = configuration.blockDeduplication;
+      this.maxInlineSize = configuration.maxInlineSize;
+      this.tailPacking = configuration.tailPacking;
+      this.blockPool = configuration.blockPool;
+      this.concurrentAppends = configuration.concurrentAppends;
+      this.concurrentWrites = configuration.concurrentWrites;
+      this.coalescedStreamWrites = configuration.coalescedStreamWrites;
       this.attributeViews = configuration.attributeViews;
       this.attributeProviders =
           configuration.attributeProviders.isEmpty()
@@ -372,6 +487,7 @@ public final class Configuration {
           configuration.defaultAttributeValues.isEmpty()
               ? null
               : new HashMap<>(configuration.defaultAttributeValues);
+      this.accessTimePolicy = configuration.accessTimePolicy;
       this.watchServiceConfig = configuration.watchServiceConfig;
       this.roots = configuration.roots;
       this.workingDirectory = configuration.workingDirectory;
@@ -496,6 +612,10 @@ public final class Configuration {
      *
      * <p>Like the maximum size, the actual value will be the closest multiple of the block size
      * that is less than or equal to the given size.
+     *
+     * <p>The cache only shrinks when its space is reused, unless {@linkplain #setCacheDecay(long,
+     * TimeUnit) cache decay} is enabled or the cache is {@linkplain Jimfs#trim(FileSystem)
+     * trimmed}.
      */
     public Builder setMaxCacheSize(long maxCacheSize) {
       checkArgument(maxCacheSize >= 0, "maxCacheSize (%s) may not be negative", maxCacheSize);
@@ -503,6 +623,267 @@ public final class Configuration {
       return this;
     }
 
+    /**
+     * Sets the amount of unused space (in bytes) that should stay cached for reuse when the cache
+     * decays or is {@linkplain Jimfs#trim(FileSystem) trimmed}. Space cached beyond this may be
+     * released for garbage collection, while the {@linkplain #setMaxCacheSize(long) maximum cache
+     * size} still limits the total amount of space cached.
+     *
+     * <p>The default is 0.
+     */
+    public Builder setMinCacheSize(long minCacheSize) {
+      checkArgument(minCacheSize >= 0, "minCacheSize (%s) may not be negative", minCacheSize);
+      this.minCacheSize = minCacheSize;
+      return this;
+    }
+
+    /**
+     * Enables decay of the cache of unused space: space that stays cached without being reused for
+     * at least the given delay is released for garbage collection, down to the {@linkplain
+     * #setMinCacheSize(long) minimum cache size}. This keeps a file system that goes through a burst
+     * of deletes from holding on to the memory those files used indefinitely, while still avoiding
+     * garbage collection when files are created and deleted at a steady rate.
+     *
+     * <p>When enabled, the cache is also trimmed to the minimum cache size whenever the JVM's
+     * {@link java.lang.management.MemoryMXBean} reports that a memory pool has exceeded its usage
+     * threshold or collection usage threshold. Unless something else already set one, the
+     * collection usage threshold of each heap memory pool is set to the {@linkplain
+     * #setCacheTrimThreshold(double) cache trim threshold} while any file system with cache decay
+     * is open.
+     *
+     * <p>By default, the cache doesn't decay.
+     */
+    @SuppressWarnings("GoodTime") // should accept a java.time.Duration
+    public Builder setCacheDecay(long delay, TimeUnit unit) {
+      checkArgument(delay > 0, "delay (%s) must be positive", delay);
+      this.cacheDecayNanos = unit.toNanos(delay);
+      return this;
+    }
+
+    /**
+     * Sets the fraction of the maximum size of each heap memory pool at which the collection usage
+     * threshold of the pool is set when {@linkplain #setCacheDecay(long, TimeUnit) cache decay} is
+     * enabled, so that the cache is trimmed when the heap is still that full after a garbage
+     * collection. The thresholds are shared by all file systems in the JVM, so the lowest fraction
+     * of the open file systems is used. This can be set to 0 to leave the thresholds alone.
+     *
+     * <p>The default is 0.9.
+     */
+    public Builder setCacheTrimThreshold(double fraction) {
+      checkArgument(
+          fraction >= 0 && fraction <= 1, "fraction (%s) must be between 0 and 1", fraction);
+      this.cacheTrimThreshold = fraction;
+      return this;
+    }
+
+    /**
+     * Sets the storage the file system should use for the blocks holding the content of regular
+     * files. {@link BlockStorage#DIRECT} can be used to keep the content of large file systems off
+     * the Java heap.
+     *
+     * <p>The default is {@link BlockStorage#HEAP}.
+     */
+    public Builder setBlockStorage(BlockStorage blockStorage) {
+      this.blockStorage = checkNotNull(blockStorage);
+      return this;
+    }
+
+    /**
+     * Enables compression of the content of regular files that haven't been read or written for at
+     * least the given delay. This can greatly reduce the memory used by file systems holding a lot
+     * of compressible content (such as text) that is written once and rarely read afterward.
+     *
+     * <p>Blocks are compressed individually and in place by a background thread. Reading from a
+     * compressed block decompresses it into a cache of recently read blocks whose size can be set
+     * with {@link #setMaxDecompressedCacheSize(long)}; writing to a compressed block decompresses
+     * it back into the file. Space freed by compressing blocks is available for other files, so a
+     * write that doesn't grow a file can fail if the file system is full.
+     *
+     * <p>By default, blocks are never compressed.
+     */
+    @SuppressWarnings("GoodTime") // should accept a java.time.Duration
+    public Builder setBlockCompression(long delay, TimeUnit unit) {
+      checkArgument(delay >= 0, "delay (%s) may not be negative", delay);
+      this.blockCompressionDelayNanos = unit.toNanos(delay);
+      return this;
+    }
+
+    /**
+     * Sets a directory on another file system (generally the default file system) in which to
+     * create a scratch file that blocks can be spilled to. This allows the content of the file
+     * system to grow larger than the memory it uses: the {@linkplain #setMaxSize(long) maximum
+     * size} of the file system becomes a limit on the space used for blocks in memory, and when
+     * that limit is reached, the blocks of the least recently used files are spilled to the scratch
+     * file to make room. Spilled blocks are compressed when they compress well and are read back
+     * into memory transparently when read or written, like compressed blocks.
+     *
+     * <p>If {@linkplain #setBlockCompression(long, TimeUnit) block compression} is also enabled,
+     * the blocks of files that go cold are spilled rather than compressed in memory.
+     *
+     * <p>The scratch file is created when the first block is spilled and deleted when the file
+     * system is closed. If it can't be created, blocks are kept in memory instead.
+     *
+     * <p>By default, blocks are never spilled.
+     */
+    public Builder setSpillDirectory(Path spillDirectory) {
+      this.spillDirectory = checkNotNull(spillDirectory);
+      return this;
+    }
+
+    /**
+     * Sets the maximum amount of space (in bytes) to use for caching decompressed copies of
+     * recently read compressed or spilled blocks when {@linkplain #setBlockCompression(long,
+     * TimeUnit) block compression} or {@linkplain #setSpillDirectory(Path) spilling} is enabled.
+     * This space is in addition to the maximum size of the file system.
+     *
+     * <p>The default is 16 MB.
+     */
+    public Builder setMaxDecompressedCacheSize(long maxDecompressedCacheSize) {
+      checkArgument(
+          maxDecompressedCacheSize >= 0,
+          "maxDecompressedCacheSize (%s) may not be negative",
+          maxDecompressedCacheSize);
+      this.maxDecompressedCacheSize = maxDecompressedCacheSize;
+      return this;
+    }
+
+    /**
+     * Sets whether the file system should deduplicate identical blocks of content across regular
+     * files. This can greatly reduce the memory used by file systems holding many copies of the
+     * same content that weren't created by copying files within the file system, such as
+     * dependencies or test resources written once for each of several projects.
+     *
+     * <p>When enabled, the full blocks of a file are hashed when a stream or channel that wrote to
+     * the file is closed, and each block that is identical to a block already stored is replaced by
+     * a reference to the stored block. Deduplicated blocks are copied before they're written to, so
+     * writing to a file whose content is deduplicated can fail if the file system is full.
+     *
+     * <p>By default, blocks are not deduplicated.
+     */
+    public Builder setBlockDeduplication(boolean blockDeduplication) {
+      this.blockDeduplication = blockDeduplication;
+      return this;
+    }
+
+    /**
+     * Sets the maximum size (in bytes) of regular files whose content is stored inline, in an
+     * array owned by the file, rather than in blocks. This can greatly reduce the memory used by
+     * file systems holding many files that are much smaller than the {@linkplain #setBlockSize(int)
+     * block size}, since each such file otherwise uses at least a whole block.
+     *
+     * <p>A new file stores its content inline until a write grows it past the given size, at which
+     * point its content is moved into blocks for good. The actual maximum is never more than the
+     * block size. Content stored inline doesn't count against the {@linkplain #setMaxSize(long)
+     * maximum size} of the file system.
+     *
+     * <p>The default is 0, meaning that file content is always stored in blocks.
+     */
+    public Builder setMaxInlineSize(int maxInlineSize) {
+      checkArgument(maxInlineSize >= 0, "maxInlineSize (%s) may not be negative", maxInlineSize);
+      this.maxInlineSize = maxInlineSize;
+      return this;
+    }
+
+    /**
+     * Sets whether the file system should pack the partial last block of each regular file into
+     * an exact-size tail. Without tail packing, each file wastes half a block on average, which
+     * adds up for file systems holding many files with a large {@linkplain #setBlockSize(int)
+     * block size}.
+     *
+     * <p>When enabled, the last block of a file is packed when a stream or channel that wrote to
+     * the file is closed, and packed tails count against the {@linkplain #setMaxSize(long) maximum
+     * size} of the file system by their actual size. A packed tail is unpacked into a full block
+     * again when the file is written past the end of its full blocks, so such a write can fail if
+     * the file system is full.
+     *
+     * <p>By default, tails are not packed.
+     */
+    public Builder setTailPacking(boolean tailPacking) {
+      this.tailPacking = tailPacking;
+      return this;
+    }
+
+    /**
+     * Sets a pool of blocks that the file system should share with other file systems. The file
+     * system takes blocks from the pool before allocating new ones, gives freed blocks that don't
+     * fit in its own {@linkplain #setMaxCacheSize(long) cache} to the pool and returns all of its
+     * blocks to the pool when it's closed. This greatly reduces the memory allocated by processes
+     * that create and close many file systems, such as large test suites.
+     *
+     * <p>The pool's block size and storage must match the {@linkplain #setBlockSize(int) block
+     * size} and {@linkplain #setBlockStorage(BlockStorage) block storage} of the file system, or
+     * creating the file system fails. The pool doesn't count against the {@linkplain
+     * #setMaxSize(long) maximum size} of the file system.
+     *
+     * <p>By default, file systems don't share blocks.
+     */
+    public Builder setBlockPool(BlockPool blockPool) {
+      this.blockPool = checkNotNull(blockPool);
+      return this;
+    }
+
+    /**
+     * Sets whether channels opened with {@link java.nio.file.StandardOpenOption#APPEND APPEND}
+     * may append to the same file concurrently. Normally each append holds the file's write lock
+     * while it copies its bytes, so appends from many threads to one file, as to a shared log, run
+     * one at a time. With concurrent appends, each append instead atomically reserves the range of
+     * bytes at the end of the file that it will write and copies its bytes into blocks allocated
+     * ahead of it, alongside any other appends. The file's size grows past each append's bytes only
+     * once all earlier appends have been copied, so readers never see a range that hasn't been
+     * written yet.
+     *
+     * <p>An append that doesn't fit in the blocks already allocated to the file, or that's to a
+     * file whose content is inline, has a packed tail or may be compressed, is done while holding
+     * the write lock as usual, allocating blocks ahead of later appends.
+     *
+     * <p>By default, appends are not concurrent.
+     */
+    public Builder setConcurrentAppends(boolean concurrentAppends) {
+      this.concurrentAppends = concurrentAppends;
+      return this;
+    }
+
+    /**
+     * Sets whether positional writes to disjoint ranges of the same file may proceed concurrently.
+     * Normally every write to a file holds the file's write lock, so threads writing to separate
+     * regions of one large file, such as the chunks of a parallel download or the pages of a
+     * database, run one at a time. With concurrent writes, a write that falls entirely within the
+     * current size of the file and within blocks it doesn't share with other files instead locks
+     * just the range of bytes it writes, and only waits for writes to overlapping ranges.
+     *
+     * <p>Writes that change the size of the file, truncation and writes to shared, compressed or
+     * inline content still hold the file's write lock. Reads don't lock ranges, so a read that
+     * overlaps a concurrent in-place write may see some of the write's bytes but not others, as on
+     * many real file systems.
+     *
+     * <p>By default, writes are not concurrent.
+     */
+    public Builder setConcurrentWrites(boolean concurrentWrites) {
+      this.concurrentWrites = concurrentWrites;
+      return this;
+    }
+
+    /**
+     * Sets whether output streams coalesce small writes before writing them to their file.
+     * Normally every write to an output stream, even of a single byte, locks the file, may
+     * allocate blocks and updates the file's last modified time, which makes writing many small
+     * pieces, as serializers do, much slower than writing to a buffered stream on a real file
+     * system. With coalesced writes, each output stream stages writes smaller than a block in a
+     * buffer of one block, writing the buffer to the file with a single write when it fills, when
+     * the stream is flushed or closed, or before a larger write. The file's last modified time is
+     * updated once per such write.
+     *
+     * <p>Staged bytes aren't visible to readers of the file, and don't count toward its size,
+     * until they're written, so a stream should be flushed when other readers need to see them, as
+     * with a {@link java.io.BufferedOutputStream}.
+     *
+     * <p>By default, output streams don't coalesce writes.
+     */
+    public Builder setCoalescedStreamWrites(boolean coalescedStreamWrites) {
+      this.coalescedStreamWrites = coalescedStreamWrites;
+      return this;
+    }
+
     /**
      * Sets the attribute views the file system should support. By default, the following views may
      * be specified:
@@ -631,6 +1012,18 @@ public final class Configuration {
 
     private static final Pattern ATTRIBUTE_PATTERN = Pattern.compile("[^:]+:[^:]+");
 
+    /**
+     * Sets the policy for updating the last access time of files when their content is read or
+     * directories when they're listed. Updating the access time on every read, as the default
+     * {@link AccessTimePolicy#STRICT} policy does, makes concurrent readers of the same file
+     * contend with each other; {@link AccessTimePolicy#RELATIME} and {@link
+     * AccessTimePolicy#NOATIME} avoid nearly all such updates.
+     */
+    public Builder setAccessTimePolicy(AccessTimePolicy accessTimePolicy) {
+      this.accessTimePolicy = checkNotNull(accessTimePolicy);
+      return this;
+    }
+
     /**
      * Sets the roots for the file system.
      *
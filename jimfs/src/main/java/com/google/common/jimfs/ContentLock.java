@@ -0,0 +1,210 @@
+/*
+ * Copyright 2026 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.jimfs;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import org.checkerframework.checker.nullness.compatqual.NullableDecl;
+
+/**
+ * Read-write lock for the content of a {@link RegularFile} that also supports optimistic reads, in
+ * the manner of {@code StampedLock}: a reader gets a stamp with {@link #tryOptimisticRead()}, reads
+ * without locking and then checks with {@link #validate(long)} that no writer held the write lock
+ * in the meantime. Unlike taking the read lock, none of this writes to shared memory, so any number
+ * of threads can read a file this way without contending with each other.
+ *
+ * <p>This works by keeping a version that the write lock increments when it's first acquired and
+ * again when it's finally released, so the version is odd exactly while the write lock is held.
+ * Writers that modify the content while holding only the read lock, such as concurrent appends and
+ * writes in place, bracket their modifications with {@link #beginConcurrentWrite()} and {@link
+ * #endConcurrentWrite()}, which count the modifications and keep optimistic reads from starting
+ * while any are in progress; a stamp covers both the version and that count.
+ */
+final class ContentLock extends ReentrantReadWriteLock {
+
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * The version of the content guarded by this lock. Starts at 2 so that 0 is never a valid stamp.
+   * Only written by the thread holding the write lock.
+   */
+  private volatile long version = 2;
+
+  /** Number of modifications made while holding only the read lock that have begun. */
+  private volatile long concurrentWrites;
+
+  /** Number of modifications made while holding only the read lock that are in progress. */
+  private volatile int activeConcurrentWrites;
+
+  /**
+   * Written by {@link #validate(long)} when no load fence is available, as the store half of a
+   * store-load pair that keeps the reads being validated from being reordered after the validation.
+   */
+  @SuppressWarnings("unused")
+  private volatile long fence;
+
+  private static final AtomicLongFieldUpdater<ContentLock> CONCURRENT_WRITES =
+      AtomicLongFieldUpdater.newUpdater(ContentLock.class, "concurrentWrites");
+
+  private static final AtomicIntegerFieldUpdater<ContentLock> ACTIVE_CONCURRENT_WRITES =
+      AtomicIntegerFieldUpdater.newUpdater(ContentLock.class, "activeConcurrentWrites");
+
+  /** {@code Unsafe.loadFence()}, available from Java 8, or null if it can't be used. */
+  @NullableDecl private static final MethodHandle LOAD_FENCE = loadFence();
+
+  @NullableDecl
+  private static MethodHandle loadFence() {
+    try {
+      Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+      Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+      theUnsafe.setAccessible(true);
+      return MethodHandles.lookup()
+          .findVirtual(unsafeClass, "loadFence", MethodType.methodType(void.class))
+          .bindTo(theUnsafe.get(null));
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      return null;
+    }
+  }
+
+  private final VersionedWriteLock writeLock = new VersionedWriteLock(this);
+
+  @Override
+  public ReentrantReadWriteLock.WriteLock writeLock() {
+    return writeLock;
+  }
+
+  /**
+   * Returns the current version, which changes whenever the write lock is acquired or released, or
+   * 0 if the write lock is currently held. Unlike a stamp, this doesn't change when the content is
+   * modified while holding only the read lock.
+   */
+  long version() {
+    long v = version;
+    return (v & 1) == 0 ? v : 0;
+  }
+
+  /**
+   * Returns a stamp to later validate an optimistic read with, or 0 if the write lock is currently
+   * held or the content is being modified by a thread holding only the read lock.
+   */
+  long tryOptimisticRead() {
+    long v = version;
+    if ((v & 1) != 0) {
+      return 0;
+    }
+    // both only ever grow, so their sum changes whenever either does
+    long stamp = v + concurrentWrites;
+    return activeConcurrentWrites == 0 ? stamp : 0;
+  }
+
+  /**
+   * Returns whether the content hasn't been modified since the given stamp was obtained from
+   * {@link #tryOptimisticRead()}, meaning that whatever was read since then is consistent. Always
+   * returns false for a stamp of 0.
+   */
+  boolean validate(long stamp) {
+    // the reads being validated must not be reordered after the reads of the version and count
+    if (LOAD_FENCE != null) {
+      try {
+        LOAD_FENCE.invokeExact();
+      } catch (Throwable e) {
+        throw new AssertionError(e);
+      }
+    } else {
+      fence = stamp;
+    }
+    return stamp != 0 && stamp == version + concurrentWrites;
+  }
+
+  /**
+   * Called by a thread holding the read lock before it modifies the content, so that optimistic
+   * reads in progress fail to validate and no new ones start until {@link #endConcurrentWrite()}.
+   */
+  void beginConcurrentWrite() {
+    ACTIVE_CONCURRENT_WRITES.incrementAndGet(this);
+    CONCURRENT_WRITES.incrementAndGet(this);
+  }
+
+  /** Called by a thread holding the read lock once it's done modifying the content. */
+  void endConcurrentWrite() {
+    ACTIVE_CONCURRENT_WRITES.decrementAndGet(this);
+  }
+
+  /** Write lock that increments the version of its {@link ContentLock}. */
+  private static final class VersionedWriteLock extends ReentrantReadWriteLock.WriteLock {
+
+    private static final long serialVersionUID = 1L;
+
+    private final ContentLock lock;
+
+    VersionedWriteLock(ContentLock lock) {
+      super(lock);
+      this.lock = lock;
+    }
+
+    /** Called after the write lock is acquired. */
+    private void acquired() {
+      if (getHoldCount() == 1) {
+        lock.version++;
+      }
+    }
+
+    @Override
+    public void lock() {
+      super.lock();
+      acquired();
+    }
+
+    @Override
+    public void lockInterruptibly() throws InterruptedException {
+      super.lockInterruptibly();
+      acquired();
+    }
+
+    @Override
+    public boolean tryLock() {
+      if (super.tryLock()) {
+        acquired();
+        return true;
+      }
+      return false;
+    }
+
+    @Override
+    public boolean tryLock(long timeout, TimeUnit unit) throws InterruptedException {
+      if (super.tryLock(timeout, unit)) {
+        acquired();
+        return true;
+      }
+      return false;
+    }
+
+    @Override
+    public void unlock() {
+      if (getHoldCount() == 1) {
+        lock.version++;
+      }
+      super.unlock();
+    }
+  }
+}
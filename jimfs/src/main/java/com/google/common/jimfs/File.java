@@ -39,8 +39,9 @@ public abstract class File {
   private int links;
 
   private long creationTime;
-  private long lastAccessTime;
-  private long lastModifiedTime;
+  // volatile so that reads can check whether they need to update the access time without locking
+  private volatile long lastAccessTime;
+  private volatile long lastModifiedTime;
 
   @NullableDecl // null when only the basic view is used (default)
   private Table<String, String, Object> attributes;
@@ -192,6 +193,28 @@ public abstract class File {
     setLastAccessTime(System.currentTimeMillis());
   }
 
+  /** Updates the last access time of the file after a read, as the given policy dictates. */
+  final void updateAccessTime(AccessTimePolicy policy) {
+    switch (policy) {
+      case STRICT:
+        updateAccessTime();
+        break;
+      case RELATIME:
+        long lastAccessTime = this.lastAccessTime;
+        if (lastAccessTime <= lastModifiedTime) {
+          updateAccessTime();
+        } else {
+          long now = System.currentTimeMillis();
+          if (now - lastAccessTime >= AccessTimePolicy.RELATIME_INTERVAL_MILLIS) {
+            setLastAccessTime(now);
+          }
+        }
+        break;
+      case NOATIME:
+        break;
+    }
+  }
+
   /** Sets the last modified time of the file to the current time. */
   final void updateModifiedTime() {
     setLastModifiedTime(System.currentTimeMillis());
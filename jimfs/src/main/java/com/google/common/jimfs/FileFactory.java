@@ -56,7 +56,19 @@ final class FileFactory {
   /** Creates a new regular file. */
   @VisibleForTesting
   RegularFile createRegularFile() {
-    return RegularFile.create(nextFileId(), disk);
+    return register(RegularFile.create(nextFileId(), disk));
+  }
+
+  /** Creates a new sparse regular file. */
+  @VisibleForTesting
+  RegularFile createSparseRegularFile() {
+    return register(RegularFile.create(nextFileId(), disk, true));
+  }
+
+  /** Registers the given new regular file with the disk. */
+  private RegularFile register(RegularFile file) {
+    disk.register(file);
+    return file;
   }
 
   /** Creates a new symbolic link referencing the given target path. */
@@ -67,7 +79,11 @@ final class FileFactory {
 
   /** Creates and returns a copy of the given file. */
   public File copyWithoutContent(File file) throws IOException {
-    return file.copyWithoutContent(nextFileId());
+    File copy = file.copyWithoutContent(nextFileId());
+    if (copy.isRegularFile()) {
+      register((RegularFile) copy);
+    }
+    return copy;
   }
 
   // suppliers to act as file creation callbacks
@@ -76,6 +92,8 @@ final class FileFactory {
 
   private final Supplier<RegularFile> regularFileSupplier = new RegularFileSupplier();
 
+  private final Supplier<RegularFile> sparseRegularFileSupplier = new SparseRegularFileSupplier();
+
   /** Returns a supplier that creates directories. */
   public Supplier<Directory> directoryCreator() {
     return directorySupplier;
@@ -86,6 +104,11 @@ final class FileFactory {
     return regularFileSupplier;
   }
 
+  /** Returns a supplier that creates sparse regular files. */
+  public Supplier<RegularFile> sparseRegularFileCreator() {
+    return sparseRegularFileSupplier;
+  }
+
   /** Returns a supplier that creates a symbolic links to the given path. */
   public Supplier<SymbolicLink> symbolicLinkCreator(JimfsPath target) {
     return new SymbolicLinkSupplier(target);
@@ -105,6 +128,13 @@ final class FileFactory {
     }
   }
 
+  private final class SparseRegularFileSupplier implements Supplier<RegularFile> {
+    @Override
+    public RegularFile get() {
+      return createSparseRegularFile();
+    }
+  }
+
   private final class SymbolicLinkSupplier implements Supplier<SymbolicLink> {
 
     private final JimfsPath target;
@@ -0,0 +1,328 @@
+/*
+ * Copyright 2026 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.jimfs;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.util.concurrent.MoreExecutors.directExecutor;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Table of the byte-range locks held on a {@link RegularFile} through {@link
+ * java.nio.channels.FileChannel#lock FileChannel} and {@link AsynchronousFileChannel#lock
+ * AsynchronousFileChannel} locking methods.
+ *
+ * <p>Each channel is treated like a separate process holding its own locks: a lock conflicts with
+ * another if they're held through different channels, their ranges overlap and at least one of
+ * them is exclusive. As {@code FileChannel} specifies, a channel can't hold or wait for two locks
+ * with overlapping ranges; requesting one throws {@link OverlappingFileLockException}.
+ *
+ * <p>A request for a lock that conflicts with a held lock, or with an earlier request that's still
+ * waiting, waits in line. The request is granted, completing its future, once the locks in its way
+ * are released. Granting requests in order keeps a stream of shared locks from starving a request
+ * for an exclusive lock. Futures are completed after leaving the table's monitor, so that their
+ * listeners never run while holding it.
+ */
+final class FileLockTable {
+
+  @GuardedBy("this")
+  private final List<JimfsFileLock> held = new ArrayList<>();
+
+  @GuardedBy("this")
+  private final List<Request> waiting = new ArrayList<>();
+
+  /**
+   * Acquires the given lock if that can be done without waiting, returning whether it was.
+   *
+   * @throws OverlappingFileLockException if the lock's channel holds or is waiting for a lock that
+   *     overlaps it
+   */
+  synchronized boolean tryLock(JimfsFileLock lock) {
+    checkNotOverlapping(lock);
+    if (conflicts(lock, waiting.size())) {
+      return false;
+    }
+    held.add(lock);
+    return true;
+  }
+
+  /**
+   * Requests the given lock, returning a future that completes with the lock once it's acquired.
+   * Cancelling the future withdraws the request if the lock hasn't been acquired yet. If the
+   * lock's channel is closed while the request is waiting, the future fails with {@link
+   * AsynchronousCloseException}.
+   *
+   * @throws OverlappingFileLockException if the lock's channel holds or is waiting for a lock that
+   *     overlaps it
+   */
+  ListenableFuture<FileLock> lock(JimfsFileLock lock) {
+    final SettableFuture<FileLock> future = SettableFuture.create();
+    final Request request;
+    synchronized (this) {
+      checkNotOverlapping(lock);
+      if (!conflicts(lock, waiting.size())) {
+        held.add(lock);
+        request = null;
+      } else {
+        request = new Request(lock, future);
+        waiting.add(request);
+      }
+    }
+
+    if (request == null) {
+      future.set(lock);
+      return future;
+    }
+
+    future.addListener(
+        new Runnable() {
+          @Override
+          public void run() {
+            if (future.isCancelled()) {
+              withdraw(request);
+            }
+          }
+        },
+        directExecutor());
+    return future;
+  }
+
+  /** Releases the given lock, granting any waiting requests that no longer conflict. */
+  void release(JimfsFileLock lock) {
+    List<Request> granted;
+    synchronized (this) {
+      if (!held.remove(lock)) {
+        return;
+      }
+      granted = grantWaiting();
+    }
+    complete(granted);
+  }
+
+  /**
+   * Releases all locks held through the given channel, failing any of its requests that are still
+   * waiting, because the channel has been closed.
+   */
+  void releaseAll(JimfsFileChannel owner) {
+    List<Request> failed = new ArrayList<>();
+    List<Request> granted;
+    synchronized (this) {
+      boolean changed = false;
+      for (Iterator<JimfsFileLock> it = held.iterator(); it.hasNext(); ) {
+        if (it.next().owner == owner) {
+          it.remove();
+          changed = true;
+        }
+      }
+      for (Iterator<Request> it = waiting.iterator(); it.hasNext(); ) {
+        Request request = it.next();
+        if (request.lock.owner == owner) {
+          it.remove();
+          failed.add(request);
+          changed = true;
+        }
+      }
+      granted = changed ? grantWaiting() : Collections.<Request>emptyList();
+    }
+
+    for (Request request : failed) {
+      request.future.setException(new AsynchronousCloseException());
+    }
+    complete(granted);
+  }
+
+  /** Returns the number of locks currently held. */
+  synchronized int heldLockCount() {
+    return held.size();
+  }
+
+  /** Returns the number of requests currently waiting for a lock. */
+  synchronized int waitingRequestCount() {
+    return waiting.size();
+  }
+
+  /** Removes the given request, which has been cancelled, if it's still waiting. */
+  private void withdraw(Request request) {
+    List<Request> granted;
+    synchronized (this) {
+      if (!waiting.remove(request)) {
+        return;
+      }
+      granted = grantWaiting();
+    }
+    complete(granted);
+  }
+
+  /**
+   * Moves, in order, the waiting requests that conflict with neither held locks nor each other to
+   * the held locks, returning them so that their futures can be completed.
+   */
+  @GuardedBy("this")
+  private List<Request> grantWaiting() {
+    List<Request> granted = new ArrayList<>();
+    int i = 0;
+    while (i < waiting.size()) {
+      Request request = waiting.get(i);
+      if (conflicts(request.lock, i)) {
+        i++;
+        continue;
+      }
+
+      waiting.remove(i);
+      held.add(request.lock);
+      granted.add(request);
+    }
+    return granted;
+  }
+
+  /**
+   * Completes the futures of the given granted requests. Must be called without holding the
+   * table's monitor.
+   */
+  private void complete(List<Request> granted) {
+    for (Request request : granted) {
+      if (!request.future.set(request.lock)) {
+        // cancelled after it was granted; its cancellation listener didn't find it waiting
+        release(request.lock);
+      }
+    }
+  }
+
+  /**
+   * Throws {@link OverlappingFileLockException} if the given lock's channel holds, or is waiting
+   * for, a lock that overlaps it.
+   */
+  @GuardedBy("this")
+  private void checkNotOverlapping(JimfsFileLock lock) {
+    for (int i = 0; i < held.size(); i++) {
+      JimfsFileLock other = held.get(i);
+      if (other.owner == lock.owner && lock.overlapsRangeOf(other)) {
+        throw new OverlappingFileLockException();
+      }
+    }
+    for (int i = 0; i < waiting.size(); i++) {
+      JimfsFileLock other = waiting.get(i).lock;
+      if (other.owner == lock.owner && lock.overlapsRangeOf(other)) {
+        throw new OverlappingFileLockException();
+      }
+    }
+  }
+
+  /**
+   * Returns whether the given lock conflicts with any held lock or with any of the first {@code
+   * waitingCount} waiting requests.
+   */
+  @GuardedBy("this")
+  private boolean conflicts(JimfsFileLock lock, int waitingCount) {
+    for (int i = 0; i < held.size(); i++) {
+      if (lock.conflictsWith(held.get(i))) {
+        return true;
+      }
+    }
+    for (int i = 0; i < waitingCount; i++) {
+      if (lock.conflictsWith(waiting.get(i).lock)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** A request waiting for a lock. */
+  private static final class Request {
+
+    final JimfsFileLock lock;
+    final SettableFuture<FileLock> future;
+
+    Request(JimfsFileLock lock, SettableFuture<FileLock> future) {
+      this.lock = lock;
+      this.future = future;
+    }
+  }
+
+  /** A lock on a range of a file, held in a {@link FileLockTable} once acquired. */
+  static final class JimfsFileLock extends FileLock {
+
+    private final FileLockTable table;
+    private final JimfsFileChannel owner;
+    private volatile boolean released;
+
+    /** Creates a lock requested through the given channel. */
+    JimfsFileLock(
+        FileLockTable table, JimfsFileChannel owner, long position, long size, boolean shared) {
+      super(owner, position, size, shared);
+      this.table = checkNotNull(table);
+      this.owner = owner;
+    }
+
+    /** Creates a lock requested through the given asynchronous view of the owning channel. */
+    JimfsFileLock(
+        FileLockTable table,
+        JimfsFileChannel owner,
+        AsynchronousFileChannel channel,
+        long position,
+        long size,
+        boolean shared) {
+      super(channel, position, size, shared);
+      this.table = checkNotNull(table);
+      this.owner = checkNotNull(owner);
+    }
+
+    /**
+     * Returns whether this lock conflicts with the given lock: whether they're held through
+     * different channels, their ranges overlap and at least one of them is exclusive.
+     */
+    boolean conflictsWith(JimfsFileLock other) {
+      return owner != other.owner && !(isShared() && other.isShared()) && overlapsRangeOf(other);
+    }
+
+    /** Returns whether the range of this lock overlaps the range of the given lock. */
+    boolean overlapsRangeOf(JimfsFileLock other) {
+      return start() < other.end() && other.start() < end();
+    }
+
+    private long start() {
+      return position();
+    }
+
+    /** Returns the end of the locked range, which is Long.MAX_VALUE if it would overflow. */
+    private long end() {
+      return size() > Long.MAX_VALUE - position() ? Long.MAX_VALUE : position() + size();
+    }
+
+    @Override
+    public boolean isValid() {
+      return !released && owner.isOpen();
+    }
+
+    @Override
+    public void release() {
+      if (!released) {
+        released = true;
+        table.release(this);
+      }
+    }
+  }
+}
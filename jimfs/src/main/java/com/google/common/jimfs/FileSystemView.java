@@ -21,6 +21,7 @@ import static java.nio.file.StandardCopyOption.COPY_ATTRIBUTES;
 import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
 import static java.nio.file.StandardOpenOption.CREATE;
 import static java.nio.file.StandardOpenOption.CREATE_NEW;
+import static java.nio.file.StandardOpenOption.SPARSE;
 import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
 import static java.nio.file.StandardOpenOption.WRITE;
 
@@ -135,7 +136,7 @@ final class FileSystemView {
     store.readLock().lock();
     try {
       ImmutableSortedSet<Name> names = workingDirectory.snapshot();
-      workingDirectory.updateAccessTime();
+      workingDirectory.updateAccessTime(store.accessTimePolicy());
       return names;
     } finally {
       store.readLock().unlock();
@@ -330,7 +331,10 @@ final class FileSystemView {
       JimfsPath path, Set<OpenOption> options, FileAttribute<?>[] attrs) throws IOException {
     store.writeLock().lock();
     try {
-      File file = createFile(path, store.regularFileCreator(), options.contains(CREATE_NEW), attrs);
+      // a sparse file is only created if the file doesn't already exist
+      Supplier<RegularFile> fileCreator =
+          options.contains(SPARSE) ? store.sparseRegularFileCreator() : store.regularFileCreator();
+      File file = createFile(path, fileCreator, options.contains(CREATE_NEW), attrs);
       // the file already existed but was not a regular file
       if (!file.isRegularFile()) {
         throw new FileSystemException(path.toString(), null, "not a regular file");
@@ -573,6 +577,11 @@ final class FileSystemView {
         destParent.link(dest.name(), copyFile);
         destParent.updateModifiedTime();
 
+        // Write back changes made to mapped buffers of the source so that they're copied too.
+        if (sourceFile.isRegularFile()) {
+          ((RegularFile) sourceFile).writeBackMappedChanges();
+        }
+
         // In order for the copy to be atomic (not strictly necessary, but seems preferable since
         // we can) lock both source and copy files before leaving the file store locks. This
         // ensures that users cannot observe the copy's content until the content has been copied.
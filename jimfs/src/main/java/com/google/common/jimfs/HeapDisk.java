@@ -17,11 +17,22 @@
 package com.google.common.jimfs;
 
 import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
+import com.google.common.jimfs.BlockCompressor.CompressedBlock;
 import com.google.common.math.LongMath;
 import java.io.IOException;
 import java.math.RoundingMode;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.checkerframework.checker.nullness.compatqual.NullableDecl;
 
 /**
  * A resizable pseudo-disk acting as a shared space for storing file data. A disk allocates fixed
@@ -30,50 +41,255 @@ import java.math.RoundingMode;
  * "size" of the disk) and a maximum number of unused blocks it will cache for reuse at a time
  * (which sets the minimum amount of space the disk will use once
  *
+ * <p>A disk is safe for use by multiple threads without external synchronization. The block
+ * budget is tracked with atomic counters and freed blocks are cached in a number of independently
+ * locked magazines rather than behind a single lock, so that threads growing and shrinking
+ * different files in parallel don't all serialize on the disk.
+ *
+ * <p>Blocks may be shared by more than one file when a file is copied within the disk. The disk
+ * keeps a reference count for each shared block; a shared block counts once against the size of
+ * the disk and is only freed for reuse once the last file referencing it releases it.
+ *
+ * <p>If deduplication is enabled, blocks with identical content are also shared between files: when
+ * a file is sealed, each of its full blocks that matches a block already in the disk's index of
+ * deduplicated blocks is replaced with the indexed block, and the rest are added to the index.
+ *
+ * <p>Files whose content fits within the maximum inline size store it themselves rather than in
+ * blocks from the disk. Such content doesn't count against the size of the disk.
+ *
+ * <p>If tail packing is enabled, the partial last block of a sealed file is replaced with an
+ * exact-size tail. Packed tails count against the size of the disk by their actual size: the disk
+ * reserves just enough whole blocks of space to hold the total size of all packed tails.
+ *
+ * <p>A disk may share a {@link BlockPool} with other disks. New blocks are taken from the pool when
+ * it has any, and freed blocks that don't fit in the disk's own cache are given to the pool, as are
+ * all of the disk's blocks when its file system is closed.
+ *
  * @author Colin Decker
  */
 final class HeapDisk {
 
+  /**
+   * Number of magazines per disk: the smallest power of 2 that is at least the number of available
+   * processors, up to a maximum of 64.
+   */
+  private static final int MAGAZINE_COUNT =
+      Math.min(Util.nextPowerOf2(Runtime.getRuntime().availableProcessors()), 64);
+
+  /** Maximum size of the slabs new blocks are carved out of, for storage that uses slabs. */
+  private static final int MAX_SLAB_SIZE = 4 * 1024 * 1024;
+
   /** Fixed size of each block for this disk. */
   private final int blockSize;
 
+  /** Storage used to create and access blocks for this disk. */
+  private final BlockStorage storage;
+
   /** Maximum total number of blocks that the disk may contain at any time. */
   private final int maxBlockCount;
 
   /** Maximum total number of unused blocks that may be cached for reuse at any time. */
   private final int maxCachedBlockCount;
 
+  /** Number of unused blocks that stay cached when the cache decays or is trimmed. */
+  private final int minCachedBlockCount;
+
+  /** A block of zeros that is never written to, read in place of holes in sparse files. */
+  private final Object zeroBlock;
+
+  /** Compressor for the blocks of cold files, or null if compression is disabled. */
+  @NullableDecl private final BlockCompressor compressor;
+
+  /** Whether or not the full blocks of files are deduplicated when the files are sealed. */
+  private final boolean deduplicate;
+
+  /** Maximum size of file content that is stored inline in the file rather than in blocks. */
+  private final int maxInlineSize;
+
+  /** Whether or not the partial last blocks of files are packed when the files are sealed. */
+  private final boolean packTails;
+
+  /** How the last access times of files are updated when they're read. */
+  private final AccessTimePolicy accessTimePolicy;
+
+  /** Whether or not appends to the same file may copy their bytes concurrently. */
+  private final boolean concurrentAppends;
+
+  /** Whether or not writes to disjoint ranges of the same file may proceed concurrently. */
+  private final boolean concurrentWrites;
+
+  /** Whether or not output streams coalesce small writes before writing them to their file. */
+  private final boolean coalescedStreamWrites;
+
+  /** Pool of blocks shared with other disks, or null if this disk doesn't use one. */
+  @NullableDecl private final BlockPool pool;
+
+  /** Lock guarding the accounting for packed tails. */
+  private final Object tailLock = new Object();
+
+  /** The total size in bytes of the packed tails of files on this disk. */
+  @GuardedBy("tailLock")
+  private long packedTailSize;
+
+  /**
+   * The number of blocks of space reserved for packed tails, which is always just enough to hold
+   * {@code packedTailSize} bytes. These blocks are counted as allocated but don't actually exist.
+   */
+  @GuardedBy("tailLock")
+  private int packedTailBlockCount;
+
   /**
-   * Cache of free blocks to be allocated to files. While this is stored as a file, it isn't used
-   * like a normal file: only the methods for accessing its blocks are used.
+   * Caches of free blocks to be allocated to files. Each thread frees blocks to and allocates
+   * blocks from the magazine its thread ID maps to, only falling back to the other magazines when
+   * its own is empty, so that threads allocating and freeing concurrently rarely contend for the
+   * same lock. While each magazine is stored as a file, it isn't used like a normal file: only the
+   * methods for accessing its blocks are used, while holding the magazine's monitor.
    */
-  @VisibleForTesting final RegularFile blockCache;
+  private final RegularFile[] magazines;
+
+  /**
+   * For each magazine, the fewest blocks it has held since the cache last decayed. Blocks beyond
+   * this number were allocated or freed since then, while the rest have sat idle. Each element is
+   * guarded by the corresponding magazine's monitor.
+   */
+  private final int[] magazineLowMarks = new int[MAGAZINE_COUNT];
+
+  /** Blocks carved out of the most recently allocated slab, for storage that uses slabs. */
+  @GuardedBy("this")
+  private Object[] slab = new Object[0];
+
+  /** Index of the next unused block in {@code slab}. */
+  @GuardedBy("this")
+  private int slabIndex;
+
+  /** Number of blocks to carve out of the next slab. */
+  @GuardedBy("this")
+  private int nextSlabBlockCount = 16;
 
   /** The current total number of blocks that are currently allocated to files. */
-  private int allocatedBlockCount;
+  private final AtomicInteger allocatedBlockCount = new AtomicInteger();
+
+  /**
+   * The current total number of blocks cached in the magazines. Space for blocks is reserved here
+   * before they are added to a magazine, so this may briefly be greater than the actual number of
+   * cached blocks, but is never greater than {@code maxCachedBlockCount}.
+   */
+  private final AtomicInteger cachedBlockCount = new AtomicInteger();
+
+  /** The current total size in bytes of the content of the files using this disk. */
+  private final AtomicLong contentSize = new AtomicLong();
+
+  /**
+   * Number of files referencing each block that is shared by more than one file or deduplicated,
+   * keyed by block identity. Blocks referenced by only a single file are not in the map unless they
+   * are deduplicated.
+   */
+  @GuardedBy("sharedBlocks")
+  private final Map<Object, Integer> sharedBlocks = new IdentityHashMap<>();
+
+  /** Deduplicated blocks, keyed by their content. */
+  @GuardedBy("sharedBlocks")
+  private final Map<BlockContent, Object> dedupIndex = new HashMap<>();
+
+  /** The content keys of deduplicated blocks, keyed by block identity. */
+  @GuardedBy("sharedBlocks")
+  private final Map<Object, BlockContent> dedupedBlocks = new IdentityHashMap<>();
+
+  /** The total number of references files hold to deduplicated blocks. */
+  @GuardedBy("sharedBlocks")
+  private int dedupReferenceCount;
+
+  /** Files that have been deleted but still have streams or channels open to them. */
+  @GuardedBy("pinnedFiles")
+  private final Set<RegularFile> pinnedFiles =
+      Collections.newSetFromMap(new IdentityHashMap<RegularFile, Boolean>());
 
   /** Creates a new disk using settings from the given configuration. */
   public HeapDisk(Configuration config) {
+    this(config, Ticker.systemTicker());
+  }
+
+  /**
+   * Creates a new disk using settings from the given configuration and using the given ticker to
+   * determine when files have gone cold if block compression is enabled.
+   */
+  @VisibleForTesting
+  HeapDisk(Configuration config, Ticker ticker) {
     this.blockSize = config.blockSize;
+    this.storage = config.blockStorage;
     this.maxBlockCount = toBlockCount(config.maxSize, blockSize);
     this.maxCachedBlockCount =
         config.maxCacheSize == -1 ? maxBlockCount : toBlockCount(config.maxCacheSize, blockSize);
-    this.blockCache = createBlockCache(maxCachedBlockCount);
+    this.minCachedBlockCount =
+        Math.min(toBlockCount(config.minCacheSize, blockSize), maxCachedBlockCount);
+    this.zeroBlock = storage.allocate(blockSize);
+    this.compressor =
+        config.blockCompressionDelayNanos == -1 && config.spillDirectory == null
+            ? null
+            : new BlockCompressor(
+                storage,
+                blockSize,
+                config.blockCompressionDelayNanos,
+                toBlockCount(config.maxDecompressedCacheSize, blockSize),
+                config.spillDirectory,
+                ticker);
+    this.deduplicate = config.blockDeduplication;
+    this.maxInlineSize = Math.min(config.maxInlineSize, blockSize);
+    this.packTails = config.tailPacking;
+    this.accessTimePolicy = config.accessTimePolicy;
+    this.concurrentAppends = config.concurrentAppends;
+    this.concurrentWrites = config.concurrentWrites;
+    this.coalescedStreamWrites = config.coalescedStreamWrites;
+    this.pool = config.blockPool;
+    if (pool != null) {
+      checkArgument(
+          pool.blockSize() == blockSize,
+          "block pool's block size (%s) doesn't match the block size (%s)",
+          pool.blockSize(),
+          blockSize);
+      checkArgument(
+          pool.blockStorage() == storage,
+          "block pool's storage (%s) doesn't match the block storage (%s)",
+          pool.blockStorage(),
+          storage);
+    }
+    this.magazines = createMagazines();
   }
 
   /**
    * Creates a new disk with the given {@code blockSize}, {@code maxBlockCount} and {@code
-   * maxCachedBlockCount}.
+   * maxCachedBlockCount}, storing blocks on the heap.
    */
   public HeapDisk(int blockSize, int maxBlockCount, int maxCachedBlockCount) {
+    this(blockSize, maxBlockCount, maxCachedBlockCount, BlockStorage.HEAP);
+  }
+
+  /**
+   * Creates a new disk with the given {@code blockSize}, {@code maxBlockCount} and {@code
+   * maxCachedBlockCount}, using the given {@code storage} for blocks.
+   */
+  public HeapDisk(
+      int blockSize, int maxBlockCount, int maxCachedBlockCount, BlockStorage storage) {
     checkArgument(blockSize > 0, "blockSize (%s) must be positive", blockSize);
     checkArgument(maxBlockCount > 0, "maxBlockCount (%s) must be positive", maxBlockCount);
     checkArgument(
         maxCachedBlockCount >= 0, "maxCachedBlockCount must be non-negative", maxCachedBlockCount);
     this.blockSize = blockSize;
+    this.storage = checkNotNull(storage);
     this.maxBlockCount = maxBlockCount;
     this.maxCachedBlockCount = maxCachedBlockCount;
-    this.blockCache = createBlockCache(maxCachedBlockCount);
+    this.minCachedBlockCount = 0;
+    this.zeroBlock = storage.allocate(blockSize);
+    this.compressor = null;
+    this.deduplicate = false;
+    this.maxInlineSize = 0;
+    this.packTails = false;
+    this.accessTimePolicy = AccessTimePolicy.STRICT;
+    this.concurrentAppends = false;
+    this.concurrentWrites = false;
+    this.coalescedStreamWrites = false;
+    this.pool = null;
+    this.magazines = createMagazines();
   }
 
   /** Returns the nearest multiple of {@code blockSize} that is <= {@code size}. */
@@ -81,8 +297,45 @@ final class HeapDisk {
     return (int) LongMath.divide(size, blockSize, RoundingMode.FLOOR);
   }
 
-  private RegularFile createBlockCache(int maxCachedBlockCount) {
-    return new RegularFile(-1, this, new byte[Math.min(maxCachedBlockCount, 8192)][], 0, 0);
+  private RegularFile[] createMagazines() {
+    RegularFile[] magazines = new RegularFile[MAGAZINE_COUNT];
+    for (int i = 0; i < magazines.length; i++) {
+      magazines[i] = new RegularFile(-1, this, new BlockTable(32), 0, 0, false);
+    }
+    return magazines;
+  }
+
+  /** Returns the index of the magazine the current thread should use first. */
+  private static int magazineIndex() {
+    return (int) Thread.currentThread().getId() & (MAGAZINE_COUNT - 1);
+  }
+
+  /** Returns the magazine the current thread frees blocks to. */
+  @VisibleForTesting
+  RegularFile blockCache() {
+    return magazines[magazineIndex()];
+  }
+
+  /** Returns the current number of blocks allocated to files. */
+  int allocatedBlockCount() {
+    return allocatedBlockCount.get();
+  }
+
+  /** Returns the current total size in bytes of the content of the files using this disk. */
+  long contentSize() {
+    return contentSize.get();
+  }
+
+  /** Adjusts the total content size of the files using this disk by the given number of bytes. */
+  void addContentSize(long delta) {
+    if (delta != 0) {
+      contentSize.addAndGet(delta);
+    }
+  }
+
+  /** Returns the current number of blocks cached for reuse. */
+  int cachedBlockCount() {
+    return cachedBlockCount.get();
   }
 
   /** Returns the size of blocks created by this disk. */
@@ -90,11 +343,175 @@ final class HeapDisk {
     return blockSize;
   }
 
+  /** Returns the storage used for blocks created by this disk. */
+  public BlockStorage storage() {
+    return storage;
+  }
+
+  /** Returns whether or not the partial last blocks of files are packed when they're sealed. */
+  boolean packsTails() {
+    return packTails;
+  }
+
+  /** Returns the total size in bytes of the packed tails of files on this disk. */
+  public long packedTailSize() {
+    synchronized (tailLock) {
+      return packedTailSize;
+    }
+  }
+
+  /** Returns the policy for updating the last access times of files when they're read. */
+  AccessTimePolicy accessTimePolicy() {
+    return accessTimePolicy;
+  }
+
+  /** Returns whether or not appends to the same file may copy their bytes concurrently. */
+  boolean appendsConcurrently() {
+    return concurrentAppends;
+  }
+
+  /** Returns whether or not writes to disjoint ranges of the same file may proceed concurrently. */
+  boolean writesConcurrently() {
+    return concurrentWrites;
+  }
+
+  /** Returns whether or not output streams coalesce small writes before writing them to files. */
+  boolean coalescesStreamWrites() {
+    return coalescedStreamWrites;
+  }
+
+  /**
+   * Returns the maximum size of file content that is stored inline in the file rather than in
+   * blocks, or 0 if file content is always stored in blocks.
+   */
+  int maxInlineSize() {
+    return maxInlineSize;
+  }
+
+  /** Returns a block of zeros that must not be written to, for reading holes in sparse files. */
+  Object zeroBlock() {
+    return zeroBlock;
+  }
+
+  /** Returns the compressor for blocks on this disk, or null if compression is disabled. */
+  @NullableDecl
+  BlockCompressor compressor() {
+    return compressor;
+  }
+
+  /**
+   * Registers a newly created file with this disk, allowing its blocks to be compressed when it
+   * goes cold if compression is enabled.
+   */
+  void register(RegularFile file) {
+    if (compressor != null) {
+      compressor.register(file);
+    }
+  }
+
+  /**
+   * Records that the given file has been deleted but that its content can't be freed yet because
+   * streams or channels are still open to it.
+   */
+  void pin(RegularFile file) {
+    synchronized (pinnedFiles) {
+      pinnedFiles.add(file);
+    }
+  }
+
+  /** Records that the content of the given pinned file is being freed. */
+  void unpin(RegularFile file) {
+    synchronized (pinnedFiles) {
+      pinnedFiles.remove(file);
+    }
+  }
+
+  /** Returns the number of deleted files whose content is still held because they're open. */
+  int pinnedFileCount() {
+    synchronized (pinnedFiles) {
+      return pinnedFiles.size();
+    }
+  }
+
+  /** Returns the total size in bytes of the memory held by deleted files that are still open. */
+  long pinnedSize() {
+    synchronized (pinnedFiles) {
+      long size = 0;
+      for (RegularFile file : pinnedFiles) {
+        size += file.allocatedSize();
+      }
+      return size;
+    }
+  }
+
+  /** Unregisters a file whose content has been deleted. */
+  void unregister(RegularFile file) {
+    if (compressor != null) {
+      compressor.unregister(file);
+    }
+  }
+
+  /** Returns the number of compressed blocks currently stored on this disk. */
+  public int compressedBlockCount() {
+    return compressor == null ? 0 : compressor.compressedBlockCount();
+  }
+
+  /**
+   * Returns the total size in bytes of the compressed blocks currently stored in memory for this
+   * disk.
+   */
+  public long compressedSize() {
+    return compressor == null ? 0 : compressor.compressedSize();
+  }
+
+  /** Returns the number of blocks from this disk currently spilled to a file. */
+  public int spilledBlockCount() {
+    return compressor == null ? 0 : compressor.spilledBlockCount();
+  }
+
+  /** Returns the current size in bytes of the file blocks from this disk are spilled to. */
+  public long spillFileSize() {
+    return compressor == null ? 0 : compressor.spillFileSize();
+  }
+
+  /** Returns whether or not the full blocks of files are deduplicated when the files are sealed. */
+  boolean deduplicatesBlocks() {
+    return deduplicate;
+  }
+
+  /** Returns the number of distinct deduplicated blocks currently stored on this disk. */
+  public int dedupBlockCount() {
+    synchronized (sharedBlocks) {
+      return dedupedBlocks.size();
+    }
+  }
+
+  /**
+   * Returns the number of references files currently hold to deduplicated blocks on this disk. The
+   * difference between this and {@link #dedupBlockCount()} is the number of blocks saved.
+   */
+  public int dedupReferenceCount() {
+    synchronized (sharedBlocks) {
+      return dedupReferenceCount;
+    }
+  }
+
+  /**
+   * Returns the ratio of references to deduplicated blocks to distinct deduplicated blocks on this
+   * disk, or 1.0 if there are no deduplicated blocks.
+   */
+  public double dedupRatio() {
+    synchronized (sharedBlocks) {
+      int blockCount = dedupedBlocks.size();
+      return blockCount == 0 ? 1.0 : (double) dedupReferenceCount / blockCount;
+    }
+  }
+
   /**
    * Returns the total size of this disk. This is the maximum size of the disk and does not reflect
    * the amount of data currently allocated or cached.
    */
-  public synchronized long getTotalSpace() {
+  public long getTotalSpace() {
     return maxBlockCount * (long) blockSize;
   }
 
@@ -103,28 +520,219 @@ final class HeapDisk {
    * additional bytes that could be allocated and does not reflect the number of bytes currently
    * actually cached in the disk.
    */
-  public synchronized long getUnallocatedSpace() {
-    return (maxBlockCount - allocatedBlockCount) * (long) blockSize;
+  public long getUnallocatedSpace() {
+    synchronized (tailLock) {
+      long unusedTailSpace = packedTailBlockCount * (long) blockSize - packedTailSize;
+      return (maxBlockCount - allocatedBlockCount.get()) * (long) blockSize + unusedTailSpace;
+    }
   }
 
   /** Allocates the given number of blocks and adds them to the given file. */
-  public synchronized void allocate(RegularFile file, int count) throws IOException {
-    int newAllocatedBlockCount = allocatedBlockCount + count;
-    if (newAllocatedBlockCount > maxBlockCount) {
+  public void allocate(RegularFile file, int count) throws IOException {
+    allocate(file, count, count);
+  }
+
+  /**
+   * Allocates at least {@code minCount} and at most {@code maxCount} blocks, as many as the disk
+   * has space for, and adds them to the given file. Returns the number of blocks allocated.
+   */
+  public int allocate(RegularFile file, int minCount, int maxCount) throws IOException {
+    int count = reserve(minCount, maxCount);
+
+    int fromCache = 0;
+    int index = magazineIndex();
+    for (int i = 0; i < MAGAZINE_COUNT && fromCache < count; i++) {
+      int m = (index + i) & (MAGAZINE_COUNT - 1);
+      RegularFile magazine = magazines[m];
+      synchronized (magazine) {
+        int transfer = Math.min(count - fromCache, magazine.blockCount());
+        magazine.transferBlocksTo(file, transfer);
+        updateLowMark(m);
+        fromCache += transfer;
+      }
+    }
+
+    if (fromCache > 0) {
+      cachedBlockCount.addAndGet(-fromCache);
+    }
+
+    for (int i = fromCache; i < count; i++) {
+      file.addBlock(newBlock());
+    }
+    return count;
+  }
+
+  /** Allocates a single block for the caller to add to a file. */
+  Object allocateBlock() throws IOException {
+    reserve(1, 1);
+    return takeBlock();
+  }
+
+  /** Takes a block from the cache or creates a new one, once space for it has been reserved. */
+  private Object takeBlock() {
+    int index = magazineIndex();
+    for (int i = 0; i < MAGAZINE_COUNT; i++) {
+      int m = (index + i) & (MAGAZINE_COUNT - 1);
+      RegularFile magazine = magazines[m];
+      synchronized (magazine) {
+        int cached = magazine.blockCount();
+        if (cached > 0) {
+          Object block = magazine.getBlock(cached - 1);
+          magazine.truncateBlocks(cached - 1);
+          updateLowMark(m);
+          cachedBlockCount.decrementAndGet();
+          return block;
+        }
+      }
+    }
+
+    return newBlock();
+  }
+
+  /**
+   * Creates a new block, taking it from the block pool if possible and otherwise carving it out of
+   * a slab if the storage uses slabs.
+   */
+  private Object newBlock() {
+    if (pool != null) {
+      Object block = pool.poll();
+      if (block != null) {
+        return block;
+      }
+    }
+    return storage.usesSlabs() ? newSlabBlock() : storage.allocate(blockSize);
+  }
+
+  /**
+   * Returns the next unused block carved out of the current slab, allocating a new slab when the
+   * current one is used up. Each slab is twice the size of the last, up to {@link #MAX_SLAB_SIZE}
+   * or the size of the disk, so that small disks don't allocate much more memory than they use.
+   */
+  private synchronized Object newSlabBlock() {
+    if (slabIndex == slab.length) {
+      int maxSlabBlockCount = Math.max(1, Math.min(MAX_SLAB_SIZE / blockSize, maxBlockCount));
+      slab = storage.allocateSlab(blockSize, Math.min(nextSlabBlockCount, maxSlabBlockCount));
+      slabIndex = 0;
+      nextSlabBlockCount = Math.min(nextSlabBlockCount * 2, maxSlabBlockCount);
+    }
+
+    Object block = slab[slabIndex];
+    slab[slabIndex++] = null;
+    return block;
+  }
+
+  /**
+   * Reserves space for at least {@code minCount} and at most {@code maxCount} blocks, returning the
+   * number of blocks reserved. If the disk is full and blocks are spilled to a file, the blocks of
+   * the least recently used files are spilled to make room.
+   *
+   * @throws IOException if the disk doesn't have space for {@code minCount} blocks
+   */
+  private int reserve(int minCount, int maxCount) throws IOException {
+    int count = tryReserve(minCount, maxCount);
+    // evicting takes file monitors, which must not be waited for while holding the shared block
+    // lock, since a file being deleted holds its monitor while releasing its shared blocks
+    if (count == -1
+        && compressor != null
+        && compressor.spills()
+        && !Thread.holdsLock(sharedBlocks)) {
+      // evict more than needed so that every allocation doesn't have to evict
+      compressor.evict(Math.max(minCount, maxBlockCount / 16));
+      count = tryReserve(minCount, maxCount);
+    }
+    if (count == -1) {
       throw new IOException("out of disk space");
     }
+    return count;
+  }
+
+  /**
+   * Reserves space for at least {@code minCount} and at most {@code maxCount} blocks, returning the
+   * number of blocks reserved or -1 if the disk doesn't have space for {@code minCount} blocks.
+   */
+  private int tryReserve(int minCount, int maxCount) {
+    while (true) {
+      int allocated = allocatedBlockCount.get();
+      int count = Math.min(maxCount, maxBlockCount - allocated);
+      if (count < minCount) {
+        return -1;
+      }
+      if (allocatedBlockCount.compareAndSet(allocated, allocated + count)) {
+        return count;
+      }
+    }
+  }
+
+  /** Returns the number of blocks needed to hold {@code size} bytes. */
+  private int toBlockCountRoundingUp(long size) {
+    return (int) LongMath.divide(size, blockSize, RoundingMode.CEILING);
+  }
+
+  /**
+   * Reserves space for a packed tail of the given size, returning false if the disk doesn't have
+   * space for it.
+   */
+  boolean reserveTail(int size) {
+    synchronized (tailLock) {
+      int blockCount = toBlockCountRoundingUp(packedTailSize + size);
+      int additional = blockCount - packedTailBlockCount;
+      if (additional > 0 && tryReserve(additional, additional) == -1) {
+        return false;
+      }
+      packedTailBlockCount = blockCount;
+      packedTailSize += size;
+      return true;
+    }
+  }
 
-    int newBlocksNeeded = Math.max(count - blockCache.blockCount(), 0);
+  /**
+   * Frees the partial last block of the given file, whose content has been packed into a tail of
+   * the given size, and reserves space for the tail. The space the block used is reserved for
+   * tails if needed, so this never fails for lack of space.
+   */
+  void packTail(RegularFile file, int size) {
+    synchronized (tailLock) {
+      int blockCount = toBlockCountRoundingUp(packedTailSize + size);
+      if (blockCount > packedTailBlockCount) {
+        // the tail needs at most one more block, since it's smaller than a block
+        allocatedBlockCount.incrementAndGet();
+        packedTailBlockCount = blockCount;
+      }
+      packedTailSize += size;
+    }
+    free(file, 1);
+  }
 
-    for (int i = 0; i < newBlocksNeeded; i++) {
-      file.addBlock(new byte[blockSize]);
+  /** Releases the space reserved for a packed tail of the given size. */
+  void releaseTail(int size) {
+    synchronized (tailLock) {
+      packedTailSize -= size;
+      int blockCount = toBlockCountRoundingUp(packedTailSize);
+      if (blockCount < packedTailBlockCount) {
+        allocatedBlockCount.addAndGet(blockCount - packedTailBlockCount);
+        packedTailBlockCount = blockCount;
+      }
     }
+  }
 
-    if (newBlocksNeeded != count) {
-      blockCache.transferBlocksTo(file, count - newBlocksNeeded);
+  /**
+   * Releases the space reserved for a packed tail of the given size and allocates a block to
+   * unpack it into. The released space is used for the block if it frees up a whole block.
+   *
+   * @throws IOException if the disk is full
+   */
+  Object unpackTail(int size) throws IOException {
+    synchronized (tailLock) {
+      if (toBlockCountRoundingUp(packedTailSize - size) < packedTailBlockCount) {
+        packedTailSize -= size;
+        packedTailBlockCount--;
+        return takeBlock();
+      }
     }
 
-    allocatedBlockCount = newAllocatedBlockCount;
+    reserve(1, 1);
+    releaseTail(size);
+    return takeBlock();
   }
 
   /** Frees all blocks in the given file. */
@@ -133,13 +741,318 @@ final class HeapDisk {
   }
 
   /** Frees the last {@code count} blocks from the given file. */
-  public synchronized void free(RegularFile file, int count) {
-    int remainingCacheSpace = maxCachedBlockCount - blockCache.blockCount();
-    if (remainingCacheSpace > 0) {
-      file.copyBlocksTo(blockCache, Math.min(count, remainingCacheSpace));
+  public void free(RegularFile file, int count) {
+    int start = file.blockCount() - count;
+    if (file.isSparse() || file.hasCompressedBlocks() || file.mayShareBlocks(start)) {
+      freeEach(file, start);
+      return;
     }
-    file.truncateBlocks(file.blockCount() - count);
 
-    allocatedBlockCount -= count;
+    int toCache = reserveCacheSpace(count);
+    if (toCache > 0) {
+      RegularFile magazine = magazines[magazineIndex()];
+      synchronized (magazine) {
+        file.copyBlocksTo(magazine, toCache);
+      }
+    }
+    if (pool != null) {
+      // the last toCache blocks went to the cache
+      for (int i = start; i < start + count - toCache; i++) {
+        pool.offer(file.getBlock(i));
+      }
+    }
+    file.truncateBlocks(start);
+
+    allocatedBlockCount.addAndGet(-count);
+  }
+
+  /**
+   * Frees the blocks of the given file starting at index {@code start}, some of which may be holes,
+   * compressed or shared with other files. Shared blocks are only released by the file, holes are
+   * skipped and the rest are actually freed.
+   */
+  private void freeEach(RegularFile file, int start) {
+    int blockCount = file.blockCount();
+    for (int i = start; i < blockCount; i++) {
+      Object block = file.getBlock(i);
+      if (block instanceof CompressedBlock) {
+        releaseCompressed((CompressedBlock) block, file.mayShareBlock(i));
+      } else if (block != null && (!file.mayShareBlock(i) || !release(block))) {
+        freeBlock(block);
+      }
+    }
+    file.truncateBlocks(start);
+  }
+
+  /** Frees a single block that has been removed from a file. */
+  void freeBlock(Object block) {
+    if (reserveCacheSpace(1) == 1) {
+      RegularFile magazine = magazines[magazineIndex()];
+      synchronized (magazine) {
+        magazine.addBlock(block);
+      }
+    } else if (pool != null) {
+      pool.offer(block);
+    }
+    allocatedBlockCount.decrementAndGet();
+  }
+
+  /**
+   * Releases a file's reference to the given compressed block, discarding the block if no other
+   * file references it.
+   */
+  void releaseCompressed(CompressedBlock block, boolean mayBeShared) {
+    if (!mayBeShared || !release(block)) {
+      compressor.discard(block);
+    }
+  }
+
+  /**
+   * Records that the first {@code count} blocks of the given file, which is on this disk, are now
+   * also referenced by another file. Holes are ignored.
+   */
+  void share(RegularFile file, int count) {
+    synchronized (sharedBlocks) {
+      for (int i = 0; i < count; i++) {
+        Object block = file.getBlock(i);
+        if (block != null) {
+          addReference(block);
+        }
+      }
+    }
+  }
+
+  /**
+   * Records that the given block, which belongs to a file on this disk, is now also referenced by
+   * another file.
+   */
+  void share(Object block) {
+    synchronized (sharedBlocks) {
+      addReference(block);
+    }
+  }
+
+  @GuardedBy("sharedBlocks")
+  private void addReference(Object block) {
+    Integer refs = sharedBlocks.get(block);
+    sharedBlocks.put(block, refs == null ? 2 : refs + 1);
+    if (dedupedBlocks.containsKey(block)) {
+      dedupReferenceCount++;
+    }
+  }
+
+  /**
+   * Returns a deduplicated block with the same content as the given full, unshared block of a file
+   * that is being sealed, for the file to reference in its place. If no identical block is indexed
+   * yet, the given block is indexed and returned; otherwise, the given block is freed and the
+   * indexed block is returned.
+   */
+  Object deduplicate(Object block) {
+    // hash before taking the lock; the block can't change while its file is being sealed
+    BlockContent content = new BlockContent(block, storage.contentHashCode(block));
+    Object indexed;
+    synchronized (sharedBlocks) {
+      dedupReferenceCount++;
+      indexed = dedupIndex.get(content);
+      if (indexed == null) {
+        dedupIndex.put(content, block);
+        dedupedBlocks.put(block, content);
+        sharedBlocks.put(block, 1);
+        return block;
+      }
+      sharedBlocks.put(indexed, sharedBlocks.get(indexed) + 1);
+    }
+    freeBlock(block);
+    return indexed;
+  }
+
+  /** Removes the given block from the deduplication index if it's indexed. */
+  @GuardedBy("sharedBlocks")
+  private void unindex(Object block) {
+    BlockContent content = dedupedBlocks.remove(block);
+    if (content != null) {
+      dedupIndex.remove(content);
+    }
+  }
+
+  /**
+   * Returns a block a file may write to in place of the given block. If the block is no longer
+   * shared with any other file, it's returned as is. Otherwise, a new block containing a copy of
+   * its content is allocated and returned and the file's reference to the shared block is
+   * released.
+   *
+   * @throws IOException if a copy is needed but the disk is full
+   */
+  Object copyOnWrite(Object block) throws IOException {
+    synchronized (sharedBlocks) {
+      // the copy must be complete before the reference is released, since the last file
+      // referencing the block may write to it in place as soon as it isn't shared
+      Integer refs = sharedBlocks.get(block);
+      if (refs == null) {
+        return block;
+      }
+      if (refs == 1) {
+        // a deduplicated block only this file references; it just has to leave the index
+        sharedBlocks.remove(block);
+        unindex(block);
+        dedupReferenceCount--;
+        return block;
+      }
+      Object copy = allocateBlock();
+      storage.copy(block, copy);
+      release(block);
+      return copy;
+    }
+  }
+
+  /**
+   * Releases one reference to the given block if it is shared, returning {@code true}. Returns
+   * {@code false} if the block isn't shared, in which case the caller is its only owner. A
+   * deduplicated block is removed from the index when its last reference is released.
+   */
+  private boolean release(Object block) {
+    synchronized (sharedBlocks) {
+      Integer refs = sharedBlocks.get(block);
+      if (refs == null) {
+        return false;
+      }
+      boolean deduped = dedupedBlocks.containsKey(block);
+      if (deduped) {
+        dedupReferenceCount--;
+      }
+      if (refs == 1) {
+        sharedBlocks.remove(block);
+        unindex(block);
+        return false;
+      }
+      if (refs == 2 && !deduped) {
+        sharedBlocks.remove(block);
+      } else {
+        sharedBlocks.put(block, refs - 1);
+      }
+      return true;
+    }
+  }
+
+  /**
+   * Records the current size of the magazine at index {@code m} if it's the fewest blocks it has
+   * held since the cache last decayed. Called while holding the magazine's monitor.
+   */
+  private void updateLowMark(int m) {
+    magazineLowMarks[m] = Math.min(magazineLowMarks[m], magazines[m].blockCount());
+  }
+
+  /**
+   * Releases cached blocks that haven't been reused since the last time the cache decayed for
+   * garbage collection, leaving at least the minimum number of blocks cached. Called periodically
+   * when cache decay is enabled.
+   */
+  void decayCache() {
+    for (int m = 0; m < MAGAZINE_COUNT; m++) {
+      RegularFile magazine = magazines[m];
+      synchronized (magazine) {
+        releaseCachedBlocks(magazine, magazineLowMarks[m]);
+        magazineLowMarks[m] = magazine.blockCount();
+      }
+    }
+  }
+
+  /** Returns whether or not this disk shares a block pool with other disks. */
+  boolean hasBlockPool() {
+    return pool != null;
+  }
+
+  /**
+   * Moves all cached blocks to the block pool. Called when the file system is closed, after the
+   * blocks of its files have been freed.
+   */
+  void returnCachedBlocksToPool() {
+    for (int m = 0; m < MAGAZINE_COUNT; m++) {
+      RegularFile magazine = magazines[m];
+      synchronized (magazine) {
+        int cached = magazine.blockCount();
+        for (int i = 0; i < cached; i++) {
+          pool.offer(magazine.getBlock(i));
+        }
+        magazine.truncateBlocks(0);
+        magazineLowMarks[m] = 0;
+        cachedBlockCount.addAndGet(-cached);
+      }
+    }
+  }
+
+  /**
+   * Releases all cached blocks for garbage collection, leaving only the minimum number of blocks
+   * cached.
+   */
+  public void trim() {
+    for (int m = 0; m < MAGAZINE_COUNT; m++) {
+      RegularFile magazine = magazines[m];
+      synchronized (magazine) {
+        releaseCachedBlocks(magazine, magazine.blockCount());
+        magazineLowMarks[m] = magazine.blockCount();
+      }
+    }
+  }
+
+  /**
+   * Removes up to {@code count} blocks from the given magazine, as long as that leaves the minimum
+   * number of blocks cached. Called while holding the magazine's monitor.
+   */
+  private void releaseCachedBlocks(RegularFile magazine, int count) {
+    while (true) {
+      int cached = cachedBlockCount.get();
+      int toRelease = Math.min(count, cached - minCachedBlockCount);
+      if (toRelease <= 0) {
+        return;
+      }
+      if (cachedBlockCount.compareAndSet(cached, cached - toRelease)) {
+        magazine.truncateBlocks(magazine.blockCount() - toRelease);
+        return;
+      }
+    }
+  }
+
+  /**
+   * Reserves space in the cache for up to {@code count} blocks, returning the number of blocks
+   * that may be cached.
+   */
+  private int reserveCacheSpace(int count) {
+    while (true) {
+      int cached = cachedBlockCount.get();
+      int toCache = Math.min(count, maxCachedBlockCount - cached);
+      if (toCache <= 0) {
+        return 0;
+      }
+      if (cachedBlockCount.compareAndSet(cached, cached + toCache)) {
+        return toCache;
+      }
+    }
+  }
+
+  /** Key for a deduplicated block, comparing blocks by content. */
+  private final class BlockContent {
+
+    private final Object block;
+    private final int hash;
+
+    BlockContent(Object block, int hash) {
+      this.block = block;
+      this.hash = hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (obj instanceof BlockContent) {
+        BlockContent other = (BlockContent) obj;
+        return hash == other.hash && storage.contentEquals(block, other.block);
+      }
+      return false;
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
   }
 }
@@ -136,6 +136,21 @@ public final class Jimfs {
     }
   }
 
+  /**
+   * Releases the unused space the given Jimfs file system has cached for reuse for garbage
+   * collection, down to its {@linkplain Configuration.Builder#setMinCacheSize(long) minimum cache
+   * size}. This can be called after deleting a lot of files when the space they used isn't
+   * expected to be needed again soon.
+   *
+   * @throws IllegalArgumentException if the file system isn't a Jimfs file system
+   * @throws java.nio.file.ClosedFileSystemException if the file system is closed
+   */
+  public static void trim(FileSystem fileSystem) {
+    checkArgument(
+        fileSystem instanceof JimfsFileSystem, "not a Jimfs file system: %s", fileSystem);
+    ((JimfsFileSystem) fileSystem).getFileStore().trim();
+  }
+
   @VisibleForTesting
   static FileSystem newFileSystem(URI uri, Configuration config) {
     checkArgument(
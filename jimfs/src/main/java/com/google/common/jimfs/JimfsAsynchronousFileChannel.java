@@ -84,8 +84,7 @@ final class JimfsAsynchronousFileChannel extends AsynchronousFileChannel {
   }
 
   @Override
-  public ListenableFuture<FileLock> lock(
-      final long position, final long size, final boolean shared) {
+  public ListenableFuture<FileLock> lock(long position, long size, boolean shared) {
     Util.checkNotNegative(position, "position");
     Util.checkNotNegative(size, "size");
     if (!isOpen()) {
@@ -96,13 +95,9 @@ final class JimfsAsynchronousFileChannel extends AsynchronousFileChannel {
     } else {
       channel.checkWritable();
     }
-    return executor.submit(
-        new Callable<FileLock>() {
-          @Override
-          public FileLock call() throws IOException {
-            return tryLock(position, size, shared);
-          }
-        });
+    FileLockTable table = channel.lockTable();
+    return table.lock(
+        new FileLockTable.JimfsFileLock(table, channel, this, position, size, shared));
   }
 
   @Override
@@ -115,7 +110,10 @@ final class JimfsAsynchronousFileChannel extends AsynchronousFileChannel {
     } else {
       channel.checkWritable();
     }
-    return new JimfsFileChannel.FakeFileLock(this, position, size, shared);
+    FileLockTable table = channel.lockTable();
+    FileLockTable.JimfsFileLock lock =
+        new FileLockTable.JimfsFileLock(table, channel, this, position, size, shared);
+    return table.tryLock(lock) ? lock : null;
   }
 
   @Override
@@ -16,12 +16,14 @@
 
 package com.google.common.jimfs;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkPositionIndexes;
 import static java.nio.file.StandardOpenOption.APPEND;
 import static java.nio.file.StandardOpenOption.READ;
 import static java.nio.file.StandardOpenOption.WRITE;
 
+import com.google.common.util.concurrent.ListenableFuture;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
@@ -37,12 +39,10 @@ import java.nio.channels.NonWritableChannelException;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
 import java.nio.file.OpenOption;
-import java.util.Arrays;
 import java.util.HashSet;
-import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * A {@link FileChannel} implementation that reads and writes to a {@link RegularFile} object. The
@@ -152,17 +152,20 @@ final class JimfsFileChannel extends FileChannel {
         if (!beginBlocking()) {
           return 0; // AsynchronousCloseException will be thrown
         }
-        file.readLock().lockInterruptibly();
-        try {
-          read = file.read(position, dst);
-          if (read != -1) {
-            position += read;
+        read = file.tryRead(position, dst);
+        if (read == RegularFile.READ_CONFLICT) {
+          file.readLock().lockInterruptibly();
+          try {
+            read = file.read(position, dst);
+          } finally {
+            file.readLock().unlock();
           }
-          file.updateAccessTime();
-          completed = true;
-        } finally {
-          file.readLock().unlock();
         }
+        if (read != -1) {
+          position += read;
+        }
+        file.updateAccessTime(file.accessTimePolicy());
+        completed = true;
       } catch (InterruptedException e) {
         Thread.currentThread().interrupt();
       } finally {
@@ -176,8 +179,7 @@ final class JimfsFileChannel extends FileChannel {
   @Override
   public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
     checkPositionIndexes(offset, offset + length, dsts.length);
-    List<ByteBuffer> buffers = Arrays.asList(dsts).subList(offset, offset + length);
-    Util.checkNoneNull(buffers);
+    Util.checkNoneNull(dsts, offset, length);
     checkOpen();
     checkReadable();
 
@@ -191,11 +193,11 @@ final class JimfsFileChannel extends FileChannel {
         }
         file.readLock().lockInterruptibly();
         try {
-          read = file.read(position, buffers);
+          read = file.read(position, dsts, offset, length);
           if (read != -1) {
             position += read;
           }
-          file.updateAccessTime();
+          file.updateAccessTime(file.accessTimePolicy());
           completed = true;
         } finally {
           file.readLock().unlock();
@@ -225,14 +227,17 @@ final class JimfsFileChannel extends FileChannel {
       if (!beginBlocking()) {
         return 0; // AsynchronousCloseException will be thrown
       }
-      file.readLock().lockInterruptibly();
-      try {
-        read = file.read(position, dst);
-        file.updateAccessTime();
-        completed = true;
-      } finally {
-        file.readLock().unlock();
+      read = file.tryRead(position, dst);
+      if (read == RegularFile.READ_CONFLICT) {
+        file.readLock().lockInterruptibly();
+        try {
+          read = file.read(position, dst);
+        } finally {
+          file.readLock().unlock();
+        }
       }
+      file.updateAccessTime(file.accessTimePolicy());
+      completed = true;
     } catch (InterruptedException e) {
       Thread.currentThread().interrupt();
     } finally {
@@ -256,10 +261,26 @@ final class JimfsFileChannel extends FileChannel {
         if (!beginBlocking()) {
           return 0; // AsynchronousCloseException will be thrown
         }
+        if (append && file.appendsConcurrently()) {
+          long appended = tryAppend(new ByteBuffer[] {src}, 0, 1);
+          if (appended != -1) {
+            written = (int) appended;
+            completed = true;
+            return written;
+          }
+        } else if (!append && file.writesConcurrently()) {
+          long inPlace = tryWriteInPlace(new ByteBuffer[] {src}, 0, 1, position);
+          if (inPlace != -1) {
+            written = (int) inPlace;
+            position += written;
+            completed = true;
+            return written;
+          }
+        }
         file.writeLock().lockInterruptibly();
         try {
           if (append) {
-            position = file.size();
+            position = file.sizeWithoutLocking();
           }
           written = file.write(position, src);
           position += written;
@@ -281,8 +302,7 @@ final class JimfsFileChannel extends FileChannel {
   @Override
   public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
     checkPositionIndexes(offset, offset + length, srcs.length);
-    List<ByteBuffer> buffers = Arrays.asList(srcs).subList(offset, offset + length);
-    Util.checkNoneNull(buffers);
+    Util.checkNoneNull(srcs, offset, length);
     checkOpen();
     checkWritable();
 
@@ -294,12 +314,26 @@ final class JimfsFileChannel extends FileChannel {
         if (!beginBlocking()) {
           return 0; // AsynchronousCloseException will be thrown
         }
+        if (append && file.appendsConcurrently()) {
+          written = tryAppend(srcs, offset, length);
+          if (written != -1) {
+            completed = true;
+            return written;
+          }
+        } else if (!append && file.writesConcurrently()) {
+          written = tryWriteInPlace(srcs, offset, length, position);
+          if (written != -1) {
+            position += written;
+            completed = true;
+            return written;
+          }
+        }
         file.writeLock().lockInterruptibly();
         try {
           if (append) {
-            position = file.size();
+            position = file.sizeWithoutLocking();
           }
-          written = file.write(position, buffers);
+          written = file.write(position, srcs, offset, length);
           position += written;
           file.updateModifiedTime();
           completed = true;
@@ -316,6 +350,47 @@ final class JimfsFileChannel extends FileChannel {
     return written;
   }
 
+  /**
+   * Tries to append the given buffers to the file while holding only its read lock, so that appends
+   * through other channels can copy their bytes at the same time. Returns the number of bytes
+   * written, or -1 if they must be appended while holding the write lock instead.
+   */
+  @GuardedBy("this")
+  private long tryAppend(ByteBuffer[] srcs, int offset, int length) throws InterruptedException {
+    long len = Util.remaining(srcs, offset, length);
+    file.readLock().lockInterruptibly();
+    try {
+      long end = file.tryAppend(srcs, offset, length);
+      if (end == RegularFile.APPEND_CONFLICT) {
+        return -1;
+      }
+      position = end;
+      return len;
+    } finally {
+      file.readLock().unlock();
+    }
+  }
+
+  /**
+   * Tries to write the given buffers to the file at the given position while holding only its read
+   * lock and a lock on the range of bytes written, so that writes through other channels to other
+   * ranges of the file can proceed at the same time. Returns the number of bytes written, or -1 if
+   * they must be written while holding the write lock instead.
+   */
+  private long tryWriteInPlace(ByteBuffer[] srcs, int offset, int length, long position)
+      throws InterruptedException {
+    file.readLock().lockInterruptibly();
+    try {
+      long written = file.tryWriteInPlace(position, srcs, offset, length);
+      if (written != RegularFile.WRITE_CONFLICT) {
+        file.updateModifiedTime();
+      }
+      return written;
+    } finally {
+      file.readLock().unlock();
+    }
+  }
+
   @Override
   public int write(ByteBuffer src, long position) throws IOException {
     checkNotNull(src);
@@ -357,6 +432,14 @@ final class JimfsFileChannel extends FileChannel {
         if (!beginBlocking()) {
           return 0; // AsynchronousCloseException will be thrown
         }
+        if (file.writesConcurrently()) {
+          long inPlace = tryWriteInPlace(new ByteBuffer[] {src}, 0, 1, position);
+          if (inPlace != -1) {
+            written = (int) inPlace;
+            completed = true;
+            return written;
+          }
+        }
         file.writeLock().lockInterruptibly();
         try {
           written = file.write(position, src);
@@ -484,11 +567,12 @@ final class JimfsFileChannel extends FileChannel {
   public void force(boolean metaData) throws IOException {
     checkOpen();
 
-    // nothing to do since writes are all direct to the storage
-    // however, we should handle the thread being interrupted anyway
+    // writes are all direct to the storage, other than changes made to mapped buffers
+    // we should handle the thread being interrupted anyway
     boolean completed = false;
     try {
       begin();
+      file.writeBackMappedChanges();
       completed = true;
     } finally {
       end(completed);
@@ -511,10 +595,15 @@ final class JimfsFileChannel extends FileChannel {
       if (!beginBlocking()) {
         return 0; // AsynchronousCloseException will be thrown
       }
+      if (target instanceof JimfsFileChannel && ((JimfsFileChannel) target).file != file) {
+        transferred = ((JimfsFileChannel) target).transferFromFile(file, position, count);
+        completed = true;
+        return transferred;
+      }
       file.readLock().lockInterruptibly();
       try {
         transferred = file.transferTo(position, count, target);
-        file.updateAccessTime();
+        file.updateAccessTime(file.accessTimePolicy());
         completed = true;
       } finally {
         file.readLock().unlock();
@@ -570,6 +659,11 @@ final class JimfsFileChannel extends FileChannel {
         if (!beginBlocking()) {
           return 0; // AsynchronousCloseException will be thrown
         }
+        if (src instanceof JimfsFileChannel && ((JimfsFileChannel) src).file != file) {
+          transferred = ((JimfsFileChannel) src).transferToFile(file, position, count);
+          completed = true;
+          return transferred;
+        }
         file.writeLock().lockInterruptibly();
         try {
           transferred = file.transferFrom(src, position, count);
@@ -588,30 +682,137 @@ final class JimfsFileChannel extends FileChannel {
     return transferred;
   }
 
+  /**
+   * Transfers up to {@code count} bytes starting at position {@code srcPos} in the given file
+   * directly to this channel's file at this channel's position, as if by writing them to this
+   * channel. Implements {@link #transferTo} from another Jimfs channel to this one; the calling
+   * channel is responsible for blocking.
+   */
+  private long transferFromFile(RegularFile src, long srcPos, long count)
+      throws IOException, InterruptedException {
+    synchronized (this) {
+      checkOpen();
+      checkWritable();
+
+      RegularFile.lockForTransfer(src, file);
+      try {
+        if (append) {
+          position = file.sizeWithoutLocking();
+        }
+        long transferred = src.transferTo(srcPos, count, file, position);
+        position += transferred;
+        src.updateAccessTime(src.accessTimePolicy());
+        file.updateModifiedTime();
+        return transferred;
+      } finally {
+        RegularFile.unlockForTransfer(src, file);
+      }
+    }
+  }
+
+  /**
+   * Transfers up to {@code count} bytes starting at this channel's position in its file directly
+   * to the given file at position {@code destPos}, as if by reading them from this channel.
+   * Implements {@link #transferFrom} from this channel to another Jimfs channel; the calling
+   * channel is responsible for blocking.
+   */
+  private long transferToFile(RegularFile dest, long destPos, long count)
+      throws IOException, InterruptedException {
+    synchronized (this) {
+      checkOpen();
+      checkReadable();
+
+      RegularFile.lockForTransfer(file, dest);
+      try {
+        if (destPos > dest.sizeWithoutLocking()) {
+          return 0;
+        }
+        long transferred = file.transferTo(position, count, dest, destPos);
+        position += transferred;
+        file.updateAccessTime(file.accessTimePolicy());
+        dest.updateModifiedTime();
+        return transferred;
+      } finally {
+        RegularFile.unlockForTransfer(file, dest);
+      }
+    }
+  }
+
   @Override
   public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
-    // would like this to pretend to work, but can't create an implementation of MappedByteBuffer
-    // well, a direct buffer could be cast to MappedByteBuffer, but it couldn't work in general
-    throw new UnsupportedOperationException();
+    checkNotNull(mode);
+    Util.checkNotNegative(position, "position");
+    Util.checkNotNegative(size, "size");
+    checkArgument(size <= Integer.MAX_VALUE, "size (%s) > Integer.MAX_VALUE", size);
+    checkArgument(position + size >= 0, "position (%s) + size (%s) overflows", position, size);
+    checkOpen();
+    if (mode != MapMode.READ_ONLY) {
+      checkWritable();
+    }
+    checkReadable();
+
+    // the blocks of the file can't be exposed as a single buffer, so the mapped buffer holds a copy
+    // of the region that the file keeps up to date with writes to it; changes made to the buffer in
+    // READ_WRITE mode are written back to the file when it's forced or mapped again, and when this
+    // channel is closed
+    MappedByteBuffer mapped = null; // will be assigned unless an exception is thrown
+
+    boolean completed = false;
+    try {
+      if (!beginBlocking()) {
+        return null; // AsynchronousCloseException will be thrown
+      }
+      file.writeLock().lockInterruptibly();
+      try {
+        if (!write && position + size > file.sizeWithoutLocking()) {
+          throw new IOException("channel not open for writing; can't grow file to map region");
+        }
+        mapped = file.map(mode, position, (int) size, this);
+        completed = true;
+      } finally {
+        file.writeLock().unlock();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      endBlocking(completed);
+    }
+
+    return mapped;
   }
 
   @Override
   public FileLock lock(long position, long size, boolean shared) throws IOException {
     checkLockArguments(position, size, shared);
 
+    FileLockTable table = file.lockTable();
+    FileLockTable.JimfsFileLock lock =
+        new FileLockTable.JimfsFileLock(table, this, position, size, shared);
+    ListenableFuture<FileLock> granted = table.lock(lock);
+
     // lock is interruptible
     boolean completed = false;
     try {
-      begin();
-      completed = true;
-      return new FakeFileLock(this, position, size, shared);
+      if (beginBlocking()) {
+        granted.get();
+        completed = true;
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException e) {
+      // the request failed because the channel was closed, which endBlocking reports
     } finally {
+      if (!completed && !granted.cancel(false)) {
+        // the lock was granted anyway
+        lock.release();
+      }
       try {
-        end(completed);
+        endBlocking(completed);
       } catch (ClosedByInterruptException e) {
         throw new FileLockInterruptionException();
       }
     }
+    return lock;
   }
 
   @Override
@@ -619,7 +820,15 @@ final class JimfsFileChannel extends FileChannel {
     checkLockArguments(position, size, shared);
 
     // tryLock is not interruptible
-    return new FakeFileLock(this, position, size, shared);
+    FileLockTable table = file.lockTable();
+    FileLockTable.JimfsFileLock lock =
+        new FileLockTable.JimfsFileLock(table, this, position, size, shared);
+    return table.tryLock(lock) ? lock : null;
+  }
+
+  /** Returns the table of byte-range locks held on this channel's file. */
+  FileLockTable lockTable() {
+    return file.lockTable();
   }
 
   private void checkLockArguments(long position, long size, boolean shared) throws IOException {
@@ -634,7 +843,7 @@ final class JimfsFileChannel extends FileChannel {
   }
 
   @Override
-  protected void implCloseChannel() {
+  protected void implCloseChannel() throws IOException {
     // interrupt the current blocking threads, if any, causing them to throw
     // ClosedByInterruptException
     try {
@@ -645,31 +854,26 @@ final class JimfsFileChannel extends FileChannel {
       }
     } finally {
       fileSystemState.unregister(this);
-      file.closed();
+      file.releaseLocks(this);
+      try {
+        // changes made to regions mapped through this channel are written back one last time
+        file.releaseMappings(this);
+      } finally {
+        if (write) {
+          sealFile();
+        }
+        file.closed();
+      }
     }
   }
 
-  /** A file lock that does nothing, since only one JVM process has access to this file system. */
-  static final class FakeFileLock extends FileLock {
-
-    private final AtomicBoolean valid = new AtomicBoolean(true);
-
-    public FakeFileLock(FileChannel channel, long position, long size, boolean shared) {
-      super(channel, position, size, shared);
-    }
-
-    public FakeFileLock(AsynchronousFileChannel channel, long position, long size, boolean shared) {
-      super(channel, position, size, shared);
-    }
-
-    @Override
-    public boolean isValid() {
-      return valid.get();
-    }
-
-    @Override
-    public void release() throws IOException {
-      valid.set(false);
+  /** Seals the file after writing to it, freeing any blocks that weren't used. */
+  private void sealFile() {
+    file.writeLock().lock();
+    try {
+      file.seal();
+    } finally {
+      file.writeLock().unlock();
     }
   }
 }
@@ -30,6 +30,10 @@ import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileAttribute;
 import java.nio.file.attribute.FileAttributeView;
 import java.nio.file.attribute.FileStoreAttributeView;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
 import java.util.Set;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
@@ -55,6 +59,7 @@ final class JimfsFileStore extends FileStore {
   private final FileFactory factory;
   private final ImmutableSet<Feature> supportedFeatures;
   private final FileSystemState state;
+  private final StoreAttributeView attributeView = new StoreAttributeView();
 
   private final Lock readLock;
   private final Lock writeLock;
@@ -85,6 +90,11 @@ final class JimfsFileStore extends FileStore {
     return state;
   }
 
+  /** Returns the policy for updating the last access times of files when they're read. */
+  AccessTimePolicy accessTimePolicy() {
+    return disk.accessTimePolicy();
+  }
+
   /** Returns the read lock for this store. */
   Lock readLock() {
     return readLock;
@@ -95,6 +105,53 @@ final class JimfsFileStore extends FileStore {
     return writeLock;
   }
 
+  /**
+   * Frees the contents of all regular files in this store and returns them, along with all other
+   * blocks the disk has cached, to the disk's block pool if it has one. Called when the file system
+   * is closed, after all open channels and streams have been closed.
+   */
+  void returnBlocksToPool() {
+    if (!disk.hasBlockPool()) {
+      return;
+    }
+
+    writeLock.lock();
+    try {
+      for (RegularFile file : regularFiles()) {
+        file.discardContents();
+      }
+    } finally {
+      writeLock.unlock();
+    }
+
+    disk.returnCachedBlocksToPool();
+  }
+
+  /**
+   * Returns the regular files in this store, each only once regardless of how many links it has.
+   * The caller must hold the read or write lock for the store.
+   */
+  private Set<RegularFile> regularFiles() {
+    Set<RegularFile> files = Collections.newSetFromMap(new IdentityHashMap<RegularFile, Boolean>());
+    Deque<Directory> directories = new ArrayDeque<>();
+    for (Name name : tree.getRootDirectoryNames()) {
+      directories.add((Directory) tree.getRoot(name).file());
+    }
+
+    while (!directories.isEmpty()) {
+      Directory directory = directories.remove();
+      for (Name name : directory.snapshot()) {
+        File file = directory.get(name).file();
+        if (file.isDirectory()) {
+          directories.add((Directory) file);
+        } else if (file.isRegularFile()) {
+          files.add((RegularFile) file);
+        }
+      }
+    }
+    return files;
+  }
+
   /** Returns the names of the root directories in this store. */
   ImmutableSortedSet<Name> getRootDirectoryNames() {
     state.checkOpen();
@@ -134,6 +191,12 @@ final class JimfsFileStore extends FileStore {
     return factory.regularFileCreator();
   }
 
+  /** Returns a supplier that creates a new sparse regular file. */
+  Supplier<RegularFile> sparseRegularFileCreator() {
+    state.checkOpen();
+    return factory.sparseRegularFileCreator();
+  }
+
   /** Returns a supplier that creates a new directory. */
   Supplier<Directory> directoryCreator() {
     state.checkOpen();
@@ -207,6 +270,12 @@ final class JimfsFileStore extends FileStore {
     return attributes.supportedFileAttributeViews();
   }
 
+  /** Releases unused blocks cached for reuse, down to the configured minimum cache size. */
+  void trim() {
+    state.checkOpen();
+    disk.trim();
+  }
+
   // methods implementing the FileStore API
 
   @Override
@@ -257,11 +326,162 @@ final class JimfsFileStore extends FileStore {
   @Override
   public <V extends FileStoreAttributeView> V getFileStoreAttributeView(Class<V> type) {
     state.checkOpen();
-    return null; // no supported views
+    return type == JimfsFileStoreAttributeView.class ? type.cast(attributeView) : null;
   }
 
+  /**
+   * Returns the value of the given file store attribute. Each statistic provided by {@link
+   * JimfsFileStoreAttributeView} is supported, named by its method prefixed with {@code "jimfs:"};
+   * for example, {@code "jimfs:cacheSize"}.
+   */
   @Override
   public Object getAttribute(String attribute) throws IOException {
-    throw new UnsupportedOperationException();
+    state.checkOpen();
+    switch (attribute) {
+      case "jimfs:blockSize":
+        return attributeView.blockSize();
+      case "jimfs:allocatedBlockCount":
+        return attributeView.allocatedBlockCount();
+      case "jimfs:allocatedSize":
+        return attributeView.allocatedSize();
+      case "jimfs:contentSize":
+        return attributeView.contentSize();
+      case "jimfs:cachedBlockCount":
+        return attributeView.cachedBlockCount();
+      case "jimfs:cacheSize":
+        return attributeView.cacheSize();
+      case "jimfs:pinnedFileCount":
+        return attributeView.pinnedFileCount();
+      case "jimfs:pinnedSize":
+        return attributeView.pinnedSize();
+      case "jimfs:compressedBlockCount":
+        return attributeView.compressedBlockCount();
+      case "jimfs:compressedSize":
+        return attributeView.compressedSize();
+      case "jimfs:uncompressedSize":
+        return attributeView.uncompressedSize();
+      case "jimfs:spilledBlockCount":
+        return attributeView.spilledBlockCount();
+      case "jimfs:spillFileSize":
+        return attributeView.spillFileSize();
+      case "jimfs:dedupBlockCount":
+        return attributeView.dedupBlockCount();
+      case "jimfs:dedupReferenceCount":
+        return attributeView.dedupReferenceCount();
+      case "jimfs:dedupRatio":
+        return attributeView.dedupRatio();
+      case "jimfs:packedTailSize":
+        return attributeView.packedTailSize();
+      default:
+        throw new UnsupportedOperationException("unsupported attribute: " + attribute);
+    }
+  }
+
+  /** Implementation of {@link JimfsFileStoreAttributeView} reading statistics from the disk. */
+  private final class StoreAttributeView implements JimfsFileStoreAttributeView {
+
+    @Override
+    public String name() {
+      return "jimfs";
+    }
+
+    @Override
+    public int blockSize() {
+      state.checkOpen();
+      return disk.blockSize();
+    }
+
+    @Override
+    public int allocatedBlockCount() {
+      state.checkOpen();
+      return disk.allocatedBlockCount();
+    }
+
+    @Override
+    public long allocatedSize() {
+      return allocatedBlockCount() * (long) disk.blockSize();
+    }
+
+    @Override
+    public long contentSize() {
+      state.checkOpen();
+      return disk.contentSize();
+    }
+
+    @Override
+    public int cachedBlockCount() {
+      state.checkOpen();
+      return disk.cachedBlockCount();
+    }
+
+    @Override
+    public long cacheSize() {
+      return cachedBlockCount() * (long) disk.blockSize();
+    }
+
+    @Override
+    public int pinnedFileCount() {
+      state.checkOpen();
+      return disk.pinnedFileCount();
+    }
+
+    @Override
+    public long pinnedSize() {
+      state.checkOpen();
+      return disk.pinnedSize();
+    }
+
+    @Override
+    public int compressedBlockCount() {
+      state.checkOpen();
+      return disk.compressedBlockCount();
+    }
+
+    @Override
+    public long compressedSize() {
+      state.checkOpen();
+      return disk.compressedSize();
+    }
+
+    @Override
+    public long uncompressedSize() {
+      return compressedBlockCount() * (long) disk.blockSize();
+    }
+
+    @Override
+    public int spilledBlockCount() {
+      state.checkOpen();
+      return disk.spilledBlockCount();
+    }
+
+    @Override
+    public long spillFileSize() {
+      state.checkOpen();
+      return disk.spillFileSize();
+    }
+
+    @Override
+    public int dedupBlockCount() {
+      state.checkOpen();
+      return disk.dedupBlockCount();
+    }
+
+    @Override
+    public int dedupReferenceCount() {
+      state.checkOpen();
+      return disk.dedupReferenceCount();
+    }
+
+    @Override
+    public double dedupRatio() {
+      state.checkOpen();
+      return disk.dedupRatio();
+    }
+
+    @Override
+    public long packedTailSize() {
+      state.checkOpen();
+      return disk.packedTailSize();
+    }
   }
 }
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2026 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.jimfs;
+
+import java.nio.file.FileStore;
+import java.nio.file.attribute.FileStoreAttributeView;
+
+/**
+ * Attribute view providing statistics about the memory used by a Jimfs file store. Returned by
+ * {@link FileStore#getFileStoreAttributeView(Class)}; each statistic can also be read with {@link
+ * FileStore#getAttribute(String)} using the name of its method prefixed with {@code "jimfs:"}, for
+ * example {@code "jimfs:allocatedBlockCount"}.
+ *
+ * <p>Each method reads the current value of the statistic, which may change concurrently as files
+ * are written and deleted. Methods throw {@link java.nio.file.ClosedFileSystemException} if the
+ * file system has been closed.
+ */
+public interface JimfsFileStoreAttributeView extends FileStoreAttributeView {
+
+  /** Returns {@code "jimfs"}. */
+  @Override
+  String name();
+
+  /** Returns the size in bytes of the blocks file content is stored in. */
+  int blockSize();
+
+  /** Returns the number of blocks currently allocated to files. */
+  int allocatedBlockCount();
+
+  /** Returns the total size in bytes of the blocks currently allocated to files. */
+  long allocatedSize();
+
+  /**
+   * Returns the total size in bytes of the content of the regular files in the store, counting
+   * files with multiple links once. The amount by which {@link #allocatedSize()} exceeds this is
+   * the space lost to partially filled blocks and blocks allocated ahead of writes, though sharing
+   * and deduplication of blocks can make it smaller.
+   *
+   * <p>This is a running total kept up to date as files change size, so it includes the content of
+   * deleted files that are still open until their content is freed.
+   */
+  long contentSize();
+
+  /** Returns the number of unused blocks cached for reuse. */
+  int cachedBlockCount();
+
+  /** Returns the total size in bytes of the unused blocks cached for reuse. */
+  long cacheSize();
+
+  /**
+   * Returns the number of files that have been deleted but whose content is still held in memory
+   * because streams or channels are open to them.
+   */
+  int pinnedFileCount();
+
+  /**
+   * Returns the total size in bytes of the memory held by files that have been deleted but still
+   * have streams or channels open to them.
+   */
+  long pinnedSize();
+
+  /** Returns the number of blocks currently compressed. */
+  int compressedBlockCount();
+
+  /** Returns the total size in bytes of the compressed blocks held in memory. */
+  long compressedSize();
+
+  /** Returns the total size in bytes of the compressed blocks' content, before compression. */
+  long uncompressedSize();
+
+  /** Returns the number of blocks currently spilled to the scratch file. */
+  int spilledBlockCount();
+
+  /** Returns the current size in bytes of the scratch file. */
+  long spillFileSize();
+
+  /** Returns the number of distinct deduplicated blocks. */
+  int dedupBlockCount();
+
+  /** Returns the number of references files hold to deduplicated blocks. */
+  int dedupReferenceCount();
+
+  /**
+   * Returns the ratio of references to deduplicated blocks to distinct deduplicated blocks, or 1.0
+   * if there are none.
+   */
+  double dedupRatio();
+
+  /** Returns the total size in bytes of the packed tails of files. */
+  long packedTailSize();
+}
@@ -332,6 +332,10 @@ final class JimfsFileSystem extends FileSystem {
 
   @Override
   public void close() throws IOException {
-    fileStore.state().close();
+    try {
+      fileStore.state().close();
+    } finally {
+      fileStore.returnBlocksToPool();
+    }
   }
 }
@@ -87,6 +87,17 @@ final class JimfsFileSystems {
     AttributeService attributeService = new AttributeService(config);
 
     HeapDisk disk = new HeapDisk(config);
+    BlockCompressor compressor = disk.compressor();
+    if (compressor != null) {
+      state.register(compressor);
+      compressor.start();
+    }
+    if (config.cacheDecayNanos != -1) {
+      BlockCacheTrimmer trimmer =
+          new BlockCacheTrimmer(disk, config.cacheDecayNanos, config.cacheTrimThreshold);
+      state.register(trimmer);
+      trimmer.start();
+    }
     FileFactory fileFactory = new FileFactory(disk);
 
     Map<Name, Directory> roots = new HashMap<>();
@@ -16,6 +16,7 @@
 
 package com.google.common.jimfs;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkPositionIndexes;
 
@@ -23,6 +24,7 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.primitives.Ints;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 
 /**
  * {@link InputStream} for reading from a file's {@link RegularFile}.
@@ -41,6 +43,10 @@ final class JimfsInputStream extends InputStream {
   @GuardedBy("this")
   private boolean finished;
 
+  /** Position to go back to on {@link #reset()}; the start of the file until a mark is set. */
+  @GuardedBy("this")
+  private long mark;
+
   private final FileSystemState fileSystemState;
 
   public JimfsInputStream(RegularFile file, FileSystemState fileSystemState) {
@@ -56,19 +62,23 @@ final class JimfsInputStream extends InputStream {
       return -1;
     }
 
-    file.readLock().lock();
-    try {
-
-      int b = file.read(pos++); // it's ok for pos to go beyond size()
-      if (b == -1) {
-        finished = true;
-      } else {
-        file.updateAccessTime();
+    int b = file.tryRead(pos);
+    if (b == RegularFile.READ_CONFLICT) {
+      file.readLock().lock();
+      try {
+        b = file.read(pos);
+      } finally {
+        file.readLock().unlock();
       }
-      return b;
-    } finally {
-      file.readLock().unlock();
     }
+
+    pos++; // it's ok for pos to go beyond size()
+    if (b == -1) {
+      finished = true;
+    } else {
+      file.updateAccessTime(file.accessTimePolicy());
+    }
+    return b;
   }
 
   @Override
@@ -88,20 +98,121 @@ final class JimfsInputStream extends InputStream {
       return -1;
     }
 
+    int read = file.tryRead(pos, b, off, len);
+    if (read == RegularFile.READ_CONFLICT) {
+      file.readLock().lock();
+      try {
+        read = file.read(pos, b, off, len);
+      } finally {
+        file.readLock().unlock();
+      }
+    }
+
+    if (read == -1) {
+      finished = true;
+    } else {
+      pos += read;
+    }
+
+    file.updateAccessTime(file.accessTimePolicy());
+    return read;
+  }
+
+  /**
+   * Reads all remaining bytes from the file into an array presized to hold them, in a single pass
+   * over the file's blocks. Overrides {@code InputStream.readAllBytes()} on Java 9 and later.
+   */
+  public synchronized byte[] readAllBytes() throws IOException {
+    byte[] bytes = readBytes(Long.MAX_VALUE);
+    finished = true;
+    return bytes;
+  }
+
+  /**
+   * Reads up to {@code len} bytes from the file into a new array presized to hold them, in a single
+   * pass over the file's blocks. Overrides {@code InputStream.readNBytes(int)} on Java 11 and
+   * later.
+   */
+  public byte[] readNBytes(int len) throws IOException {
+    checkArgument(len >= 0, "len < 0");
+    return readBytes(len);
+  }
+
+  /**
+   * Reads up to {@code len} bytes from the file into the given array, returning the number of
+   * bytes read, which is 0 rather than -1 at the end of the file. Overrides {@code
+   * InputStream.readNBytes(byte[], int, int)} on Java 9 and later.
+   */
+  public int readNBytes(byte[] b, int off, int len) throws IOException {
+    checkPositionIndexes(off, off + len, b.length);
+    // a single read copies as many bytes as the file has, up to len
+    return Math.max(readInternal(b, off, len), 0);
+  }
+
+  /**
+   * Reads up to {@code max} bytes into a new array sized to hold exactly the bytes remaining in the
+   * file, up to that limit, while holding the read lock so the size doesn't change in between.
+   */
+  private synchronized byte[] readBytes(long max) throws IOException {
+    checkNotClosed();
+    if (finished) {
+      return new byte[0];
+    }
+
+    byte[] bytes;
     file.readLock().lock();
     try {
-      int read = file.read(pos, b, off, len);
-      if (read == -1) {
-        finished = true;
-      } else {
-        pos += read;
+      long len = Math.min(Math.max(file.sizeWithoutLocking() - pos, 0), max);
+      if (len > MAX_ARRAY_SIZE) {
+        throw new OutOfMemoryError("Required array size too large");
+      }
+      bytes = new byte[(int) len];
+      if (len > 0) {
+        file.read(pos, bytes, 0, bytes.length);
       }
-
-      file.updateAccessTime();
-      return read;
     } finally {
       file.readLock().unlock();
     }
+
+    pos += bytes.length;
+    file.updateAccessTime(file.accessTimePolicy());
+    return bytes;
+  }
+
+  /** Largest array that can be allocated on all JVMs. */
+  private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
+  /**
+   * Transfers all remaining bytes from the file to the given stream, returning the number of bytes
+   * transferred. If the given stream is a stream to another Jimfs file, the bytes are copied from
+   * block to block, or the blocks are shared if the files are on the same disk; otherwise they're
+   * copied through a buffer of one block, and no lock is held while writing to the stream.
+   * Overrides {@code InputStream.transferTo(OutputStream)} on Java 9 and later.
+   */
+  public synchronized long transferTo(OutputStream out) throws IOException {
+    checkNotNull(out);
+    checkNotClosed();
+    if (finished) {
+      return 0;
+    }
+
+    if (out instanceof JimfsOutputStream) {
+      long transferred = ((JimfsOutputStream) out).transferFromFile(file, pos, Long.MAX_VALUE);
+      if (transferred != -1) {
+        pos += transferred;
+        finished = true;
+        return transferred;
+      }
+    }
+
+    byte[] buf = new byte[file.blockSize()];
+    long transferred = 0;
+    int read;
+    while ((read = readInternal(buf, 0, buf.length)) != -1) {
+      out.write(buf, 0, read);
+      transferred += read;
+    }
+    return transferred;
   }
 
   @Override
@@ -133,6 +244,31 @@ final class JimfsInputStream extends InputStream {
     return Ints.saturatedCast(available);
   }
 
+  @Override
+  public boolean markSupported() {
+    return true;
+  }
+
+  /**
+   * Marks the current position in the file. The read limit is ignored, since the stream can always
+   * go back to the mark by repositioning in the file.
+   */
+  @Override
+  public synchronized void mark(int readlimit) {
+    mark = pos;
+  }
+
+  /**
+   * Repositions the stream at the last mark, or at the start of the file if no mark has been set.
+   * Bytes written to the file since they were read are read again with their new content.
+   */
+  @Override
+  public synchronized void reset() throws IOException {
+    checkNotClosed();
+    pos = mark;
+    finished = false;
+  }
+
   @GuardedBy("this")
   private void checkNotClosed() throws IOException {
     if (file == null) {
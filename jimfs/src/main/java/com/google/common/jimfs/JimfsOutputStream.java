@@ -22,6 +22,7 @@ import static com.google.common.base.Preconditions.checkPositionIndexes;
 import com.google.common.annotations.VisibleForTesting;
 import java.io.IOException;
 import java.io.OutputStream;
+import org.checkerframework.checker.nullness.compatqual.NullableDecl;
 
 /**
  * {@link OutputStream} for writing to a {@link RegularFile}.
@@ -40,9 +41,30 @@ final class JimfsOutputStream extends OutputStream {
   private final boolean append;
   private final FileSystemState fileSystemState;
 
+  /** Whether writes smaller than a block are staged and written to the file together. */
+  private final boolean coalesce;
+
+  /** Buffer of one block in which small writes are staged, or null if none has been staged yet. */
+  @GuardedBy("this")
+  @NullableDecl
+  private byte[] staged;
+
+  /** Number of bytes in {@link #staged} that have yet to be written to the file. */
+  @GuardedBy("this")
+  private int stagedCount;
+
+  /**
+   * Number of staged bytes at which they're written to the file: the number of bytes from where
+   * they'll be written to the end of that block of the file, so that writes of staged bytes fill
+   * the file's blocks rather than straddling them.
+   */
+  @GuardedBy("this")
+  private int stagedLimit;
+
   JimfsOutputStream(RegularFile file, boolean append, FileSystemState fileSystemState) {
     this.file = checkNotNull(file);
     this.append = append;
+    this.coalesce = file.coalescesStreamWrites();
     this.fileSystemState = fileSystemState;
     fileSystemState.register(this);
   }
@@ -50,6 +72,15 @@ final class JimfsOutputStream extends OutputStream {
   @Override
   public synchronized void write(int b) throws IOException {
     checkNotClosed();
+    if (coalesce) {
+      startStaging();
+      staged[stagedCount++] = (byte) b;
+      if (stagedCount == stagedLimit) {
+        flushStaged();
+      }
+      return;
+    }
+
 
     file.writeLock().lock();
     try {
@@ -77,6 +108,72 @@ final class JimfsOutputStream extends OutputStream {
 
   private synchronized void writeInternal(byte[] b, int off, int len) throws IOException {
     checkNotClosed();
+    if (coalesce && stage(b, off, len)) {
+      return;
+    }
+    writeToFile(b, off, len);
+  }
+
+  /**
+   * Stages the given bytes to be written to the file later, along with other small writes, if
+   * they're smaller than a block, writing the staged bytes whenever they reach the end of a block
+   * of the file. Returns false, having written any staged bytes, if the bytes should be written
+   * directly.
+   */
+  @GuardedBy("this")
+  private boolean stage(byte[] b, int off, int len) throws IOException {
+    int capacity = file.blockSize();
+    if (len >= capacity) {
+      flushStaged();
+      return false;
+    }
+
+    while (len > 0) {
+      startStaging();
+      int n = Math.min(len, stagedLimit - stagedCount);
+      System.arraycopy(b, off, staged, stagedCount, n);
+      stagedCount += n;
+      off += n;
+      len -= n;
+      if (stagedCount == stagedLimit) {
+        flushStaged();
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Prepares the buffer for staging bytes if nothing is staged, determining how many bytes to
+   * stage before writing them from the position they'll be written at. When appending, that's
+   * the current end of the file, which other writers may have moved by the time the bytes are
+   * written; the staged bytes are then written unaligned, which is only slower.
+   */
+  @GuardedBy("this")
+  private void startStaging() {
+    if (staged == null) {
+      staged = new byte[file.blockSize()];
+    }
+    if (stagedCount == 0) {
+      long start = append ? file.sizeWithoutLocking() : pos;
+      stagedLimit = staged.length - (int) (start % staged.length);
+    }
+  }
+
+  /** Writes any staged bytes to the file. */
+  @GuardedBy("this")
+  private void flushStaged() throws IOException {
+    if (stagedCount > 0) {
+      writeToFile(staged, 0, stagedCount);
+      stagedCount = 0;
+    }
+  }
+
+  /** Writes the given bytes to the file at the stream's position, or to its end if appending. */
+  @GuardedBy("this")
+  private void writeToFile(byte[] b, int off, int len) throws IOException {
+    if (append && file.appendsConcurrently() && tryAppend(b, off, len)) {
+      return;
+    }
 
     file.writeLock().lock();
     try {
@@ -91,6 +188,62 @@ final class JimfsOutputStream extends OutputStream {
     }
   }
 
+  /**
+   * Tries to append the given bytes to the file while holding only its read lock, so that appends
+   * through other streams can copy their bytes at the same time. Returns false if the bytes must be
+   * appended while holding the write lock instead.
+   */
+  @GuardedBy("this")
+  private boolean tryAppend(byte[] b, int off, int len) {
+    file.readLock().lock();
+    try {
+      long end = file.tryAppend(b, off, len);
+      if (end == RegularFile.APPEND_CONFLICT) {
+        return false;
+      }
+      pos = end;
+      return true;
+    } finally {
+      file.readLock().unlock();
+    }
+  }
+
+  /**
+   * Transfers up to {@code count} bytes starting at position {@code srcPos} in the given file
+   * directly to this stream's file, as if by writing them to this stream, copying them block to
+   * block or sharing blocks where possible. Implements {@link JimfsInputStream#transferTo} to this
+   * stream. Returns the number of bytes transferred, or -1 without transferring anything if the
+   * given file is this stream's file, which can't be locked for reading and writing at once, or if
+   * the thread is interrupted while locking the files; the caller should copy the bytes through
+   * a buffer instead, which, like other stream operations, ignores interruption.
+   */
+  synchronized long transferFromFile(RegularFile src, long srcPos, long count) throws IOException {
+    checkNotClosed();
+    if (src == file) {
+      return -1;
+    }
+    flushStaged();
+
+    try {
+      RegularFile.lockForTransfer(src, file);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return -1;
+    }
+    try {
+      if (append) {
+        pos = file.sizeWithoutLocking();
+      }
+      long transferred = src.transferTo(srcPos, count, file, pos);
+      pos += transferred;
+      src.updateAccessTime(src.accessTimePolicy());
+      file.updateModifiedTime();
+      return transferred;
+    } finally {
+      RegularFile.unlockForTransfer(src, file);
+    }
+  }
+
   @GuardedBy("this")
   private void checkNotClosed() throws IOException {
     if (file == null) {
@@ -98,14 +251,32 @@ final class JimfsOutputStream extends OutputStream {
     }
   }
 
+  /** Writes any bytes staged by coalesced writes to the file. */
+  @Override
+  public synchronized void flush() throws IOException {
+    flushStaged();
+  }
+
   @Override
   public synchronized void close() throws IOException {
     if (isOpen()) {
-      fileSystemState.unregister(this);
-      file.closed();
+      try {
+        flushStaged();
+      } finally {
+        fileSystemState.unregister(this);
+
+        file.writeLock().lock();
+        try {
+          file.seal();
+        } finally {
+          file.writeLock().unlock();
+        }
+        file.closed();
 
-      // file is set to null here and only here
-      file = null;
+        // file is set to null here and only here
+        file = null;
+        stagedCount = 0;
+      }
     }
   }
 
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2026 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.jimfs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+
+/**
+ * A region of a {@link RegularFile} mapped in {@code READ_WRITE} mode through a channel. The blocks
+ * of a file can't be exposed as a single buffer, so the buffer returned to the user holds a copy
+ * of the region, which the file keeps up to date: every write to the file is copied to the buffers
+ * of the regions it overlaps, so a buffer always holds the file's content except for the changes
+ * made to it through the buffer itself.
+ *
+ * <p>Those changes are written back to the file when the channel is forced or closed and when any
+ * region of the file is mapped. Since the buffer otherwise matches the file, writing back compares
+ * the two and writes only the runs of bytes that differ, leaving alone anything else written to
+ * the file since.
+ *
+ * <p>The file references the region, and so its buffer, until the channel is closed.
+ */
+final class MappedRegion {
+
+  /** The number of bytes of the buffer compared with the file's content at a time. */
+  private static final int CHUNK_SIZE = 8192;
+
+  private final MappedByteBuffer buffer;
+  private final Object owner;
+  private final long position;
+
+  /**
+   * Creates a region for the given buffer, mapped through the given owner, which holds the bytes
+   * of the file starting at the given position.
+   */
+  MappedRegion(MappedByteBuffer buffer, Object owner, long position) {
+    this.buffer = buffer;
+    this.owner = owner;
+    this.position = position;
+  }
+
+  /** Returns the object, normally a channel, through which this region was mapped. */
+  Object owner() {
+    return owner;
+  }
+
+  /**
+   * Copies the bytes of the given file from position {@code pos} to {@code pos + len} that fall in
+   * this region to the buffer, as zeros for bytes beyond the end of the file. The caller must hold
+   * the file's write lock, or its read lock and the range of bytes written.
+   *
+   * @throws IOException if reading a spilled block of the file back fails
+   */
+  void copyFrom(RegularFile file, long pos, long len) throws IOException {
+    long start = Math.max(pos, position);
+    long end = Math.min(pos + len, position + buffer.capacity());
+    if (start >= end) {
+      return;
+    }
+
+    ByteBuffer dst = buffer.duplicate();
+    dst.limit((int) (end - position));
+    dst.position((int) (start - position));
+    if (start < file.sizeWithoutLocking()) {
+      file.readWithoutRangeLock(start, dst);
+    }
+    while (dst.hasRemaining()) {
+      dst.put((byte) 0);
+    }
+  }
+
+  /**
+   * Writes the runs of bytes of the buffer that differ from the content of the given file back to
+   * it, returning the number of bytes written. Bytes that lie beyond the current size of the file,
+   * which may have been truncated since the region was mapped, are not written back. The caller
+   * must hold the file's write lock.
+   *
+   * @throws IOException if the file needs more blocks but the disk is full
+   */
+  long writeBack(RegularFile file) throws IOException {
+    int len = (int) Math.max(0, Math.min(buffer.capacity(), file.sizeWithoutLocking() - position));
+    ByteBuffer content = ByteBuffer.allocate(Math.min(len, CHUNK_SIZE));
+    long total = 0;
+    for (int chunk = 0; chunk < len; chunk += CHUNK_SIZE) {
+      int chunkEnd = Math.min(chunk + CHUNK_SIZE, len);
+      content.clear().limit(chunkEnd - chunk);
+      file.readWithoutRangeLock(position + chunk, content);
+      content.flip();
+      ByteBuffer mapped = buffer.duplicate();
+      mapped.limit(chunkEnd).position(chunk);
+      if (mapped.equals(content)) {
+        continue;
+      }
+
+      int i = chunk;
+      while (i < chunkEnd) {
+        if (buffer.get(i) == content.get(i - chunk)) {
+          i++;
+          continue;
+        }
+
+        int start = i;
+        do {
+          i++;
+        } while (i < chunkEnd && buffer.get(i) != content.get(i - chunk));
+        mapped.limit(i).position(start);
+        total += file.write(position + start, mapped);
+      }
+    }
+    return total;
+  }
+}
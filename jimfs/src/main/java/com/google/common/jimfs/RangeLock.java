@@ -0,0 +1,186 @@
+/*
+ * Copyright 2026 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.jimfs;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * Lock on ranges of the bytes of a {@link RegularFile}, letting threads that write to disjoint
+ * ranges of the file in place do so at the same time while keeping writes to overlapping ranges
+ * from interleaving. A range is locked either exclusively, by writers, or shared, by readers that
+ * must not see a write in place half done; a thread trying to lock a range waits until no
+ * overlapping range is locked in a conflicting mode.
+ *
+ * <p>Reads far outnumber writes in place, so while no exclusive range is locked or waited for, a
+ * shared range is locked without taking this lock's monitor or recording the range: the reader
+ * only increments a count of untracked readers, and a thread locking an exclusive range waits for
+ * that count to drop to zero, whatever the ranges those readers locked. Once a thread starts
+ * waiting for or holding an exclusive range, new shared ranges are tracked and only wait for
+ * exclusive ranges they overlap.
+ *
+ * <p>The lock isn't reentrant, and a thread should hold at most one range at a time.
+ */
+final class RangeLock {
+
+  private static final AtomicIntegerFieldUpdater<RangeLock> UNTRACKED_READERS =
+      AtomicIntegerFieldUpdater.newUpdater(RangeLock.class, "untrackedReaders");
+
+  /** Returned for shared ranges that are locked without being tracked. */
+  private static final Range UNTRACKED = new Range(0, 0, true);
+
+  @GuardedBy("this")
+  private final List<Range> locked = new ArrayList<>();
+
+  /** The number of shared ranges currently locked without being tracked. */
+  private volatile int untrackedReaders;
+
+  /** The number of exclusive ranges currently locked or being waited for. Written holding this. */
+  private volatile int exclusive;
+
+  /**
+   * Locks the range of bytes from position {@code start} (inclusive) to {@code end} (exclusive),
+   * waiting until no overlapping range is locked, and returns the range to pass to {@link
+   * #unlock(Range)}.
+   *
+   * @throws InterruptedException if the thread is interrupted while waiting
+   */
+  synchronized Range lock(long start, long end) throws InterruptedException {
+    checkArgument(start < end, "range [%s, %s) is empty", start, end);
+    exclusive++;
+    boolean acquired = false;
+    try {
+      while (untrackedReaders > 0 || conflictsWithLockedRange(start, end, false)) {
+        wait();
+      }
+      acquired = true;
+    } finally {
+      if (!acquired) {
+        exclusive--;
+        notifyAll();
+      }
+    }
+    return add(start, end, false);
+  }
+
+  /**
+   * Locks the range of bytes from position {@code start} (inclusive) to {@code end} (exclusive)
+   * exclusively like {@link #lock}, or shared with other shared ranges if {@code shared} is true,
+   * waiting without being interrupted.
+   */
+  Range lockUninterruptibly(long start, long end, boolean shared) {
+    checkArgument(start < end, "range [%s, %s) is empty", start, end);
+    if (shared) {
+      // the increment must be visible before reading exclusive, and exclusive is incremented
+      // before reading untrackedReaders, so either this reader or the writer sees the other
+      UNTRACKED_READERS.incrementAndGet(this);
+      if (exclusive == 0) {
+        return UNTRACKED;
+      }
+      releaseUntracked();
+    }
+
+    synchronized (this) {
+      if (!shared) {
+        exclusive++;
+      }
+      boolean interrupted = false;
+      while ((!shared && untrackedReaders > 0) || conflictsWithLockedRange(start, end, shared)) {
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+      return add(start, end, shared);
+    }
+  }
+
+  @GuardedBy("this")
+  private Range add(long start, long end, boolean shared) {
+    Range range = new Range(start, end, shared);
+    locked.add(range);
+    return range;
+  }
+
+  /** Unlocks the given range, which must have been returned by {@link #lock}. */
+  void unlock(Range range) {
+    if (range == UNTRACKED) {
+      releaseUntracked();
+      return;
+    }
+
+    synchronized (this) {
+      // ranges don't override equals, so this removes the given instance
+      checkArgument(locked.remove(range), "range %s isn't locked", range);
+      if (!range.shared) {
+        exclusive--;
+      }
+      notifyAll();
+    }
+  }
+
+  /** Releases an untracked shared range, waking writers waiting for the last one. */
+  private void releaseUntracked() {
+    if (UNTRACKED_READERS.decrementAndGet(this) == 0 && exclusive > 0) {
+      synchronized (this) {
+        notifyAll();
+      }
+    }
+  }
+
+  /** Returns the number of ranges currently locked, tracked or not. */
+  synchronized int lockedRangeCount() {
+    return locked.size() + untrackedReaders;
+  }
+
+  @GuardedBy("this")
+  private boolean conflictsWithLockedRange(long start, long end, boolean shared) {
+    for (int i = 0; i < locked.size(); i++) {
+      Range range = locked.get(i);
+      if (start < range.end && range.start < end && !(shared && range.shared)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** A locked range of bytes. */
+  static final class Range {
+
+    private final long start;
+    private final long end;
+    private final boolean shared;
+
+    private Range(long start, long end, boolean shared) {
+      this.start = start;
+      this.end = end;
+      this.shared = shared;
+    }
+
+    @Override
+    public String toString() {
+      return "[" + start + ", " + end + ")" + (shared ? " shared" : "");
+    }
+  }
+}
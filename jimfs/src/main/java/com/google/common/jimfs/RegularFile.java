@@ -18,53 +18,207 @@ package com.google.common.jimfs;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
-import static com.google.common.jimfs.Util.clear;
-import static com.google.common.jimfs.Util.nextPowerOf2;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Iterables;
+import com.google.common.jimfs.BlockCompressor.CompressedBlock;
 import com.google.common.primitives.UnsignedBytes;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
 import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.LockSupport;
+import org.checkerframework.checker.nullness.compatqual.NullableDecl;
 
 /**
- * A mutable, resizable store for bytes. Bytes are stored in fixed-sized byte arrays (blocks)
- * allocated by a {@link HeapDisk}.
+ * A mutable, resizable store for bytes. Bytes are stored in fixed-sized blocks allocated by a
+ * {@link HeapDisk}; the representation of each block is determined by the disk's {@link
+ * BlockStorage}.
+ *
+ * <p>A file may be created as a sparse file, in which case ranges that have never been written
+ * (such as when writing past the end of the file) are left as holes rather than being allocated
+ * and filled with zeros. A hole is a null entry in the block list and reads as zeros.
+ *
+ * <p>If the disk compresses cold files, blocks in the block list may also be replaced with
+ * {@link CompressedBlock} instances, which are decompressed when read or written.
+ *
+ * <p>If the disk stores small files inline, the content of a new file is kept in a byte array owned
+ * by the file rather than in blocks for as long as it fits within the disk's {@linkplain
+ * HeapDisk#maxInlineSize() maximum inline size}. The content is moved into blocks the first time a
+ * write grows the file past that size, and stays in blocks from then on.
+ *
+ * <p>If the disk packs tails, the partial last block of a file is replaced with an exact-size tail
+ * when the file is sealed. A packed tail is unpacked into a full block again before the file is
+ * written past the end of its full blocks.
  *
  * @author Colin Decker
  */
 final class RegularFile extends File {
 
-  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+  /**
+   * Maximum number of extra blocks to allocate ahead of a write that grows a file. A growing file
+   * allocates up to as many extra blocks as it already has, so a file that is written sequentially
+   * grows in geometrically larger runs of blocks rather than a block or two at a time. Blocks
+   * beyond the end of the file are freed by {@link #trim()} when a writer is closed.
+   */
+  private static final int MAX_PREALLOCATED_BLOCKS = 1024;
+
+  /** Inline content for files that have no content yet. */
+  private static final byte[] NO_BYTES = {};
+
+  private final ContentLock lock = new ContentLock();
+
+  /** Lock for writes in place to ranges of this file, or null if the disk doesn't allow them. */
+  @NullableDecl private final RangeLock rangeLock;
+
+  /** Byte-range locks held on this file through channels, or null if none has been requested. */
+  @GuardedBy("this")
+  @NullableDecl
+  private FileLockTable lockTable;
+
+  /**
+   * Regions of this file mapped in {@code READ_WRITE} mode through channels that are still open, or
+   * null if none have been mapped. Only modified while holding the write lock; read while holding
+   * either lock.
+   */
+  @NullableDecl private List<MappedRegion> mappedRegions;
+
+  /** Whether there are any mapped regions; read before locking to look at them. */
+  private volatile boolean mapped;
 
   private final HeapDisk disk;
+  private final BlockStorage storage;
 
-  /** Block list for the file. */
-  private byte[][] blocks;
+  /** Whether or not this file may contain holes. */
+  private final boolean sparse;
+
+  /** Block list for the file. Only contains nulls (holes) if the file is sparse. */
+  private final BlockTable blocks;
   /** Block count for the the file, which also acts as the head of the block list. */
   private int blockCount;
 
-  private long size;
+  /**
+   * Content of this file if it's stored inline rather than in blocks, or null if it's stored in
+   * blocks. Holds at least {@code size} bytes, and exactly {@code size} bytes once the file is
+   * sealed; any bytes beyond {@code size} are garbage.
+   */
+  @NullableDecl private byte[] inline;
+
+  /**
+   * Packed tail holding the content of this file past its last full block, or null if the tail
+   * isn't packed. A packed tail is a block of the disk's storage holding exactly the bytes of the
+   * tail, and when there is one, the block list holds only full blocks.
+   */
+  @NullableDecl private Object tail;
+
+  /**
+   * Indexes of blocks this file may share with other files as a result of a copy, or null if it
+   * has never shared any. A set bit doesn't mean the block is still shared, since the other files
+   * may have released it since; the disk tracks the actual reference counts.
+   *
+   * <p>Guarded by this file's monitor rather than its lock, since blocks are marked shared while
+   * holding only the read lock when this file is the source of a copy or transfer.
+   */
+  @GuardedBy("this")
+  @NullableDecl
+  private BitSet sharedBlocks;
+
+  /** Number of compressed blocks in the block list. */
+  private int compressedBlockCount;
+
+  /** Whether this file has been read or written since the disk's last sweep for cold files. */
+  private volatile boolean accessed = true;
+
+  /** Time, per the disk's compressor, of the last check that found this file had been accessed. */
+  private volatile long lastAccessed;
+
+  /** Whether this file's blocks have been compressed since it was last accessed. */
+  private volatile boolean compressedSinceAccess;
+
+  /**
+   * The size of this file. Volatile so that concurrent appends, which publish the bytes they've
+   * written by growing the size, can do so while holding only the read lock.
+   */
+  private volatile long size;
+
+  /**
+   * Version of the content lock for which {@link #appendEnd} and {@link #appendLimit} are valid, or
+   * {@link #APPEND_SYNCING} while they're being reset for a new version. Any change to the file's
+   * structure is made under the write lock, which changes the version, so the state of concurrent
+   * appends is reset whenever that happens.
+   */
+  private volatile long appendVersion;
+
+  /** End of the last range of bytes reserved by a concurrent append. */
+  private volatile long appendEnd;
+
+  /**
+   * Position up to which concurrent appends can write to blocks in place. Written before {@link
+   * #appendVersion} is set and read after it's checked.
+   */
+  private long appendLimit;
+
+  private static final long APPEND_SYNCING = 1; // never a valid version, since those are even
+
+  private static final AtomicLongFieldUpdater<RegularFile> APPEND_VERSION =
+      AtomicLongFieldUpdater.newUpdater(RegularFile.class, "appendVersion");
+
+  private static final AtomicLongFieldUpdater<RegularFile> APPEND_END =
+      AtomicLongFieldUpdater.newUpdater(RegularFile.class, "appendEnd");
+
+  /**
+   * Threads waiting for earlier concurrent appends to be published before publishing their own,
+   * keyed by the start of their reserved range, or null if the disk doesn't allow concurrent
+   * appends. The append that grows the file to a waiting append's start wakes it.
+   */
+  @NullableDecl private final ConcurrentMap<Long, Thread> appendWaiters;
 
   /** Creates a new regular file with the given ID and using the given disk. */
   public static RegularFile create(int id, HeapDisk disk) {
-    return new RegularFile(id, disk, new byte[32][], 0, 0);
+    return create(id, disk, false);
+  }
+
+  /**
+   * Creates a new regular file with the given ID and using the given disk, which is a sparse file
+   * if {@code sparse} is true.
+   */
+  public static RegularFile create(int id, HeapDisk disk, boolean sparse) {
+    if (disk.maxInlineSize() == 0) {
+      return new RegularFile(id, disk, new BlockTable(32), 0, 0, sparse);
+    }
+
+    // don't allocate a block list until the file needs one
+    RegularFile file = new RegularFile(id, disk, new BlockTable(), 0, 0, sparse);
+    file.inline = NO_BYTES;
+    return file;
   }
 
-  RegularFile(int id, HeapDisk disk, byte[][] blocks, int blockCount, long size) {
+  RegularFile(
+      int id, HeapDisk disk, BlockTable blocks, int blockCount, long size, boolean sparse) {
     super(id);
     this.disk = checkNotNull(disk);
+    this.storage = disk.storage();
+    this.sparse = sparse;
     this.blocks = checkNotNull(blocks);
     this.blockCount = blockCount;
+    this.rangeLock = disk.writesConcurrently() ? new RangeLock() : null;
+    this.appendWaiters =
+        disk.appendsConcurrently() ? new ConcurrentHashMap<Long, Thread>() : null;
 
     checkArgument(size >= 0);
     this.size = size;
+    disk.addContentSize(size);
   }
 
   private int openCount = 0;
@@ -80,12 +234,289 @@ final class RegularFile extends File {
     return lock.writeLock();
   }
 
+  /** Returns the size of the blocks of this file's disk. */
+  int blockSize() {
+    return disk.blockSize();
+  }
+
+  /** Returns the policy for updating the last access time of this file when it's read. */
+  AccessTimePolicy accessTimePolicy() {
+    return disk.accessTimePolicy();
+  }
+
+  /** Returns whether or not appends to this file may copy their bytes concurrently. */
+  boolean appendsConcurrently() {
+    return disk.appendsConcurrently();
+  }
+
+  /** Returns whether or not writes to disjoint ranges of this file may proceed concurrently. */
+  boolean writesConcurrently() {
+    return rangeLock != null;
+  }
+
+  /** Returns whether or not output streams to this file coalesce small writes. */
+  boolean coalescesStreamWrites() {
+    return disk.coalescesStreamWrites();
+  }
+
+  /** Returns the table of byte-range locks held on this file, creating it if necessary. */
+  synchronized FileLockTable lockTable() {
+    if (lockTable == null) {
+      lockTable = new FileLockTable();
+    }
+    return lockTable;
+  }
+
+  /** Releases the byte-range locks held on this file through the given channel, which is closed. */
+  synchronized void releaseLocks(JimfsFileChannel channel) {
+    if (lockTable != null) {
+      lockTable.releaseAll(channel);
+    }
+  }
+
+  /**
+   * Maps the region of this file of the given size starting at the given position, first growing
+   * the file with zeros if the region extends past its end. The returned buffer holds a copy of
+   * the content of the region. If the mode is {@code READ_WRITE}, writes to this file are copied to
+   * the buffer and changes made to the buffer are written back to this file by {@link
+   * #writeBackMappedChanges()}, until {@link #releaseMappings} is called for the given owner;
+   * otherwise the buffer is read-only ({@code READ_ONLY}) or its changes are never written back
+   * ({@code PRIVATE}). The caller must hold the write lock.
+   *
+   * @throws IOException if the file needs to grow but the disk is full
+   */
+  MappedByteBuffer map(FileChannel.MapMode mode, long pos, int size, Object owner)
+      throws IOException {
+    writeBackMappedChangesWithoutLocking();
+    if (size > 0 && pos + size > this.size) {
+      write(pos + size - 1, (byte) 0);
+      updateModifiedTime();
+    }
+
+    // a direct buffer is a MappedByteBuffer, though one that isn't backed by a file
+    MappedByteBuffer buf = (MappedByteBuffer) ByteBuffer.allocateDirect(size);
+    read(pos, buf);
+    buf.clear();
+    markAccessed();
+
+    if (mode == FileChannel.MapMode.READ_ONLY) {
+      return (MappedByteBuffer) buf.asReadOnlyBuffer();
+    } else if (mode == FileChannel.MapMode.READ_WRITE && size > 0) {
+      if (mappedRegions == null) {
+        mappedRegions = new ArrayList<>();
+      }
+      mappedRegions.add(new MappedRegion(buf, owner, pos));
+      mapped = true;
+    }
+    return buf;
+  }
+
+  /**
+   * Writes changes made to the buffers of regions of this file mapped in {@code READ_WRITE} mode
+   * back to this file. Called when a channel to this file is forced and before this file is
+   * copied. Does nothing, without locking, if no region of this file is mapped. The caller must
+   * not hold either lock.
+   *
+   * @throws IOException if the file needs more blocks but the disk is full
+   */
+  void writeBackMappedChanges() throws IOException {
+    if (!mapped) {
+      return;
+    }
+
+    lock.writeLock().lock();
+    try {
+      writeBackMappedChangesWithoutLocking();
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /** Returns whether any region of this file mapped in {@code READ_WRITE} mode is still tracked. */
+  @VisibleForTesting
+  boolean isMapped() {
+    return mapped;
+  }
+
+  /**
+   * Writes back the changes made to the buffers of regions of this file mapped through the given
+   * owner, normally a channel that is being closed, and stops tracking those regions. Changes made
+   * to their buffers afterward are not written back. The caller must not hold either lock.
+   *
+   * @throws IOException if the file needs more blocks but the disk is full; the regions are
+   *     released regardless
+   */
+  void releaseMappings(Object owner) throws IOException {
+    if (!mapped) {
+      return;
+    }
+
+    lock.writeLock().lock();
+    try {
+      if (mappedRegions == null) {
+        return;
+      }
+
+      boolean modified = false;
+      Iterator<MappedRegion> it = mappedRegions.iterator();
+      try {
+        while (it.hasNext()) {
+          MappedRegion region = it.next();
+          if (region.owner() == owner) {
+            it.remove();
+            modified |= region.writeBack(this) > 0;
+          }
+        }
+      } finally {
+        while (it.hasNext()) {
+          if (it.next().owner() == owner) {
+            it.remove();
+          }
+        }
+        mapped = !mappedRegions.isEmpty();
+        if (modified) {
+          updateModifiedTime();
+        }
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  private void writeBackMappedChangesWithoutLocking() throws IOException {
+    if (mappedRegions == null) {
+      return;
+    }
+
+    boolean modified = false;
+    try {
+      for (MappedRegion region : mappedRegions) {
+        modified |= region.writeBack(this) > 0;
+      }
+    } finally {
+      if (modified) {
+        updateModifiedTime();
+      }
+    }
+  }
+
+  /**
+   * Copies the bytes from position {@code pos} to {@code pos + len}, just written, to the buffers
+   * of the mapped regions they overlap. Bytes past the end of this file, which has just been
+   * truncated, are copied as zeros. The caller must hold the write lock, or the read lock and the
+   * range of bytes written.
+   */
+  private void copyToMappedRegions(long pos, long len) {
+    if (!mapped || len <= 0) {
+      return;
+    }
+
+    try {
+      for (MappedRegion region : mappedRegions) {
+        region.copyFrom(this, pos, len);
+      }
+    } catch (IOException e) {
+      throw new AssertionError("bytes just written can't have been spilled", e);
+    }
+  }
+
+  /** Returns the number of blocks needed to hold the current content of this file. */
+  private int sizeInBlocks() {
+    return (int) ((size + disk.blockSize() - 1) / disk.blockSize());
+  }
+
+  /**
+   * Allocates at least {@code count} blocks to the end of this file for a write that grows it,
+   * plus extra blocks ahead of further growth if the disk has space for them.
+   */
+  private void allocateForGrowth(int count) throws IOException {
+    disk.allocate(this, count, count + Math.min(blockCount, MAX_PREALLOCATED_BLOCKS));
+  }
+
+  /** Returns whether or not this file is a sparse file. */
+  public boolean isSparse() {
+    return sparse;
+  }
+
+  /** Returns whether or not the content of this file is currently stored inline. */
+  boolean isInline() {
+    return inline != null;
+  }
+
+  /**
+   * Prepares for a write of {@code len} bytes starting at position {@code pos} to this file while
+   * its content is stored inline. If the write fits within the disk's maximum inline size, grows
+   * the inline content as needed, zeroes the bytes between the current size and {@code pos} and
+   * returns true. Otherwise, moves the content into blocks and returns false, leaving the write to
+   * the block-based path.
+   *
+   * @throws IOException if the content needs to be moved into blocks but the disk is full
+   */
+  private boolean prepareForInlineWrite(long pos, long len) throws IOException {
+    int maxInlineSize = disk.maxInlineSize();
+    if (pos > maxInlineSize || len > maxInlineSize - pos) {
+      moveInlineContentToBlocks();
+      return false;
+    }
+
+    markAccessed();
+    long end = pos + len;
+    if (end > inline.length) {
+      // grow geometrically so that a file written a few bytes at a time isn't copied on each write;
+      // seal() trims the array to the exact size
+      int newLength = (int) Math.min(Math.max(end, inline.length * 2L), maxInlineSize);
+      inline = Arrays.copyOf(inline, newLength);
+    }
+
+    if (pos > size) {
+      Arrays.fill(inline, (int) size, (int) pos, (byte) 0);
+      setSize(pos);
+    }
+    return true;
+  }
+
+  /**
+   * Moves the inline content of this file into newly allocated blocks. The content is left inline
+   * if the disk doesn't have space for the blocks.
+   *
+   * @throws IOException if the disk is full
+   */
+  private void moveInlineContentToBlocks() throws IOException {
+    int count = sizeInBlocks();
+    if (count > 0) {
+      disk.allocate(this, count);
+    }
+
+    int blockSize = disk.blockSize();
+    for (int i = 0; i < count; i++) {
+      int off = i * blockSize;
+      storage.put(blocks.get(i), 0, inline, off, length(size - off));
+    }
+    inline = null;
+  }
+
   // lower-level methods dealing with the blocks array
 
   private void expandIfNecessary(int minBlockCount) {
-    if (minBlockCount > blocks.length) {
-      this.blocks = Arrays.copyOf(blocks, nextPowerOf2(minBlockCount));
+    blocks.ensureCapacity(minBlockCount);
+  }
+
+  /**
+   * Returns the number of bytes of memory currently held for the content of this file: its blocks,
+   * including any allocated ahead of writes, plus its packed tail or inline content. Compressed
+   * blocks and holes are counted as whole blocks. Doesn't lock, so the result may be stale.
+   */
+  long allocatedSize() {
+    long allocated = (long) blockCount * disk.blockSize();
+    Object tail = this.tail;
+    if (tail != null) {
+      allocated += storage.size(tail);
+    }
+    byte[] inline = this.inline;
+    if (inline != null) {
+      allocated += inline.length;
     }
+    return allocated;
   }
 
   /** Returns the number of blocks this file contains. */
@@ -99,7 +530,7 @@ final class RegularFile extends File {
     int targetEnd = target.blockCount + count;
     target.expandIfNecessary(targetEnd);
 
-    System.arraycopy(this.blocks, start, target.blocks, target.blockCount, count);
+    BlockTable.copy(this.blocks, start, target.blocks, target.blockCount, count);
     target.blockCount = targetEnd;
   }
 
@@ -111,131 +542,588 @@ final class RegularFile extends File {
 
   /** Truncates the blocks of this file to the given block count. */
   void truncateBlocks(int count) {
-    clear(blocks, count, blockCount - count);
+    if (compressedBlockCount > 0) {
+      compressedBlockCount -= countCompressedBlocks(count, blockCount);
+    }
+    blocks.truncate(count, blockCount);
+    synchronized (this) {
+      if (sharedBlocks != null) {
+        sharedBlocks.clear(count, blockCount);
+      }
+    }
     blockCount = count;
   }
 
   /** Adds the given block to the end of this file. */
-  void addBlock(byte[] block) {
+  void addBlock(Object block) {
     expandIfNecessary(blockCount + 1);
-    blocks[blockCount++] = block;
+    blocks.set(blockCount++, block);
   }
 
-  /** Gets the block at the given index in this file. */
-  @VisibleForTesting
-  byte[] getBlock(int index) {
-    return blocks[index];
+  /** Adds holes to the end of this file until it has the given block count. */
+  private void addHoles(int count) {
+    if (count > blockCount) {
+      expandIfNecessary(count);
+      blockCount = count;
+    }
   }
 
-  // end of lower-level methods dealing with the blocks array
+  /** Gets the block at the given index in this file, which is null if the block is a hole. */
+  @NullableDecl
+  Object getBlock(int index) {
+    return blocks.get(index);
+  }
 
   /**
-   * Gets the current size of this file in bytes. Does not do locking, so should only be called when
-   * holding a lock.
+   * Gets the block at the given index for reading, using the disk's zero block for a hole and a
+   * decompressed copy of a compressed block. The returned block must not be written to.
+   *
+   * @throws IOException if the block was spilled and reading it back fails
    */
-  public long sizeWithoutLocking() {
-    return size;
+  private Object blockForRead(int index) throws IOException {
+    markAccessed();
+    if (tail != null && index == blockCount) {
+      return tail;
+    }
+    Object block = blocks.get(index);
+    if (block == null) {
+      return disk.zeroBlock();
+    } else if (block instanceof CompressedBlock) {
+      return disk.compressor().decompressed((CompressedBlock) block);
+    }
+    return block;
   }
 
-  // need to lock in these methods since they're defined by an interface
+  /** Returns the packed tail of this file, or null if its tail isn't packed. */
+  @NullableDecl
+  Object getTail() {
+    return tail;
+  }
 
-  @Override
-  public long size() {
-    readLock().lock();
-    try {
-      return size;
-    } finally {
-      readLock().unlock();
+  /**
+   * Packs the partial last block of this file into an exact-size tail, freeing the block. The
+   * block is left as is if it's a hole, compressed or may be shared.
+   */
+  private void packTail() {
+    int tailSize = (int) (size % disk.blockSize());
+    int last = blockCount - 1;
+    if (tail != null || tailSize == 0 || last != blockIndex(size)) {
+      return;
     }
-  }
 
-  @Override
-  RegularFile copyWithoutContent(int id) {
-    byte[][] copyBlocks = new byte[Math.max(blockCount * 2, 32)][];
-    return new RegularFile(id, disk, copyBlocks, 0, size);
+    Object block = blocks.get(last);
+    if (block == null || block instanceof CompressedBlock || mayShareBlock(last)) {
+      return;
+    }
+
+    Object packed = storage.allocate(tailSize);
+    storage.put(packed, 0, storage.asByteBuffer(block, 0, tailSize), tailSize);
+    disk.packTail(this, tailSize);
+    tail = packed;
   }
 
-  @Override
-  void copyContentTo(File file) throws IOException {
-    RegularFile copy = (RegularFile) file;
-    disk.allocate(copy, blockCount);
+  /**
+   * Unpacks the packed tail of this file into a newly allocated block at the end of the block list.
+   *
+   * @throws IOException if the disk is full
+   */
+  private void unpackTail() throws IOException {
+    int tailSize = storage.size(tail);
+    Object block = disk.unpackTail(tailSize);
+    storage.put(block, 0, storage.asByteBuffer(tail, 0, tailSize), tailSize);
+    addBlock(block);
+    tail = null;
+  }
 
-    for (int i = 0; i < blockCount; i++) {
-      byte[] block = blocks[i];
-      byte[] copyBlock = copy.blocks[i];
-      System.arraycopy(block, 0, copyBlock, 0, block.length);
+  /**
+   * Unpacks the packed tail of this file, if any, if a write of {@code len} bytes starting at
+   * position {@code pos} would reach past the end of the file's full blocks.
+   *
+   * @throws IOException if the disk is full
+   */
+  private void unpackTailForWrite(long pos, long len) throws IOException {
+    if (tail != null && len > (long) blockCount * disk.blockSize() - pos) {
+      unpackTail();
     }
   }
 
-  @Override
-  ReadWriteLock contentLock() {
-    return lock;
+  /** Releases the packed tail of this file, if any. */
+  private void releaseTail() {
+    if (tail != null) {
+      disk.releaseTail(storage.size(tail));
+      tail = null;
+    }
   }
 
-  // opened/closed/delete don't use the read/write lock... they only need to ensure that they are
-  // synchronized among themselves
-
-  @Override
-  public synchronized void opened() {
-    openCount++;
+  /** Returns whether this file contains any compressed blocks. */
+  boolean hasCompressedBlocks() {
+    return compressedBlockCount > 0;
   }
 
-  @Override
-  public synchronized void closed() {
-    if (--openCount == 0 && deleted) {
-      deleteContents();
+  /** Returns the number of compressed blocks from index {@code from} to index {@code to}. */
+  private int countCompressedBlocks(int from, int to) {
+    int count = 0;
+    for (int i = from; i < to; i++) {
+      if (blocks.get(i) instanceof CompressedBlock) {
+        count++;
+      }
     }
+    return count;
   }
 
   /**
-   * Marks this file as deleted. If there are no streams or channels open to the file, its contents
-   * are deleted if necessary.
+   * Replaces the compressed block at the given index with a newly allocated, decompressed block.
+   *
+   * @throws IOException if the disk is full or the block was spilled and reading it back fails
    */
-  @Override
-  public synchronized void deleted() {
-    if (links() == 0) {
-      deleted = true;
-      if (openCount == 0) {
-        deleteContents();
+  private void decompressBlock(int index) throws IOException {
+    CompressedBlock compressed = (CompressedBlock) blocks.get(index);
+    Object block = disk.allocateBlock();
+    disk.compressor().decompress(compressed, block);
+    blocks.set(index, block);
+    compressedBlockCount--;
+
+    disk.releaseCompressed(compressed, mayShareBlock(index));
+    synchronized (this) {
+      if (sharedBlocks != null) {
+        sharedBlocks.clear(index);
       }
     }
   }
 
+  /** Fills the hole at the given index with a newly allocated block of zeros. */
+  private void fillHole(int index) throws IOException {
+    Object block = disk.allocateBlock();
+    storage.zero(block, 0, disk.blockSize());
+    blocks.set(index, block);
+  }
+
+  /** Returns whether the block at the given index may be shared with another file. */
+  synchronized boolean mayShareBlock(int index) {
+    return sharedBlocks != null && sharedBlocks.get(index);
+  }
+
   /**
-   * Deletes the contents of this file. Called when this file has been deleted and all open streams
-   * and channels to it have been closed.
+   * Returns whether any of the blocks starting at the given index may be shared with another file.
    */
-  private void deleteContents() {
-    disk.free(this);
-    size = 0;
+  synchronized boolean mayShareBlocks(int fromIndex) {
+    return sharedBlocks != null && sharedBlocks.nextSetBit(fromIndex) != -1;
   }
 
   /**
-   * Truncates this file to the given {@code size}. If the given size is less than the current size
-   * of this file, the size of the file is reduced to the given size and any bytes beyond that size
-   * are lost. If the given size is greater than the current size of the file, this method does
-   * nothing. Returns {@code true} if this file was modified by the call (its size changed) and
-   * {@code false} otherwise.
+   * Marks the blocks from index {@code from} to index {@code to} (exclusive) of this file as
+   * possibly shared with another file.
    */
-  public boolean truncate(long size) {
-    if (size >= this.size) {
-      return false;
+  private synchronized void markShared(int from, int to) {
+    if (sharedBlocks == null) {
+      sharedBlocks = new BitSet();
     }
+    sharedBlocks.set(from, to);
+  }
 
-    long lastPosition = size - 1;
-    this.size = size;
-
-    int newBlockCount = blockIndex(lastPosition) + 1;
-    int blocksToRemove = blockCount - newBlockCount;
-    if (blocksToRemove > 0) {
-      disk.free(this, blocksToRemove);
+  /**
+   * Ensures that the blocks from index {@code from} to index {@code to} (inclusive) can be written
+   * to, decompressing any compressed blocks and replacing any blocks shared with another file with
+   * copies. Holes are left as is.
+   *
+   * @throws IOException if a new block is needed but the disk is full
+   */
+  private void prepareBlocksForWrite(int from, int to) throws IOException {
+    if (compressedBlockCount > 0) {
+      for (int i = from; i <= to; i++) {
+        if (blocks.get(i) instanceof CompressedBlock) {
+          decompressBlock(i);
+        }
+      }
     }
 
-    return true;
+    if (mayShareBlocks(from)) {
+      unshareBlocks(from, to);
+    }
+  }
+
+  /**
+   * Ensures that none of the blocks from index {@code from} to index {@code to} (inclusive) are
+   * shared with another file, replacing shared blocks with copies.
+   *
+   * @throws IOException if a copy is needed but the disk is full
+   */
+  private synchronized void unshareBlocks(int from, int to) throws IOException {
+    int i = sharedBlocks.nextSetBit(from);
+    while (i != -1 && i <= to) {
+      blocks.set(i, disk.copyOnWrite(blocks.get(i)));
+      sharedBlocks.clear(i);
+      i = sharedBlocks.nextSetBit(i + 1);
+    }
+  }
+
+  /** Records that this file has been accessed, for determining whether it has gone cold. */
+  private void markAccessed() {
+    if (!accessed) {
+      accessed = true;
+    }
+  }
+
+  /**
+   * Returns the time, per the disk's compressor, at which this file was last found to have been
+   * accessed, first recording {@code now} as that time if the file has been accessed since the
+   * last call.
+   */
+  long lastAccessed(long now) {
+    if (accessed) {
+      accessed = false;
+      lastAccessed = now;
+      compressedSinceAccess = false;
+    }
+    return lastAccessed;
+  }
+
+  /**
+   * Compresses the blocks of this file if it hasn't been accessed for at least {@code delayNanos}
+   * as of {@code now}, using the given compressor. Called periodically by the compressor.
+   */
+  void compressIfCold(long now, long delayNanos, BlockCompressor compressor) {
+    if (now - lastAccessed(now) >= delayNanos) {
+      compress(compressor);
+    }
+  }
+
+  /**
+   * Compresses (or spills, if the compressor spills blocks) the blocks of this file that aren't
+   * holes or shared, unless they were already compressed since the file was last accessed or the
+   * file is in use. Returns the number of blocks freed.
+   */
+  int compress(BlockCompressor compressor) {
+    if (compressedSinceAccess) {
+      return 0;
+    }
+
+    // hold the monitor to keep the contents from being deleted while compressing; don't wait for
+    // the write lock, since a file that's in use now isn't cold, and don't compress a file the
+    // current thread is in the middle of writing
+    synchronized (this) {
+      if (deleted || lock.isWriteLockedByCurrentThread() || !lock.writeLock().tryLock()) {
+        return 0;
+      }
+      try {
+        int freed = 0;
+        int count = Math.min(blockCount, sizeInBlocks());
+        for (int i = 0; i < count; i++) {
+          Object block = blocks.get(i);
+          if (block == null || block instanceof CompressedBlock || mayShareBlock(i)) {
+            continue;
+          }
+
+          CompressedBlock compressed = compressor.compress(block);
+          if (compressed != null) {
+            blocks.set(i, compressed);
+            compressedBlockCount++;
+            disk.freeBlock(block);
+            freed++;
+          }
+        }
+        compressedSinceAccess = true;
+        return freed;
+      } finally {
+        lock.writeLock().unlock();
+      }
+    }
+  }
+
+  // end of lower-level methods dealing with the blocks array
+
+  /**
+   * Gets the current size of this file in bytes. Does not do locking, so should only be called when
+   * holding a lock.
+   */
+  public long sizeWithoutLocking() {
+    return size;
+  }
+
+  /**
+   * Sets the size of this file, keeping the disk's total of the content size of its files up to
+   * date. The caller must hold the write lock, or the read lock while publishing an append.
+   */
+  private void setSize(long newSize) {
+    disk.addContentSize(newSize - size);
+    size = newSize;
+  }
+
+  // need to lock in these methods since they're defined by an interface
+
+  @Override
+  public long size() {
+    readLock().lock();
+    try {
+      return size;
+    } finally {
+      readLock().unlock();
+    }
+  }
+
+  @Override
+  RegularFile copyWithoutContent(int id) {
+    // the copy only needs as many slots as blocks it gets; it grows its table if it's written to
+    BlockTable copyBlocks =
+        inline != null ? new BlockTable() : new BlockTable(Math.max(sizeInBlocks(), 32));
+    return new RegularFile(id, disk, copyBlocks, 0, size, sparse);
+  }
+
+  @Override
+  void copyContentTo(File file) throws IOException {
+    RegularFile copy = (RegularFile) file;
+    if (inline != null) {
+      copy.inline = Arrays.copyOf(inline, (int) size);
+      return;
+    }
+
+    copyBlockContentTo(copy);
+    if (tail != null) {
+      copyTailTo(copy);
+    }
+  }
+
+  /**
+   * Copies the packed tail of this file to the given copy, which already has copies of this file's
+   * full blocks. The copy gets an unpacked block if the disk doesn't have space for another tail.
+   */
+  private void copyTailTo(RegularFile copy) throws IOException {
+    int tailSize = storage.size(tail);
+    Object tailCopy;
+    if (copy.disk.reserveTail(tailSize)) {
+      tailCopy = storage.allocate(tailSize);
+      copy.tail = tailCopy;
+    } else {
+      tailCopy = copy.disk.allocateBlock();
+      copy.addBlock(tailCopy);
+    }
+    storage.put(tailCopy, 0, storage.asByteBuffer(tail, 0, tailSize), tailSize);
+  }
+
+  /**
+   * Copies the content of this file's blocks to the given copy, keeping writes in place to this
+   * file out of the blocks while they're copied or shared.
+   */
+  private void copyBlockContentTo(RegularFile copy) throws IOException {
+    // don't copy blocks that were only allocated ahead of writes
+    int count = Math.min(blockCount, sizeInBlocks());
+    RangeLock.Range range = lockRange(0, (long) count * disk.blockSize(), copy.disk != disk);
+    try {
+      copyBlockContentTo(copy, count);
+    } finally {
+      unlockRange(range);
+    }
+  }
+
+  private void copyBlockContentTo(RegularFile copy, int count) throws IOException {
+    if (copy.disk == disk) {
+      // share the blocks rather than copying them; each file copies a shared block only when it's
+      // about to write to it
+      disk.share(this, count);
+      markShared(0, count);
+      copy.expandIfNecessary(count);
+      BlockTable.copy(blocks, 0, copy.blocks, 0, count);
+      copy.blockCount = count;
+      copy.compressedBlockCount = compressedBlockCount > 0 ? countCompressedBlocks(0, count) : 0;
+      copy.markShared(0, count);
+      return;
+    }
+
+    if (sparse) {
+      for (int i = 0; i < count; i++) {
+        Object blockCopy = null;
+        if (blocks.get(i) != null) {
+          blockCopy = copy.disk.allocateBlock();
+          storage.copy(blockForRead(i), blockCopy);
+        }
+        copy.addBlock(blockCopy);
+      }
+      return;
+    }
+
+    disk.allocate(copy, count);
+
+    for (int i = 0; i < count; i++) {
+      storage.copy(blockForRead(i), copy.blocks.get(i));
+    }
+  }
+
+  @Override
+  ContentLock contentLock() {
+    return lock;
+  }
+
+  // opened/closed/delete don't use the read/write lock... they only need to ensure that they are
+  // synchronized among themselves
+
+  @Override
+  public synchronized void opened() {
+    openCount++;
+  }
+
+  @Override
+  public synchronized void closed() {
+    if (--openCount == 0 && deleted) {
+      disk.unpin(this);
+      deleteContents();
+    }
+  }
+
+  /**
+   * Marks this file as deleted. If there are no streams or channels open to the file, its contents
+   * are deleted if necessary.
+   */
+  @Override
+  public synchronized void deleted() {
+    if (links() == 0) {
+      deleted = true;
+      if (openCount == 0) {
+        deleteContents();
+      } else {
+        disk.pin(this);
+      }
+    }
+  }
+
+  /**
+   * Frees the contents of this file because its file system has been closed, so that its blocks can
+   * be reused by other file systems sharing the disk's block pool.
+   */
+  void discardContents() {
+    lock.writeLock().lock();
+    try {
+      synchronized (this) {
+        if (!deleted) {
+          deleted = true;
+          deleteContents();
+        }
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Deletes the contents of this file. Called when this file has been deleted and all open streams
+   * and channels to it have been closed.
+   */
+  private void deleteContents() {
+    disk.free(this);
+    disk.unregister(this);
+    releaseTail();
+    if (inline != null) {
+      inline = NO_BYTES;
+    }
+    setSize(0);
+    mappedRegions = null;
+    mapped = false;
+  }
+
+  /**
+   * Truncates this file to the given {@code size}. If the given size is less than the current size
+   * of this file, the size of the file is reduced to the given size and any bytes beyond that size
+   * are lost. If the given size is greater than the current size of the file, this method does
+   * nothing. Returns {@code true} if this file was modified by the call (its size changed) and
+   * {@code false} otherwise.
+   */
+  public boolean truncate(long size) {
+    if (size >= this.size) {
+      return false;
+    }
+
+    long oldSize = this.size;
+    truncateContent(size);
+    copyToMappedRegions(size, oldSize - size);
+    return true;
+  }
+
+  private void truncateContent(long size) {
+    if (inline != null) {
+      inline = Arrays.copyOf(inline, (int) size);
+      setSize(size);
+      return;
+    }
+
+    if (tail != null) {
+      long tailStart = (long) blockCount * disk.blockSize();
+      if (size > tailStart) {
+        // shrink the tail in place of unpacking it, which could fail if the disk is full
+        int tailSize = (int) (size - tailStart);
+        Object shrunk = storage.allocate(tailSize);
+        storage.put(shrunk, 0, storage.asByteBuffer(tail, 0, tailSize), tailSize);
+        disk.releaseTail(storage.size(tail) - tailSize);
+        tail = shrunk;
+        setSize(size);
+        return;
+      }
+      releaseTail();
+    }
+
+    long lastPosition = size - 1;
+    setSize(size);
+
+    int newBlockCount = blockIndex(lastPosition) + 1;
+    int blocksToRemove = blockCount - newBlockCount;
+    if (blocksToRemove > 0) {
+      disk.free(this, blocksToRemove);
+    }
+  }
+
+  /**
+   * Seals this file after a stream or channel that wrote to it is closed. Frees any blocks beyond
+   * those needed to hold the current content of this file, such as blocks allocated ahead of writes
+   * that never happened, deduplicates the full blocks of the file if the disk does so and packs its
+   * partial last block into a tail if the disk packs tails. If the content of this file is stored
+   * inline, trims it to the exact size of the file instead.
+   */
+  public void seal() {
+    if (inline != null) {
+      if (inline.length > size) {
+        inline = Arrays.copyOf(inline, (int) size);
+      }
+      return;
+    }
+
+    int blocksToRemove = blockCount - sizeInBlocks();
+    if (blocksToRemove > 0) {
+      disk.free(this, blocksToRemove);
+    }
+
+    if (disk.deduplicatesBlocks()) {
+      deduplicate();
+    }
+
+    if (disk.packsTails()) {
+      packTail();
+    }
+  }
+
+  /**
+   * Replaces each full block of this file that isn't a hole, compressed or already shared with a
+   * deduplicated block with the same content.
+   */
+  private void deduplicate() {
+    int fullBlockCount = (int) Math.min(blockCount, size / disk.blockSize());
+    for (int i = 0; i < fullBlockCount; i++) {
+      Object block = blocks.get(i);
+      if (block == null || block instanceof CompressedBlock || mayShareBlock(i)) {
+        continue;
+      }
+
+      blocks.set(i, disk.deduplicate(block));
+      markShared(i, i + 1);
+    }
   }
 
   /** Prepares for a write of len bytes starting at position pos. */
   private void prepareForWrite(long pos, long len) throws IOException {
+    markAccessed();
+    unpackTailForWrite(pos, len);
+    if (sparse) {
+      prepareForSparseWrite(pos, len);
+      return;
+    }
+
     long end = pos + len;
 
     // allocate any additional blocks needed
@@ -244,7 +1132,14 @@ final class RegularFile extends File {
 
     if (endBlockIndex > lastBlockIndex) {
       int additionalBlocksNeeded = endBlockIndex - lastBlockIndex;
-      disk.allocate(this, additionalBlocksNeeded);
+      allocateForGrowth(additionalBlocksNeeded);
+    }
+
+    // make any shared or compressed blocks in the range about to be written (including any range
+    // to be zeroed) writable
+    long start = Math.min(pos, size);
+    if (end > start) {
+      prepareBlocksForWrite(blockIndex(start), endBlockIndex);
     }
 
     // zero bytes between current size and pos
@@ -252,134 +1147,560 @@ final class RegularFile extends File {
       long remaining = pos - size;
 
       int blockIndex = blockIndex(size);
-      byte[] block = blocks[blockIndex];
+      Object block = blocks.get(blockIndex);
       int off = offsetInBlock(size);
 
       remaining -= zero(block, off, length(off, remaining));
 
       while (remaining > 0) {
-        block = blocks[++blockIndex];
+        block = blocks.get(++blockIndex);
 
         remaining -= zero(block, 0, length(remaining));
       }
-
-      size = pos;
+
+      setSize(pos);
+    }
+  }
+
+  /**
+   * Prepares for a write of len bytes starting at position pos in a sparse file. Any blocks that
+   * fall entirely between the current size and pos are left as holes, and only the blocks that are
+   * actually written to are allocated.
+   */
+  private void prepareForSparseWrite(long pos, long len) throws IOException {
+    long end = pos + len;
+    if (end == 0) {
+      return;
+    }
+
+    int endBlockIndex = blockIndex(end - 1);
+    addHoles(endBlockIndex + 1);
+
+    long start = Math.min(pos, size);
+    if (end > start) {
+      prepareBlocksForWrite(blockIndex(start), endBlockIndex);
+    }
+
+    if (len > 0) {
+      for (int i = blockIndex(pos); i <= endBlockIndex; i++) {
+        if (blocks.get(i) == null) {
+          fillHole(i);
+        }
+      }
+    }
+
+    // zero bytes between current size and pos in blocks that aren't holes
+    if (pos > size) {
+      int blockSize = disk.blockSize();
+      int lastBlockIndex = blockIndex(pos - 1);
+      for (int i = blockIndex(size); i <= lastBlockIndex; i++) {
+        Object block = blocks.get(i);
+        if (block != null) {
+          long blockStart = (long) i * blockSize;
+          int off = (int) Math.max(size - blockStart, 0);
+          int zeroEnd = (int) Math.min(pos - blockStart, blockSize);
+          storage.zero(block, off, zeroEnd - off);
+        }
+      }
+
+      setSize(pos);
+    }
+  }
+
+  /**
+   * Writes the given byte to this file at position {@code pos}. {@code pos} may be greater than the
+   * current size of this file, in which case this file is resized and all bytes between the current
+   * size and {@code pos} are set to 0. Returns the number of bytes written.
+   *
+   * @throws IOException if the file needs more blocks but the disk is full
+   */
+  public int write(long pos, byte b) throws IOException {
+    if (inline != null && prepareForInlineWrite(pos, 1)) {
+      inline[(int) pos] = b;
+      if (pos >= size) {
+        setSize(pos + 1);
+      }
+      copyToMappedRegions(pos, 1);
+      return 1;
+    }
+
+    prepareForWrite(pos, 1);
+
+    Object block = blocks.get(blockIndex(pos));
+    int off = offsetInBlock(pos);
+    storage.put(block, off, b);
+
+    if (pos >= size) {
+      setSize(pos + 1);
+    }
+
+    copyToMappedRegions(pos, 1);
+    return 1;
+  }
+
+  /**
+   * Writes {@code len} bytes starting at offset {@code off} in the given byte array to this file
+   * starting at position {@code pos}. {@code pos} may be greater than the current size of this
+   * file, in which case this file is resized and all bytes between the current size and {@code pos}
+   * are set to 0. Returns the number of bytes written.
+   *
+   * @throws IOException if the file needs more blocks but the disk is full
+   */
+  public int write(long pos, byte[] b, int off, int len) throws IOException {
+    if (inline != null && prepareForInlineWrite(pos, len)) {
+      System.arraycopy(b, off, inline, (int) pos, len);
+      if (pos + len > size) {
+        setSize(pos + len);
+      }
+      copyToMappedRegions(pos, len);
+      return len;
+    }
+
+    prepareForWrite(pos, len);
+
+    if (len == 0) {
+      return 0;
+    }
+
+    int remaining = len;
+
+    int blockIndex = blockIndex(pos);
+    Object block = blocks.get(blockIndex);
+    int offInBlock = offsetInBlock(pos);
+
+    int written = put(block, offInBlock, b, off, length(offInBlock, remaining));
+    remaining -= written;
+    off += written;
+
+    while (remaining > 0) {
+      block = blocks.get(++blockIndex);
+
+      written = put(block, 0, b, off, length(remaining));
+      remaining -= written;
+      off += written;
+    }
+
+    long endPos = pos + len;
+    if (endPos > size) {
+      setSize(endPos);
+    }
+
+    copyToMappedRegions(pos, len);
+    return len;
+  }
+
+  /**
+   * Writes all available bytes from buffer {@code buf} to this file starting at position {@code
+   * pos}. {@code pos} may be greater than the current size of this file, in which case this file is
+   * resized and all bytes between the current size and {@code pos} are set to 0. Returns the number
+   * of bytes written.
+   *
+   * @throws IOException if the file needs more blocks but the disk is full
+   */
+  public int write(long pos, ByteBuffer buf) throws IOException {
+    int len = buf.remaining();
+
+    if (inline != null && prepareForInlineWrite(pos, len)) {
+      buf.get(inline, (int) pos, len);
+      if (pos + len > size) {
+        setSize(pos + len);
+      }
+      copyToMappedRegions(pos, len);
+      return len;
+    }
+
+    prepareForWrite(pos, len);
+
+    if (len == 0) {
+      return 0;
+    }
+
+    int blockIndex = blockIndex(pos);
+    Object block = blocks.get(blockIndex);
+    int off = offsetInBlock(pos);
+
+    put(block, off, buf);
+
+    while (buf.hasRemaining()) {
+      block = blocks.get(++blockIndex);
+
+      put(block, 0, buf);
+    }
+
+    long endPos = pos + len;
+    if (endPos > size) {
+      setSize(endPos);
+    }
+
+    copyToMappedRegions(pos, len);
+    return len;
+  }
+
+  /**
+   * Writes all available bytes from each buffer in {@code bufs}, in order, to this file starting at
+   * position {@code pos}. {@code pos} may be greater than the current size of this file, in which
+   * case this file is resized and all bytes between the current size and {@code pos} are set to 0.
+   * Returns the number of bytes written.
+   *
+   * @throws IOException if the file needs more blocks but the disk is full
+   */
+  public long write(long pos, Iterable<ByteBuffer> bufs) throws IOException {
+    ByteBuffer[] array = Iterables.toArray(bufs, ByteBuffer.class);
+    return write(pos, array, 0, array.length);
+  }
+
+  /**
+   * Writes all available bytes from each of the {@code length} buffers in {@code bufs} starting at
+   * index {@code offset}, in order, to this file starting at position {@code pos}, like {@link
+   * #write(long, Iterable)}. The blocks for the whole write are prepared once and then filled in a
+   * single pass over the blocks and buffers.
+   *
+   * @throws IOException if the file needs more blocks but the disk is full
+   */
+  public long write(long pos, ByteBuffer[] bufs, int offset, int length) throws IOException {
+    long len = Util.remaining(bufs, offset, length);
+    int end = offset + length;
+
+    if (inline != null && prepareForInlineWrite(pos, len)) {
+      int inlinePos = (int) pos;
+      for (int i = offset; i < end; i++) {
+        ByteBuffer buf = bufs[i];
+        int bufLen = buf.remaining();
+        buf.get(inline, inlinePos, bufLen);
+        inlinePos += bufLen;
+      }
+      if (pos + len > size) {
+        setSize(pos + len);
+      }
+      copyToMappedRegions(pos, len);
+      return len;
+    }
+
+    prepareForWrite(pos, len);
+
+    if (len == 0) {
+      return 0;
+    }
+
+    int blockIndex = blockIndex(pos);
+    Object block = blocks.get(blockIndex);
+    int off = offsetInBlock(pos);
+
+    for (int i = offset; i < end; i++) {
+      ByteBuffer buf = bufs[i];
+      while (buf.hasRemaining()) {
+        if (off == disk.blockSize()) {
+          block = blocks.get(++blockIndex);
+          off = 0;
+        }
+        off += put(block, off, buf);
+      }
+    }
+
+    long endPos = pos + len;
+    if (endPos > size) {
+      setSize(endPos);
+    }
+
+    copyToMappedRegions(pos, len);
+    return len;
+  }
+
+  /**
+   * Returned by {@link #tryWriteInPlace} when the bytes can't be written while holding only the
+   * read lock, in which case they must be written while holding the write lock.
+   */
+  static final long WRITE_CONFLICT = -1;
+
+  /**
+   * Writes all available bytes from each of the {@code length} buffers in {@code bufs} starting at
+   * index {@code offset}, in order, to this file starting at position {@code pos}, holding only the
+   * read lock and a lock on the range of bytes written so that writes to other ranges can proceed
+   * at the same time. Returns the number of bytes written, or {@link #WRITE_CONFLICT} if nothing
+   * was written because the write would change the size of the file, is empty or touches content
+   * that can't be written to in place.
+   *
+   * <p>Must be called while holding the read lock and not the write lock.
+   *
+   * @throws InterruptedException if the thread is interrupted while waiting for a write to an
+   *     overlapping range
+   */
+  long tryWriteInPlace(long pos, ByteBuffer[] bufs, int offset, int length)
+      throws InterruptedException {
+    long len = Util.remaining(bufs, offset, length);
+    if (rangeLock == null || len == 0 || len > size - pos || !writableInPlace(pos, pos + len)) {
+      return WRITE_CONFLICT;
+    }
+
+    RangeLock.Range range = rangeLock.lock(pos, pos + len);
+    if (!writableInPlace(pos, pos + len)) {
+      // blocks in the range were shared while waiting for it
+      rangeLock.unlock(range);
+      return WRITE_CONFLICT;
+    }
+    lock.beginConcurrentWrite();
+    try {
+      markAccessed();
+      int blockIndex = blockIndex(pos);
+      int off = offsetInBlock(pos);
+      for (int i = offset; i < offset + length; i++) {
+        ByteBuffer buf = bufs[i];
+        while (buf.hasRemaining()) {
+          if (off == disk.blockSize()) {
+            blockIndex++;
+            off = 0;
+          }
+          off += put(blocks.get(blockIndex), off, buf);
+        }
+      }
+      copyToMappedRegions(pos, len);
+    } finally {
+      lock.endConcurrentWrite();
+      rangeLock.unlock(range);
+    }
+    return len;
+  }
+
+  /**
+   * Returns whether the bytes from position {@code start} to {@code end} are all in blocks of this
+   * file that can be written to in place without changing its structure. Blocks can be marked
+   * shared at any time, so this must be checked again once the range is locked.
+   */
+  private boolean writableInPlace(long start, long end) {
+    if (inline != null || (tail != null && end > (long) blockCount * disk.blockSize())) {
+      return false;
+    }
+
+    int last = blockIndex(end - 1);
+    for (int i = blockIndex(start); i <= last; i++) {
+      Object block = blocks.get(i);
+      if (block == null || block instanceof CompressedBlock || mayShareBlock(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Locks the range of {@code len} bytes starting at position {@code pos} against writes in place,
+   * shared with other readers if {@code shared} is true, or returns null if this file can't be
+   * written to in place or the range is empty. Threads holding only the read lock lock the ranges
+   * they read, so they don't see a write in place half done, and the ranges of the blocks they
+   * share with another file, so that no write in place can start on a block once it's shared.
+   */
+  @NullableDecl
+  private RangeLock.Range lockRange(long pos, long len, boolean shared) {
+    if (rangeLock == null || len <= 0) {
+      return null;
+    }
+    return rangeLock.lockUninterruptibly(pos, pos + len, shared);
+  }
+
+  private void unlockRange(@NullableDecl RangeLock.Range range) {
+    if (range != null) {
+      rangeLock.unlock(range);
+    }
+  }
+
+  /**
+   * Returned by the {@code tryAppend} methods when the bytes can't be appended while holding only
+   * the read lock, in which case they must be appended while holding the write lock.
+   */
+  static final long APPEND_CONFLICT = -1;
+
+  /**
+   * Appends all available bytes from each of the {@code length} buffers in {@code bufs} starting
+   * at index {@code offset}, in order, to the end of this file while holding only the read lock, so
+   * that other appends can copy their bytes at the same time. Returns the position just past the
+   * appended bytes, or {@link #APPEND_CONFLICT} if the bytes weren't appended.
+   *
+   * <p>Must be called while holding the read lock and not the write lock. Returns only once all
+   * earlier appends have been published, so the file's size is then at least the returned
+   * position. Updates the file's modified time once the appended bytes are published, unless a
+   * later append that will do so is already waiting to be published.
+   */
+  long tryAppend(ByteBuffer[] bufs, int offset, int length) {
+    long len = Util.remaining(bufs, offset, length);
+    long start = reserveForAppend(len);
+    if (start == APPEND_CONFLICT) {
+      return APPEND_CONFLICT;
+    }
+
+    long pos = start;
+    long end = start + len;
+    lock.beginConcurrentWrite();
+    try {
+      int blockIndex = blockIndex(pos);
+      int off = offsetInBlock(pos);
+      for (int i = offset; i < offset + length; i++) {
+        ByteBuffer buf = bufs[i];
+        while (buf.hasRemaining()) {
+          if (off == disk.blockSize()) {
+            blockIndex++;
+            off = 0;
+          }
+          int written = put(blocks.get(blockIndex), off, buf);
+          off += written;
+          pos += written;
+        }
+      }
+    } finally {
+      try {
+        publishAppend(start, pos, end);
+      } finally {
+        lock.endConcurrentWrite();
+      }
     }
+    return end;
   }
 
   /**
-   * Writes the given byte to this file at position {@code pos}. {@code pos} may be greater than the
-   * current size of this file, in which case this file is resized and all bytes between the current
-   * size and {@code pos} are set to 0. Returns the number of bytes written.
-   *
-   * @throws IOException if the file needs more blocks but the disk is full
+   * Appends {@code len} bytes starting at offset {@code off} in the given byte array to the end of
+   * this file while holding only the read lock, like {@link #tryAppend(ByteBuffer[], int, int)}.
    */
-  public int write(long pos, byte b) throws IOException {
-    prepareForWrite(pos, 1);
-
-    byte[] block = blocks[blockIndex(pos)];
-    int off = offsetInBlock(pos);
-    block[off] = b;
-
-    if (pos >= size) {
-      size = pos + 1;
+  long tryAppend(byte[] b, int off, int len) {
+    long start = reserveForAppend(len);
+    if (start == APPEND_CONFLICT) {
+      return APPEND_CONFLICT;
     }
 
-    return 1;
+    long pos = start;
+    long end = start + len;
+    lock.beginConcurrentWrite();
+    try {
+      while (pos < end) {
+        int offInBlock = offsetInBlock(pos);
+        Object block = blocks.get(blockIndex(pos));
+        int written = put(block, offInBlock, b, off, length(offInBlock, end - pos));
+        off += written;
+        pos += written;
+      }
+    } finally {
+      try {
+        publishAppend(start, pos, end);
+      } finally {
+        lock.endConcurrentWrite();
+      }
+    }
+    return end;
   }
 
   /**
-   * Writes {@code len} bytes starting at offset {@code off} in the given byte array to this file
-   * starting at position {@code pos}. {@code pos} may be greater than the current size of this
-   * file, in which case this file is resized and all bytes between the current size and {@code pos}
-   * are set to 0. Returns the number of bytes written.
-   *
-   * @throws IOException if the file needs more blocks but the disk is full
+   * Reserves the next {@code len} bytes past the end of the last reserved range for a concurrent
+   * append, returning the position of the reserved range or {@link #APPEND_CONFLICT} if the range
+   * doesn't fit in blocks that can be written to in place.
    */
-  public int write(long pos, byte[] b, int off, int len) throws IOException {
-    prepareForWrite(pos, len);
-
-    if (len == 0) {
-      return 0;
+  @VisibleForTesting
+  long reserveForAppend(long len) {
+    // the version can't change while the read lock is held; it's odd (and this returns 0) only if
+    // the current thread also holds the write lock
+    long version = lock.version();
+    if (version == 0 || len == 0 || appendWaiters == null) {
+      return APPEND_CONFLICT;
     }
 
-    int remaining = len;
-
-    int blockIndex = blockIndex(pos);
-    byte[] block = blocks[blockIndex];
-    int offInBlock = offsetInBlock(pos);
-
-    int written = put(block, offInBlock, b, off, length(offInBlock, remaining));
-    remaining -= written;
-    off += written;
-
-    while (remaining > 0) {
-      block = blocks[++blockIndex];
-
-      written = put(block, 0, b, off, length(remaining));
-      remaining -= written;
-      off += written;
+    long seen = appendVersion;
+    while (seen != version) {
+      if (seen != APPEND_SYNCING && APPEND_VERSION.compareAndSet(this, seen, APPEND_SYNCING)) {
+        // no appends can be in progress, since the write lock was held since the last reset
+        appendEnd = size;
+        appendLimit = concurrentAppendLimit();
+        appendVersion = version;
+        break;
+      }
+      Thread.yield();
+      seen = appendVersion;
     }
 
-    long endPos = pos + len;
-    if (endPos > size) {
-      size = endPos;
+    while (true) {
+      long start = appendEnd;
+      if (len > appendLimit - start) {
+        return APPEND_CONFLICT;
+      }
+      if (APPEND_END.compareAndSet(this, start, start + len)) {
+        return start;
+      }
     }
-
-    return len;
   }
 
   /**
-   * Writes all available bytes from buffer {@code buf} to this file starting at position {@code
-   * pos}. {@code pos} may be greater than the current size of this file, in which case this file is
-   * resized and all bytes between the current size and {@code pos} are set to 0. Returns the number
-   * of bytes written.
-   *
-   * @throws IOException if the file needs more blocks but the disk is full
+   * Returns the position up to which concurrent appends can write to the blocks of this file in
+   * place: the end of the run of allocated, writable blocks past the current size. Returns the
+   * current size if the file can't be appended to concurrently at all.
    */
-  public int write(long pos, ByteBuffer buf) throws IOException {
-    int len = buf.remaining();
-
-    prepareForWrite(pos, len);
-
-    if (len == 0) {
-      return 0;
+  private long concurrentAppendLimit() {
+    if (inline != null || tail != null || disk.compressor() != null) {
+      return size;
     }
 
-    int blockIndex = blockIndex(pos);
-    byte[] block = blocks[blockIndex];
-    int off = offsetInBlock(pos);
-
-    put(block, off, buf);
-
-    while (buf.hasRemaining()) {
-      block = blocks[++blockIndex];
-
-      put(block, 0, buf);
+    int blockSize = disk.blockSize();
+    for (int i = blockIndex(size); i < blockCount; i++) {
+      Object block = blocks.get(i);
+      if (block == null || block instanceof CompressedBlock || mayShareBlock(i)) {
+        return Math.max(size, (long) i * blockSize);
+      }
     }
+    return Math.max(size, (long) blockCount * blockSize);
+  }
 
-    long endPos = pos + len;
-    if (endPos > size) {
-      size = endPos;
+  /**
+   * Publishes the bytes of a concurrent append that reserved the range from {@code start} to {@code
+   * end}, once all earlier appends have been published. If the append failed at position {@code
+   * pos} before the end of its range, the reservation is rolled back if no later range has been
+   * reserved; otherwise the rest of the range is zeroed and published so that later appends aren't
+   * held up.
+   */
+  @VisibleForTesting
+  void publishAppend(long start, long pos, long end) {
+    if (pos < end && APPEND_END.compareAndSet(this, end, start)) {
+      return;
     }
 
-    return len;
+    try {
+      while (pos < end) {
+        int off = offsetInBlock(pos);
+        pos += zero(blocks.get(blockIndex(pos)), off, length(off, end - pos));
+      }
+      markAccessed();
+    } finally {
+      // appends are published in the order their ranges were reserved, each waiting only for the
+      // appends before it to finish copying
+      awaitAppendTurn(start);
+      setSize(end);
+      copyToMappedRegions(start, end - start);
+      Thread next = appendWaiters.get(end);
+      if (next != null) {
+        LockSupport.unpark(next);
+      } else {
+        // the modified time is updated once for each run of appends published back to back
+        updateModifiedTime();
+      }
+    }
   }
 
   /**
-   * Writes all available bytes from each buffer in {@code bufs}, in order, to this file starting at
-   * position {@code pos}. {@code pos} may be greater than the current size of this file, in which
-   * case this file is resized and all bytes between the current size and {@code pos} are set to 0.
-   * Returns the number of bytes written.
-   *
-   * @throws IOException if the file needs more blocks but the disk is full
+   * Parks the current thread until the appends whose ranges were reserved before the one starting
+   * at {@code start} have been published. Interruption is deferred until then.
    */
-  public long write(long pos, Iterable<ByteBuffer> bufs) throws IOException {
-    long start = pos;
-    for (ByteBuffer buf : bufs) {
-      pos += write(pos, buf);
+  private void awaitAppendTurn(long start) {
+    if (size == start) {
+      return;
+    }
+
+    Thread current = Thread.currentThread();
+    boolean interrupted = false;
+    appendWaiters.put(start, current);
+    try {
+      while (size != start) {
+        LockSupport.park(this);
+        interrupted |= Thread.interrupted();
+      }
+    } finally {
+      appendWaiters.remove(start);
+    }
+    if (interrupted) {
+      current.interrupt();
     }
-    return pos - start;
   }
 
   /**
@@ -391,6 +1712,22 @@ final class RegularFile extends File {
    *     throws an exception
    */
   public long transferFrom(ReadableByteChannel src, long pos, long count) throws IOException {
+    if (inline != null && prepareForInlineWrite(pos, count)) {
+      ByteBuffer buf = ByteBuffer.wrap(inline, (int) pos, (int) count);
+      while (buf.hasRemaining()) {
+        if (src.read(buf) == -1) {
+          break;
+        }
+      }
+
+      if (buf.position() > size) {
+        setSize(buf.position());
+      }
+      copyToMappedRegions(pos, buf.position() - pos);
+      return buf.position() - pos;
+    }
+
+    unpackTailForWrite(pos, count);
     prepareForWrite(pos, 0); // don't assume the full count bytes will be written
 
     if (count == 0) {
@@ -400,10 +1737,10 @@ final class RegularFile extends File {
     long remaining = count;
 
     int blockIndex = blockIndex(pos);
-    byte[] block = blockForWrite(blockIndex);
+    Object block = blockForWrite(blockIndex);
     int off = offsetInBlock(pos);
 
-    ByteBuffer buf = ByteBuffer.wrap(block, off, length(off, remaining));
+    ByteBuffer buf = storage.asByteBuffer(block, off, length(off, remaining));
 
     long currentPos = pos;
     int read = 0;
@@ -419,7 +1756,7 @@ final class RegularFile extends File {
 
     // update size before trying to get next block in case the disk is out of space
     if (currentPos > size) {
-      size = currentPos;
+      setSize(currentPos);
     }
 
     if (read != -1) {
@@ -427,7 +1764,7 @@ final class RegularFile extends File {
       while (remaining > 0) {
         block = blockForWrite(++blockIndex);
 
-        buf = ByteBuffer.wrap(block, 0, length(remaining));
+        buf = storage.asByteBuffer(block, 0, length(remaining));
         while (buf.hasRemaining()) {
           read = src.read(buf);
           if (read == -1) {
@@ -439,46 +1776,68 @@ final class RegularFile extends File {
         }
 
         if (currentPos > size) {
-          size = currentPos;
+          setSize(currentPos);
         }
       }
     }
 
     if (currentPos > size) {
-      size = currentPos;
+      setSize(currentPos);
     }
 
+    copyToMappedRegions(pos, currentPos - pos);
     return currentPos - pos;
   }
 
   /**
    * Reads the byte at position {@code pos} in this file as an unsigned integer in the range 0-255.
    * If {@code pos} is greater than or equal to the size of this file, returns -1 instead.
+   *
+   * @throws IOException if reading a spilled block back fails
    */
-  public int read(long pos) {
+  public int read(long pos) throws IOException {
     if (pos >= size) {
       return -1;
     }
 
-    byte[] block = blocks[blockIndex(pos)];
+    if (inline != null) {
+      markAccessed();
+      return UnsignedBytes.toInt(inline[(int) pos]);
+    }
+
+    Object block = blockForRead(blockIndex(pos));
     int off = offsetInBlock(pos);
-    return UnsignedBytes.toInt(block[off]);
+    return UnsignedBytes.toInt(storage.get(block, off));
   }
 
   /**
    * Reads up to {@code len} bytes starting at position {@code pos} in this file to the given byte
    * array starting at offset {@code off}. Returns the number of bytes actually read or -1 if {@code
    * pos} is greater than or equal to the size of this file.
+   *
+   * @throws IOException if reading a spilled block back fails
    */
-  public int read(long pos, byte[] b, int off, int len) {
+  public int read(long pos, byte[] b, int off, int len) throws IOException {
+    RangeLock.Range range = lockRange(pos, bytesToRead(pos, len), true);
+    try {
+      return readWithoutRangeLock(pos, b, off, len);
+    } finally {
+      unlockRange(range);
+    }
+  }
+
+  private int readWithoutRangeLock(long pos, byte[] b, int off, int len) throws IOException {
     // since max is len (an int), result is guaranteed to be an int
     int bytesToRead = (int) bytesToRead(pos, len);
 
-    if (bytesToRead > 0) {
+    if (bytesToRead > 0 && inline != null) {
+      markAccessed();
+      System.arraycopy(inline, (int) pos, b, off, bytesToRead);
+    } else if (bytesToRead > 0) {
       int remaining = bytesToRead;
 
       int blockIndex = blockIndex(pos);
-      byte[] block = blocks[blockIndex];
+      Object block = blockForRead(blockIndex);
       int offsetInBlock = offsetInBlock(pos);
 
       int read = get(block, offsetInBlock, b, off, length(offsetInBlock, remaining));
@@ -487,7 +1846,7 @@ final class RegularFile extends File {
 
       while (remaining > 0) {
         int index = ++blockIndex;
-        block = blocks[index];
+        block = blockForRead(index);
 
         read = get(block, 0, b, off, length(remaining));
         remaining -= read;
@@ -502,23 +1861,41 @@ final class RegularFile extends File {
    * Reads up to {@code buf.remaining()} bytes starting at position {@code pos} in this file to the
    * given buffer. Returns the number of bytes read or -1 if {@code pos} is greater than or equal to
    * the size of this file.
+   *
+   * @throws IOException if reading a spilled block back fails
+   */
+  public int read(long pos, ByteBuffer buf) throws IOException {
+    RangeLock.Range range = lockRange(pos, bytesToRead(pos, buf.remaining()), true);
+    try {
+      return readWithoutRangeLock(pos, buf);
+    } finally {
+      unlockRange(range);
+    }
+  }
+
+  /**
+   * Reads bytes to the given buffer like {@link #read(long, ByteBuffer)}, without locking the range
+   * of bytes read. The caller must hold the write lock, or the read lock and the range.
    */
-  public int read(long pos, ByteBuffer buf) {
+  int readWithoutRangeLock(long pos, ByteBuffer buf) throws IOException {
     // since max is buf.remaining() (an int), result is guaranteed to be an int
     int bytesToRead = (int) bytesToRead(pos, buf.remaining());
 
-    if (bytesToRead > 0) {
+    if (bytesToRead > 0 && inline != null) {
+      markAccessed();
+      buf.put(inline, (int) pos, bytesToRead);
+    } else if (bytesToRead > 0) {
       int remaining = bytesToRead;
 
       int blockIndex = blockIndex(pos);
-      byte[] block = blocks[blockIndex];
+      Object block = blockForRead(blockIndex);
       int off = offsetInBlock(pos);
 
       remaining -= get(block, off, buf, length(off, remaining));
 
       while (remaining > 0) {
         int index = ++blockIndex;
-        block = blocks[index];
+        block = blockForRead(index);
         remaining -= get(block, 0, buf, length(remaining));
       }
     }
@@ -526,27 +1903,156 @@ final class RegularFile extends File {
     return bytesToRead;
   }
 
+  /**
+   * Returned by the {@code tryRead} methods when an optimistic read conflicted with a write, or
+   * couldn't be attempted, and must be done again while holding the read lock.
+   */
+  static final int READ_CONFLICT = -2;
+
+  /**
+   * Returns a stamp for an optimistic read of this file, or 0 if the file can't be read
+   * optimistically right now. Files on a disk that compresses blocks are never read optimistically,
+   * since reading a compressed block has side effects on the disk's compressor.
+   */
+  private long tryOptimisticRead() {
+    return disk.compressor() == null ? lock.tryOptimisticRead() : 0;
+  }
+
+  /**
+   * Reads the byte at position {@code pos} like {@link #read(long)}, but without holding the read
+   * lock. Returns {@link #READ_CONFLICT} if the file was written to during the read, in which case
+   * the read must be done again while holding the read lock.
+   */
+  int tryRead(long pos) {
+    long stamp = tryOptimisticRead();
+    if (stamp != 0) {
+      try {
+        int b = read(pos);
+        if (lock.validate(stamp)) {
+          return b;
+        }
+      } catch (IOException | RuntimeException e) {
+        // the file was read in an inconsistent state, or the read really failed; either way, it'll
+        // be done again under the read lock
+      }
+    }
+    return READ_CONFLICT;
+  }
+
+  /**
+   * Reads bytes to the given byte array like {@link #read(long, byte[], int, int)}, but without
+   * holding the read lock. Returns {@link #READ_CONFLICT} if the file was written to during the
+   * read, in which case the content of the array is undefined and the read must be done again
+   * while holding the read lock.
+   */
+  int tryRead(long pos, byte[] b, int off, int len) {
+    long stamp = tryOptimisticRead();
+    if (stamp != 0) {
+      try {
+        int read = readWithoutRangeLock(pos, b, off, len);
+        if (lock.validate(stamp)) {
+          return read;
+        }
+      } catch (IOException | RuntimeException e) {
+        // see tryRead(long)
+      }
+    }
+    return READ_CONFLICT;
+  }
+
+  /**
+   * Reads bytes to the given buffer like {@link #read(long, ByteBuffer)}, but without holding the
+   * read lock. Returns {@link #READ_CONFLICT} if the file was written to during the read, in which
+   * case the buffer's position is reset and the read must be done again while holding the read
+   * lock.
+   */
+  int tryRead(long pos, ByteBuffer buf) {
+    long stamp = tryOptimisticRead();
+    if (stamp != 0) {
+      int start = buf.position();
+      try {
+        int read = readWithoutRangeLock(pos, buf);
+        if (lock.validate(stamp)) {
+          return read;
+        }
+      } catch (IOException | RuntimeException e) {
+        // see tryRead(long)
+      }
+      buf.position(start);
+    }
+    return READ_CONFLICT;
+  }
+
   /**
    * Reads up to the total {@code remaining()} number of bytes in each of {@code bufs} starting at
    * position {@code pos} in this file to the given buffers, in order. Returns the number of bytes
    * read or -1 if {@code pos} is greater than or equal to the size of this file.
+   *
+   * @throws IOException if reading a spilled block back fails
    */
-  public long read(long pos, Iterable<ByteBuffer> bufs) {
-    if (pos >= size()) {
-      return -1;
+  public long read(long pos, Iterable<ByteBuffer> bufs) throws IOException {
+    ByteBuffer[] array = Iterables.toArray(bufs, ByteBuffer.class);
+    return read(pos, array, 0, array.length);
+  }
+
+  /**
+   * Reads up to the total {@code remaining()} number of bytes in each of the {@code length} buffers
+   * in {@code bufs} starting at index {@code offset} to those buffers, in order, starting at
+   * position {@code pos} in this file, like {@link #read(long, Iterable)}. The blocks and buffers
+   * are walked in a single pass.
+   *
+   * @throws IOException if reading a spilled block back fails
+   */
+  public long read(long pos, ByteBuffer[] bufs, int offset, int length) throws IOException {
+    long bytesToRead = bytesToRead(pos, Util.remaining(bufs, offset, length));
+    if (bytesToRead <= 0) {
+      return bytesToRead;
     }
 
-    long start = pos;
-    for (ByteBuffer buf : bufs) {
-      int read = read(pos, buf);
-      if (read == -1) {
-        break;
-      } else {
-        pos += read;
+    RangeLock.Range range = lockRange(pos, bytesToRead, true);
+    try {
+      return read(pos, bytesToRead, bufs, offset);
+    } finally {
+      unlockRange(range);
+    }
+  }
+
+  /** Reads {@code bytesToRead} bytes to the given buffers starting at index {@code offset}. */
+  private long read(long pos, long bytesToRead, ByteBuffer[] bufs, int offset) throws IOException {
+    long remaining = bytesToRead;
+    int i = offset;
+
+    if (inline != null) {
+      markAccessed();
+      int inlinePos = (int) pos;
+      while (remaining > 0) {
+        ByteBuffer buf = bufs[i++];
+        int len = (int) Math.min(buf.remaining(), remaining);
+        buf.put(inline, inlinePos, len);
+        inlinePos += len;
+        remaining -= len;
+      }
+      return bytesToRead;
+    }
+
+    int blockIndex = blockIndex(pos);
+    Object block = blockForRead(blockIndex);
+    int off = offsetInBlock(pos);
+
+    while (remaining > 0) {
+      ByteBuffer buf = bufs[i++];
+      while (buf.hasRemaining() && remaining > 0) {
+        if (off == disk.blockSize()) {
+          block = blockForRead(++blockIndex);
+          off = 0;
+        }
+        int len = (int) Math.min(Math.min(disk.blockSize() - off, buf.remaining()), remaining);
+        off += get(block, off, buf, len);
+        remaining -= len;
       }
     }
 
-    return pos - start;
+    return bytesToRead;
   }
 
   /**
@@ -557,16 +2063,26 @@ final class RegularFile extends File {
    * method is primarily intended as an implementation of.
    */
   public long transferTo(long pos, long count, WritableByteChannel dest) throws IOException {
+    if (rangeLock != null) {
+      return transferThroughBuffer(pos, count, dest);
+    }
+
     long bytesToRead = bytesToRead(pos, count);
 
-    if (bytesToRead > 0) {
+    if (bytesToRead > 0 && inline != null) {
+      markAccessed();
+      ByteBuffer buf = ByteBuffer.wrap(inline, (int) pos, (int) bytesToRead);
+      while (buf.hasRemaining()) {
+        dest.write(buf);
+      }
+    } else if (bytesToRead > 0) {
       long remaining = bytesToRead;
 
       int blockIndex = blockIndex(pos);
-      byte[] block = blocks[blockIndex];
+      Object block = blockForRead(blockIndex);
       int off = offsetInBlock(pos);
 
-      ByteBuffer buf = ByteBuffer.wrap(block, off, length(off, remaining));
+      ByteBuffer buf = storage.asByteBuffer(block, off, length(off, remaining));
       while (buf.hasRemaining()) {
         remaining -= dest.write(buf);
       }
@@ -574,9 +2090,9 @@ final class RegularFile extends File {
 
       while (remaining > 0) {
         int index = ++blockIndex;
-        block = blocks[index];
+        block = blockForRead(index);
 
-        buf = ByteBuffer.wrap(block, 0, length(remaining));
+        buf = storage.asByteBuffer(block, 0, length(remaining));
         while (buf.hasRemaining()) {
           remaining -= dest.write(buf);
         }
@@ -587,14 +2103,200 @@ final class RegularFile extends File {
     return Math.max(bytesToRead, 0); // don't return -1 for this method
   }
 
+  /**
+   * Transfers bytes to the given channel like {@link #transferTo(long, long, WritableByteChannel)},
+   * but through a buffer, so that each range read is locked against writes in place only while
+   * it's copied to the buffer and not while writing to the channel, which may write to this file.
+   */
+  private long transferThroughBuffer(long pos, long count, WritableByteChannel dest)
+      throws IOException {
+    long bytesToRead = bytesToRead(pos, count);
+    if (bytesToRead <= 0) {
+      return 0;
+    }
+
+    ByteBuffer buf = ByteBuffer.allocate((int) Math.min(disk.blockSize(), bytesToRead));
+    long transferred = 0;
+    while (transferred < bytesToRead) {
+      buf.clear();
+      buf.limit((int) Math.min(buf.capacity(), bytesToRead - transferred));
+      int read = read(pos + transferred, buf);
+      buf.flip();
+      while (buf.hasRemaining()) {
+        dest.write(buf);
+      }
+      transferred += read;
+    }
+    return transferred;
+  }
+
+  /**
+   * Transfers up to {@code count} bytes starting at position {@code pos} in this file directly to
+   * the given target file starting at position {@code targetPos}, copying from block to block
+   * rather than through a channel. Returns the number of bytes transferred, possibly 0. Like
+   * {@link #transferTo(long, long, WritableByteChannel)}, doesn't return -1 if {@code pos} is
+   * greater than or equal to the current size.
+   *
+   * <p>If the target is on the same disk and the bytes are appended to the target at a block
+   * boundary, full blocks are shared with the target rather than copied, and each file copies a
+   * shared block only when it's about to write to it.
+   *
+   * <p>The caller must hold the read lock for this file and the write lock for the target, which
+   * must be a different file.
+   *
+   * @throws IOException if the target's disk is full or reading a spilled block back fails
+   */
+  public long transferTo(long pos, long count, RegularFile target, long targetPos)
+      throws IOException {
+    long bytesToRead = bytesToRead(pos, count);
+    if (bytesToRead <= 0) {
+      return 0;
+    }
+
+    if (inline != null) {
+      markAccessed();
+      target.write(targetPos, inline, (int) pos, (int) bytesToRead);
+      return bytesToRead;
+    }
+
+    // blocks are only shared with a target on the same disk; no write in place may be in progress
+    // on a block when it's shared
+    RangeLock.Range range = lockRange(pos, bytesToRead, target.disk != disk);
+    try {
+      long remaining = bytesToRead;
+      int blockIndex = blockIndex(pos);
+      int off = offsetInBlock(pos);
+      while (remaining > 0) {
+        int len = length(off, remaining);
+        if (len != disk.blockSize() || !shareBlockWith(blockIndex, target, targetPos)) {
+          Object block = blockForRead(blockIndex);
+          if (block instanceof byte[]) {
+            target.write(targetPos, (byte[]) block, off, len);
+          } else {
+            target.write(targetPos, storage.asByteBuffer(block, off, len));
+          }
+        } else {
+          target.copyToMappedRegions(targetPos, len);
+        }
+
+        remaining -= len;
+        targetPos += len;
+        blockIndex++;
+        off = 0;
+      }
+    } finally {
+      unlockRange(range);
+    }
+
+    return bytesToRead;
+  }
+
+  /**
+   * Acquires the read lock for the source file and the write lock for the destination file of a
+   * transfer between two different files. The locks are always acquired in the same order for the
+   * same two files, so that transfers between them in opposite directions can't deadlock.
+   */
+  static void lockForTransfer(RegularFile src, RegularFile dest)
+      throws InterruptedException {
+    int order = compareForLocking(src, dest);
+    if (order < 0) {
+      lockBoth(src.readLock(), dest.writeLock());
+    } else if (order > 0) {
+      lockBoth(dest.writeLock(), src.readLock());
+    } else {
+      // no way to order the files, so make sure only one such transfer acquires its locks at once
+      synchronized (TRANSFER_TIE_LOCK) {
+        lockBoth(src.readLock(), dest.writeLock());
+      }
+    }
+  }
+
+  private static final Object TRANSFER_TIE_LOCK = new Object();
+
+  private static void lockBoth(Lock first, Lock second) throws InterruptedException {
+    first.lockInterruptibly();
+    try {
+      second.lockInterruptibly();
+    } catch (InterruptedException e) {
+      first.unlock();
+      throw e;
+    }
+  }
+
+  /** Releases the locks acquired by {@link #lockForTransfer}. */
+  static void unlockForTransfer(RegularFile src, RegularFile dest) {
+    dest.writeLock().unlock();
+    src.readLock().unlock();
+  }
+
+  /**
+   * Returns a negative number if file {@code a} should be locked before file {@code b}, a positive
+   * number if {@code b} should be locked first or 0 if they can't be ordered.
+   */
+  private static int compareForLocking(RegularFile a, RegularFile b) {
+    // files in different file systems may have the same ID
+    if (a.id() != b.id()) {
+      return a.id() < b.id() ? -1 : 1;
+    }
+    int aHash = System.identityHashCode(a);
+    int bHash = System.identityHashCode(b);
+    return aHash == bHash ? 0 : aHash < bHash ? -1 : 1;
+  }
+
+  /**
+   * Appends the full block at the given index of this file to the given target file, which must
+   * end at position {@code targetPos}, by sharing it. Returns false without changing anything if
+   * the block can't be shared, because the target is on another disk, doesn't end at a block
+   * boundary at {@code targetPos} or the block is a hole or compressed.
+   */
+  private boolean shareBlockWith(int index, RegularFile target, long targetPos) {
+    if (target.disk != disk
+        || target.inline != null
+        || target.tail != null
+        || targetPos != target.size
+        || target.offsetInBlock(targetPos) != 0) {
+      return false;
+    }
+
+    int targetIndex = target.blockIndex(targetPos);
+    Object block = blocks.get(index);
+    if (block == null || block instanceof CompressedBlock || target.blockCount < targetIndex) {
+      return false;
+    }
+
+    markAccessed();
+    if (target.blockCount > targetIndex) {
+      // free the blocks the target allocated ahead of writes
+      disk.free(target, target.blockCount - targetIndex);
+    }
+
+    disk.share(block);
+    markShared(index, index + 1);
+    target.addBlock(block);
+    target.markShared(targetIndex, targetIndex + 1);
+    target.setSize(targetPos + disk.blockSize());
+    return true;
+  }
+
   /** Gets the block at the given index, expanding to create the block if necessary. */
-  private byte[] blockForWrite(int index) throws IOException {
+  private Object blockForWrite(int index) throws IOException {
+    markAccessed();
     if (index >= blockCount) {
       int additionalBlocksNeeded = index - blockCount + 1;
-      disk.allocate(this, additionalBlocksNeeded);
+      if (sparse) {
+        disk.allocate(this, additionalBlocksNeeded);
+      } else {
+        allocateForGrowth(additionalBlocksNeeded);
+      }
+    } else {
+      prepareBlocksForWrite(index, index);
+    }
+
+    if (blocks.get(index) == null) {
+      fillHole(index);
     }
 
-    return blocks[index];
+    return blocks.get(index);
   }
 
   private int blockIndex(long position) {
@@ -626,21 +2328,21 @@ final class RegularFile extends File {
   }
 
   /** Zeroes len bytes in the given block starting at the given offset. Returns len. */
-  private static int zero(byte[] block, int offset, int len) {
-    Util.zero(block, offset, len);
+  private int zero(Object block, int offset, int len) {
+    storage.zero(block, offset, len);
     return len;
   }
 
   /** Puts the given slice of the given array at the given offset in the given block. */
-  private static int put(byte[] block, int offset, byte[] b, int off, int len) {
-    System.arraycopy(b, off, block, offset, len);
+  private int put(Object block, int offset, byte[] b, int off, int len) {
+    storage.put(block, offset, b, off, len);
     return len;
   }
 
   /** Puts the contents of the given byte buffer at the given offset in the given block. */
-  private static int put(byte[] block, int offset, ByteBuffer buf) {
-    int len = Math.min(block.length - offset, buf.remaining());
-    buf.get(block, offset, len);
+  private int put(Object block, int offset, ByteBuffer buf) {
+    int len = Math.min(storage.size(block) - offset, buf.remaining());
+    storage.put(block, offset, buf, len);
     return len;
   }
 
@@ -648,14 +2350,14 @@ final class RegularFile extends File {
    * Reads len bytes starting at the given offset in the given block into the given slice of the
    * given byte array.
    */
-  private static int get(byte[] block, int offset, byte[] b, int off, int len) {
-    System.arraycopy(block, offset, b, off, len);
+  private int get(Object block, int offset, byte[] b, int off, int len) {
+    storage.get(block, offset, b, off, len);
     return len;
   }
 
   /** Reads len bytes starting at the given offset in the given block into the given byte buffer. */
-  private static int get(byte[] block, int offset, ByteBuffer buf, int len) {
-    buf.put(block, offset, len);
+  private int get(Object block, int offset, ByteBuffer buf, int len) {
+    storage.get(block, offset, buf, len);
     return len;
   }
 }
@@ -20,6 +20,7 @@ import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 import com.google.common.collect.ImmutableCollection;
+import java.nio.ByteBuffer;
 
 /**
  * Miscellaneous static utility methods.
@@ -48,6 +49,15 @@ final class Util {
     checkArgument(n >= 0, "%s must not be negative: %s", description, n);
   }
 
+  /**
+   * Checks that no element in the given slice of the given array is null, throwing NPE if any is.
+   */
+  static void checkNoneNull(Object[] objects, int offset, int length) {
+    for (int i = offset; i < offset + length; i++) {
+      checkNotNull(objects[i]);
+    }
+  }
+
   /** Checks that no element in the given iterable is null, throwing NPE if any is. */
   static void checkNoneNull(Iterable<?> objects) {
     if (!(objects instanceof ImmutableCollection)) {
@@ -74,7 +84,7 @@ final class Util {
 
   private static final int ARRAY_LEN = 8192;
   private static final byte[] ZERO_ARRAY = new byte[ARRAY_LEN];
-  private static final byte[][] NULL_ARRAY = new byte[ARRAY_LEN][];
+  private static final Object[] NULL_ARRAY = new Object[ARRAY_LEN];
 
   /** Zeroes all bytes between off (inclusive) and off + len (exclusive) in the given array. */
   static void zero(byte[] bytes, int off, int len) {
@@ -91,11 +101,29 @@ final class Util {
     System.arraycopy(ZERO_ARRAY, 0, bytes, off, remaining);
   }
 
+  /** Zeroes all remaining bytes in the given buffer, advancing its position to its limit. */
+  static void zero(ByteBuffer buf) {
+    while (buf.remaining() > ARRAY_LEN) {
+      buf.put(ZERO_ARRAY);
+    }
+
+    buf.put(ZERO_ARRAY, 0, buf.remaining());
+  }
+
+  /** Returns the total number of bytes remaining in the given slice of the given buffers. */
+  static long remaining(ByteBuffer[] bufs, int offset, int length) {
+    long remaining = 0;
+    for (int i = offset; i < offset + length; i++) {
+      remaining += bufs[i].remaining();
+    }
+    return remaining;
+  }
+
   /**
    * Clears (sets to null) all blocks between off (inclusive) and off + len (exclusive) in the given
    * array.
    */
-  static void clear(byte[][] blocks, int off, int len) {
+  static void clear(Object[] blocks, int off, int len) {
     // this is significantly faster than looping or Arrays.fill (which loops), particularly when
     // the length of the slice to be cleared is <= to ARRAY_LEN (in that case, it's faster by a
     // factor of 2)
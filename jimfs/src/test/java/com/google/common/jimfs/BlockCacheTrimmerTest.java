@@ -0,0 +1,145 @@
+/*
+ * Copyright 2026 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.jimfs;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link BlockCacheTrimmer}. */
+@RunWith(JUnit4.class)
+public class BlockCacheTrimmerTest {
+
+  private static HeapDisk disk() {
+    return new HeapDisk(Configuration.unix().toBuilder().setBlockSize(4).build());
+  }
+
+  private static List<Thread> decayThreads() {
+    List<Thread> threads = new ArrayList<>();
+    for (Thread thread : Thread.getAllStackTraces().keySet()) {
+      if (thread.getName().startsWith("com.google.common.jimfs.BlockCacheTrimmer-thread-")) {
+        threads.add(thread);
+      }
+    }
+    return threads;
+  }
+
+  @Test
+  public void testTrimmersShareThreadAndListener() throws InterruptedException {
+    BlockCacheTrimmer trimmer1 = new BlockCacheTrimmer(disk(), MINUTES.toNanos(1), 0);
+    BlockCacheTrimmer trimmer2 = new BlockCacheTrimmer(disk(), MINUTES.toNanos(1), 0);
+    trimmer1.start();
+    trimmer2.start();
+    List<Thread> threads = decayThreads();
+    assertThat(threads).hasSize(1);
+
+    trimmer1.close();
+    assertThat(decayThreads()).containsExactlyElementsIn(threads);
+
+    // closing the last trimmer stops the thread and removes the listener
+    trimmer2.close();
+    for (Thread thread : threads) {
+      thread.join(10000);
+      assertThat(thread.isAlive()).isFalse();
+    }
+    NotificationEmitter emitter = (NotificationEmitter) ManagementFactory.getMemoryMXBean();
+    try {
+      emitter.removeNotificationListener(BlockCacheTrimmer.MEMORY_LISTENER);
+      fail();
+    } catch (ListenerNotFoundException expected) {
+    }
+
+    // a closed trimmer can't be restarted
+    trimmer1.start();
+    assertThat(decayThreads()).isEmpty();
+  }
+
+  @Test
+  public void testSetsAndClearsCollectionUsageThresholds() {
+    Map<MemoryPoolMXBean, Long> maxSizes = new HashMap<>();
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP
+          && pool.isCollectionUsageThresholdSupported()
+          && pool.getCollectionUsageThreshold() == 0
+          && pool.getUsage().getMax() > 0) {
+        maxSizes.put(pool, pool.getUsage().getMax());
+      }
+    }
+
+    BlockCacheTrimmer trimmer1 = new BlockCacheTrimmer(disk(), MINUTES.toNanos(1), 0.8);
+    BlockCacheTrimmer trimmer2 = new BlockCacheTrimmer(disk(), MINUTES.toNanos(1), 0.5);
+    trimmer1.start();
+    for (Map.Entry<MemoryPoolMXBean, Long> entry : maxSizes.entrySet()) {
+      assertThat(entry.getKey().getCollectionUsageThreshold())
+          .isEqualTo((long) (entry.getValue() * 0.8));
+    }
+
+    // the lowest threshold wins
+    trimmer2.start();
+    for (Map.Entry<MemoryPoolMXBean, Long> entry : maxSizes.entrySet()) {
+      assertThat(entry.getKey().getCollectionUsageThreshold())
+          .isEqualTo((long) (entry.getValue() * 0.5));
+    }
+
+    trimmer2.close();
+    for (Map.Entry<MemoryPoolMXBean, Long> entry : maxSizes.entrySet()) {
+      assertThat(entry.getKey().getCollectionUsageThreshold())
+          .isEqualTo((long) (entry.getValue() * 0.8));
+    }
+
+    trimmer1.close();
+    for (MemoryPoolMXBean pool : maxSizes.keySet()) {
+      assertThat(pool.getCollectionUsageThreshold()).isEqualTo(0);
+    }
+  }
+
+  @Test
+  public void testTrimsOnMemoryNotification() throws IOException {
+    HeapDisk disk = disk();
+    RegularFile file = RegularFile.create(-2, disk);
+    disk.allocate(file, 10);
+    disk.free(file);
+    assertThat(disk.cachedBlockCount()).isEqualTo(10);
+
+    BlockCacheTrimmer trimmer = new BlockCacheTrimmer(disk, MINUTES.toNanos(1), 0);
+    trimmer.start();
+    try {
+      BlockCacheTrimmer.MEMORY_LISTENER.handleNotification(
+          new Notification(MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED, this, 1),
+          null);
+      assertThat(disk.cachedBlockCount()).isEqualTo(0);
+    } finally {
+      trimmer.close();
+    }
+  }
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright 2026 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.jimfs;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import com.google.common.base.Strings;
+import com.google.common.testing.FakeTicker;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link BlockCompressor} and the compression of cold blocks in {@link RegularFile}. */
+@RunWith(JUnit4.class)
+public class BlockCompressorTest {
+
+  private static final byte[] CONTENT =
+      Strings.repeat("hello, world! ", 300).substring(0, 4000).getBytes();
+
+  private final FakeTicker ticker = new FakeTicker();
+
+  private HeapDisk disk;
+  private RegularFile file;
+  private Path spillDirectory;
+
+  @Before
+  public void setUp() {
+    Configuration config =
+        Configuration.unix().toBuilder()
+            .setBlockSize(1024)
+            .setBlockCompression(10, SECONDS)
+            .setMaxDecompressedCacheSize(2048)
+            .build();
+    disk = new HeapDisk(config, ticker);
+    file = newFile(0);
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    disk.compressor().close();
+    if (spillDirectory != null) {
+      Files.delete(spillDirectory);
+    }
+  }
+
+  /** Recreates the disk so that blocks are spilled, with space for the given number of blocks. */
+  private void useSpillingDisk(int maxBlockCount, boolean compressColdFiles) throws IOException {
+    disk.compressor().close();
+    spillDirectory = Files.createTempDirectory("BlockCompressorTest");
+    Configuration.Builder config =
+        Configuration.unix().toBuilder()
+            .setBlockSize(1024)
+            .setMaxSize(maxBlockCount * 1024)
+            .setSpillDirectory(spillDirectory)
+            .setMaxDecompressedCacheSize(2048);
+    if (compressColdFiles) {
+      config.setBlockCompression(10, SECONDS);
+    }
+    disk = new HeapDisk(config.build(), ticker);
+    file = newFile(0);
+  }
+
+  private RegularFile newFile(int id) {
+    RegularFile file = RegularFile.create(id, disk);
+    disk.register(file);
+    return file;
+  }
+
+  /** Sweeps once to notice the last access, then again after the compression delay has passed. */
+  private void makeCold() {
+    disk.compressor().sweep();
+    ticker.advance(10, SECONDS);
+    disk.compressor().sweep();
+  }
+
+  private static byte[] read(RegularFile file) throws IOException {
+    byte[] bytes = new byte[(int) file.size()];
+    file.read(0, bytes, 0, bytes.length);
+    return bytes;
+  }
+
+  @Test
+  public void testColdFile_compressed() throws IOException {
+    file.write(0, CONTENT, 0, CONTENT.length);
+    long unallocated = disk.getUnallocatedSpace();
+
+    makeCold();
+
+    for (int i = 0; i < 4; i++) {
+      assertThat(file.getBlock(i)).isInstanceOf(BlockCompressor.CompressedBlock.class);
+    }
+    assertThat(disk.compressedBlockCount()).isEqualTo(4);
+    assertThat(disk.compressedSize()).isLessThan(4 * 1024L);
+    assertThat(disk.getUnallocatedSpace()).isEqualTo(unallocated + 4 * 1024);
+
+    assertThat(read(file)).isEqualTo(CONTENT);
+    // reading doesn't decompress the blocks in the file itself
+    assertThat(file.getBlock(0)).isInstanceOf(BlockCompressor.CompressedBlock.class);
+  }
+
+  @Test
+  public void testRecentlyAccessedFile_notCompressed() throws IOException {
+    file.write(0, CONTENT, 0, CONTENT.length);
+
+    disk.compressor().sweep();
+    ticker.advance(5, SECONDS);
+    disk.compressor().sweep();
+    assertThat(disk.compressedBlockCount()).isEqualTo(0);
+
+    ticker.advance(5, SECONDS);
+    read(file);
+    disk.compressor().sweep();
+    assertThat(disk.compressedBlockCount()).isEqualTo(0);
+    assertThat(file.getBlock(0)).isInstanceOf(byte[].class);
+  }
+
+  @Test
+  public void testIncompressibleContent_notCompressed() throws IOException {
+    byte[] random = new byte[4096];
+    new Random(42).nextBytes(random);
+    file.write(0, random, 0, random.length);
+
+    makeCold();
+
+    assertThat(disk.compressedBlockCount()).isEqualTo(0);
+    for (int i = 0; i < 4; i++) {
+      assertThat(file.getBlock(i)).isInstanceOf(byte[].class);
+    }
+    assertThat(read(file)).isEqualTo(random);
+  }
+
+  @Test
+  public void testWrite_decompressesOnlyWrittenBlock() throws IOException {
+    file.write(0, CONTENT, 0, CONTENT.length);
+    makeCold();
+
+    file.write(1500, new byte[] {1, 2, 3}, 0, 3);
+
+    assertThat(file.getBlock(1)).isInstanceOf(byte[].class);
+    assertThat(disk.compressedBlockCount()).isEqualTo(3);
+
+    byte[] expected = CONTENT.clone();
+    expected[1500] = 1;
+    expected[1501] = 2;
+    expected[1502] = 3;
+    assertThat(read(file)).isEqualTo(expected);
+  }
+
+  @Test
+  public void testCopy_sharesCompressedBlocks() throws IOException {
+    file.write(0, CONTENT, 0, CONTENT.length);
+    makeCold();
+
+    RegularFile copy = file.copyWithoutContent(1);
+    disk.register(copy);
+    file.copyContentTo(copy);
+    assertThat(copy.getBlock(0)).isSameInstanceAs(file.getBlock(0));
+    assertThat(disk.compressedBlockCount()).isEqualTo(4);
+
+    copy.write(0, new byte[] {1}, 0, 1);
+    assertThat(read(file)).isEqualTo(CONTENT);
+    assertThat(copy.read(0)).isEqualTo(1);
+
+    file.deleted();
+    assertThat(disk.compressedBlockCount()).isEqualTo(3);
+
+    copy.deleted();
+    assertThat(disk.compressedBlockCount()).isEqualTo(0);
+    assertThat(disk.getUnallocatedSpace()).isEqualTo(disk.getTotalSpace());
+  }
+
+  @Test
+  public void testSpill_coldFile() throws IOException {
+    useSpillingDisk(100, true);
+    byte[] random = new byte[4096];
+    new Random(42).nextBytes(random);
+    RegularFile randomFile = newFile(1);
+    file.write(0, CONTENT, 0, CONTENT.length);
+    randomFile.write(0, random, 0, random.length);
+
+    makeCold();
+
+    // blocks are spilled whether or not they compress well
+    for (int i = 0; i < 4; i++) {
+      assertThat(file.getBlock(i)).isInstanceOf(BlockCompressor.CompressedBlock.class);
+      assertThat(randomFile.getBlock(i)).isInstanceOf(BlockCompressor.CompressedBlock.class);
+    }
+    assertThat(disk.spilledBlockCount()).isEqualTo(8);
+    assertThat(disk.spillFileSize()).isEqualTo(8 * 1024);
+    assertThat(disk.compressedBlockCount()).isEqualTo(0);
+    assertThat(disk.getUnallocatedSpace()).isEqualTo(disk.getTotalSpace());
+
+    assertThat(read(file)).isEqualTo(CONTENT);
+    assertThat(read(randomFile)).isEqualTo(random);
+
+    // writing reads the block back in and frees its slot for reuse
+    randomFile.write(0, new byte[] {1}, 0, 1);
+    assertThat(randomFile.read(0)).isEqualTo(1);
+    assertThat(disk.spilledBlockCount()).isEqualTo(7);
+
+    randomFile.deleted();
+    assertThat(disk.spilledBlockCount()).isEqualTo(4);
+    RegularFile another = newFile(2);
+    another.write(0, random, 0, random.length);
+    makeCold();
+    assertThat(disk.spilledBlockCount()).isEqualTo(8);
+    assertThat(disk.spillFileSize()).isEqualTo(8 * 1024);
+    assertThat(read(another)).isEqualTo(random);
+  }
+
+  @Test
+  public void testSpill_evictsLeastRecentlyUsedFilesWhenFull() throws IOException {
+    useSpillingDisk(8, false);
+    RegularFile file2 = newFile(1);
+    RegularFile file3 = newFile(2);
+
+    file.write(0, CONTENT, 0, CONTENT.length);
+    disk.compressor().evict(0); // just records access times
+    ticker.advance(1, SECONDS);
+    file2.write(0, CONTENT, 0, CONTENT.length);
+    disk.compressor().evict(0);
+    ticker.advance(1, SECONDS);
+    assertThat(disk.getUnallocatedSpace()).isEqualTo(0);
+
+    file3.write(0, CONTENT, 0, CONTENT.length);
+
+    assertThat(file.getBlock(0)).isInstanceOf(BlockCompressor.CompressedBlock.class);
+    assertThat(file2.getBlock(0)).isInstanceOf(byte[].class);
+    assertThat(disk.spilledBlockCount()).isEqualTo(4);
+
+    assertThat(read(file)).isEqualTo(CONTENT);
+    assertThat(read(file2)).isEqualTo(CONTENT);
+    assertThat(read(file3)).isEqualTo(CONTENT);
+
+    // a spilled block being written needs space in memory again, so another file is evicted
+    file.write(0, new byte[] {1}, 0, 1);
+    assertThat(file.getBlock(0)).isInstanceOf(byte[].class);
+    assertThat(disk.spilledBlockCount()).isEqualTo(3 + 4);
+    assertThat(file.read(0)).isEqualTo(1);
+    assertThat(read(file2)).isEqualTo(CONTENT);
+    assertThat(read(file3)).isEqualTo(CONTENT);
+  }
+}
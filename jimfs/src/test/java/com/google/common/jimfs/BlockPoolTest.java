@@ -0,0 +1,124 @@
+/*
+ * Copyright 2026 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.jimfs;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link BlockPool} and file systems sharing one. */
+@RunWith(JUnit4.class)
+public class BlockPoolTest {
+
+  private final BlockPool pool = BlockPool.create(4, BlockStorage.HEAP, 40);
+
+  private FileSystem newFileSystem() {
+    return Jimfs.newFileSystem(
+        Configuration.unix().toBuilder()
+            .setBlockSize(4)
+            .setMaxCacheSize(8)
+            .setBlockPool(pool)
+            .build());
+  }
+
+  @Test
+  public void testCreate() {
+    assertThat(pool.blockSize()).isEqualTo(4);
+    assertThat(pool.blockStorage()).isEqualTo(BlockStorage.HEAP);
+    assertThat(pool.maxSize()).isEqualTo(40);
+    assertThat(pool.size()).isEqualTo(0);
+
+    BlockPool defaultPool = BlockPool.create(1 << 20);
+    assertThat(defaultPool.blockSize()).isEqualTo(8192);
+    assertThat(defaultPool.maxSize()).isEqualTo(1 << 20);
+  }
+
+  @Test
+  public void testClose_returnsBlocksToPool() throws IOException {
+    FileSystem fs = newFileSystem();
+    Files.createDirectory(fs.getPath("/dir"));
+    Files.write(fs.getPath("/dir/foo"), new byte[16]);
+    Files.write(fs.getPath("/bar"), new byte[8]);
+    Files.createLink(fs.getPath("/link"), fs.getPath("/bar"));
+    assertThat(pool.size()).isEqualTo(0);
+
+    fs.close();
+    assertThat(pool.size()).isEqualTo(24);
+
+    FileSystem fs2 = newFileSystem();
+    Path file = fs2.getPath("/foo");
+    Files.write(file, new byte[] {1, 2, 3, 4, 5, 6});
+    assertThat(pool.size()).isEqualTo(16);
+    assertThat(Files.readAllBytes(file)).isEqualTo(new byte[] {1, 2, 3, 4, 5, 6});
+    fs2.close();
+  }
+
+  @Test
+  public void testDelete_blocksBeyondCacheGoToPool() throws IOException {
+    FileSystem fs = newFileSystem();
+    Files.write(fs.getPath("/foo"), new byte[20]);
+    Files.delete(fs.getPath("/foo"));
+
+    // the file system's own cache only holds 2 blocks
+    assertThat(pool.size()).isEqualTo(12);
+    fs.close();
+    assertThat(pool.size()).isEqualTo(20);
+  }
+
+  @Test
+  public void testPoolIsBounded() throws IOException {
+    FileSystem fs = newFileSystem();
+    Files.write(fs.getPath("/foo"), new byte[100]);
+    fs.close();
+    assertThat(pool.size()).isEqualTo(40);
+
+    pool.clear();
+    assertThat(pool.size()).isEqualTo(0);
+  }
+
+  @Test
+  public void testMismatchedPool() {
+    Configuration config =
+        Configuration.unix().toBuilder()
+            .setBlockSize(8)
+            .setBlockPool(BlockPool.create(4, BlockStorage.HEAP, 40))
+            .build();
+    try {
+      Jimfs.newFileSystem(config);
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+
+    config =
+        Configuration.unix().toBuilder()
+            .setBlockSize(4)
+            .setBlockPool(BlockPool.create(4, BlockStorage.DIRECT, 40))
+            .build();
+    try {
+      Jimfs.newFileSystem(config);
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+}
@@ -25,18 +25,34 @@ import static com.google.common.jimfs.WatchServiceConfiguration.polling;
 import static com.google.common.truth.Truth.assertThat;
 import static com.google.common.truth.Truth.assert_;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
 import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.junit.Assert.fail;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.ClosedFileSystemException;
 import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileStore;
 import java.nio.file.FileSystem;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.nio.file.WatchService;
+import java.nio.file.attribute.FileTime;
 import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
@@ -169,6 +185,7 @@ public class ConfigurationTest {
   @Test
   public void testBuilder() {
     AttributeProvider unixProvider = StandardAttributeProviders.get("unix");
+    BlockPool pool = BlockPool.create(10, BlockStorage.DIRECT, 100);
 
     Configuration config =
         Configuration.builder(PathType.unix())
@@ -180,10 +197,25 @@ public class ConfigurationTest {
             .setBlockSize(10)
             .setMaxSize(100)
             .setMaxCacheSize(50)
+            .setMinCacheSize(20)
+            .setCacheDecay(1, MINUTES)
+            .setCacheTrimThreshold(0.5)
+            .setBlockStorage(BlockStorage.DIRECT)
+            .setBlockCompression(30, SECONDS)
+            .setMaxDecompressedCacheSize(40)
+            .setSpillDirectory(Paths.get("spill"))
+            .setBlockDeduplication(true)
+            .setMaxInlineSize(256)
+            .setTailPacking(true)
+            .setBlockPool(pool)
+            .setConcurrentAppends(true)
+            .setConcurrentWrites(true)
+            .setCoalescedStreamWrites(true)
             .setAttributeViews("basic", "posix")
             .addAttributeProvider(unixProvider)
             .setDefaultAttributeValue(
                 "posix:permissions", PosixFilePermissions.fromString("---------"))
+            .setAccessTimePolicy(AccessTimePolicy.RELATIME)
             .build();
 
     assertThat(config.pathType).isEqualTo(PathType.unix());
@@ -195,10 +227,25 @@ public class ConfigurationTest {
     assertThat(config.blockSize).isEqualTo(10);
     assertThat(config.maxSize).isEqualTo(100);
     assertThat(config.maxCacheSize).isEqualTo(50);
+    assertThat(config.minCacheSize).isEqualTo(20);
+    assertThat(config.cacheDecayNanos).isEqualTo(MINUTES.toNanos(1));
+    assertThat(config.cacheTrimThreshold).isEqualTo(0.5);
+    assertThat(config.blockStorage).isEqualTo(BlockStorage.DIRECT);
+    assertThat(config.blockCompressionDelayNanos).isEqualTo(SECONDS.toNanos(30));
+    assertThat(config.maxDecompressedCacheSize).isEqualTo(40);
+    assertThat((Object) config.spillDirectory).isEqualTo(Paths.get("spill"));
+    assertThat(config.blockDeduplication).isTrue();
+    assertThat(config.maxInlineSize).isEqualTo(256);
+    assertThat(config.tailPacking).isTrue();
+    assertThat(config.blockPool).isSameInstanceAs(pool);
+    assertThat(config.concurrentAppends).isTrue();
+    assertThat(config.concurrentWrites).isTrue();
+    assertThat(config.coalescedStreamWrites).isTrue();
     assertThat(config.attributeViews).containsExactly("basic", "posix");
     assertThat(config.attributeProviders).containsExactly(unixProvider);
     assertThat(config.defaultAttributeValues)
         .containsEntry("posix:permissions", PosixFilePermissions.fromString("---------"));
+    assertThat(config.accessTimePolicy).isEqualTo(AccessTimePolicy.RELATIME);
   }
 
   @Test
@@ -238,6 +285,341 @@ public class ConfigurationTest {
     }
   }
 
+  @Test
+  public void testFileSystemWithDirectBlockStorage() throws IOException {
+    FileSystem fs =
+        Jimfs.newFileSystem(
+            Configuration.unix().toBuilder()
+                .setBlockSize(4)
+                .setBlockStorage(BlockStorage.DIRECT)
+                .build());
+
+    Path file = fs.getPath("/foo");
+    Files.write(file, new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9, 10});
+    assertThatPath(file).containsBytes(new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9, 10});
+
+    Files.copy(file, fs.getPath("/bar"));
+    assertThatPath(fs.getPath("/bar")).containsBytes(new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9, 10});
+  }
+
+  @Test
+  public void testFileSystemWithBlockDeduplication() throws IOException {
+    FileSystem fs =
+        Jimfs.newFileSystem(
+            Configuration.unix().toBuilder()
+                .setBlockSize(4)
+                .setMaxSize(400)
+                .setBlockDeduplication(true)
+                .build());
+    FileStore fileStore = Iterables.getOnlyElement(fs.getFileStores());
+
+    byte[] bytes = {1, 2, 3, 4, 5, 6, 7, 8, 9, 10};
+    for (int i = 0; i < 10; i++) {
+      Files.write(fs.getPath("/foo" + i), bytes);
+    }
+
+    // only the partial last block of each file isn't shared
+    assertThat(fileStore.getUnallocatedSpace()).isEqualTo(400 - 12 * 4);
+    assertThat(fileStore.getAttribute("jimfs:dedupBlockCount")).isEqualTo(2);
+    assertThat(fileStore.getAttribute("jimfs:dedupReferenceCount")).isEqualTo(20);
+    assertThat(fileStore.getAttribute("jimfs:dedupRatio")).isEqualTo(10.0);
+
+    Files.write(fs.getPath("/foo0"), new byte[] {0}, StandardOpenOption.APPEND);
+    Files.write(fs.getPath("/foo1"), new byte[] {0}, StandardOpenOption.WRITE);
+    assertThatPath(fs.getPath("/foo0"))
+        .containsBytes(new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 0});
+    assertThatPath(fs.getPath("/foo1")).containsBytes(new byte[] {0, 2, 3, 4, 5, 6, 7, 8, 9, 10});
+    assertThatPath(fs.getPath("/foo2")).containsBytes(bytes);
+
+    for (int i = 0; i < 10; i++) {
+      Files.delete(fs.getPath("/foo" + i));
+    }
+    assertThat(fileStore.getUnallocatedSpace()).isEqualTo(400);
+    assertThat(fileStore.getAttribute("jimfs:dedupBlockCount")).isEqualTo(0);
+  }
+
+  @Test
+  public void testFileSystemWithMaxInlineSize() throws IOException {
+    FileSystem fs =
+        Jimfs.newFileSystem(
+            Configuration.unix().toBuilder()
+                .setBlockSize(8)
+                .setMaxSize(400)
+                .setMaxInlineSize(6)
+                .build());
+    FileStore fileStore = Iterables.getOnlyElement(fs.getFileStores());
+
+    byte[] bytes = {1, 2, 3, 4, 5, 6};
+    for (int i = 0; i < 10; i++) {
+      Files.write(fs.getPath("/foo" + i), bytes);
+    }
+    Files.copy(fs.getPath("/foo0"), fs.getPath("/copy"));
+    assertThat(fileStore.getUnallocatedSpace()).isEqualTo(400);
+    assertThatPath(fs.getPath("/copy")).containsBytes(bytes);
+
+    Files.write(fs.getPath("/foo0"), new byte[] {7}, StandardOpenOption.APPEND);
+    assertThat(fileStore.getUnallocatedSpace()).isEqualTo(400 - 8);
+    assertThatPath(fs.getPath("/foo0")).containsBytes(new byte[] {1, 2, 3, 4, 5, 6, 7});
+    assertThatPath(fs.getPath("/foo1")).containsBytes(bytes);
+  }
+
+  @Test
+  public void testFileSystemWithTailPacking() throws IOException {
+    FileSystem fs =
+        Jimfs.newFileSystem(
+            Configuration.unix().toBuilder()
+                .setBlockSize(8)
+                .setMaxSize(400)
+                .setTailPacking(true)
+                .build());
+    FileStore fileStore = Iterables.getOnlyElement(fs.getFileStores());
+
+    byte[] bytes = {1, 2, 3, 4, 5, 6, 7, 8, 9, 10};
+    for (int i = 0; i < 10; i++) {
+      Files.write(fs.getPath("/foo" + i), bytes);
+    }
+    Files.copy(fs.getPath("/foo0"), fs.getPath("/copy"));
+
+    // each file has one full block and a 2 byte tail; the copy shares its full block
+    assertThat(fileStore.getUnallocatedSpace()).isEqualTo(400 - 10 * 8 - 11 * 2);
+    assertThat(fileStore.getAttribute("jimfs:packedTailSize")).isEqualTo(22L);
+    assertThatPath(fs.getPath("/copy")).containsBytes(bytes);
+
+    Files.write(fs.getPath("/foo0"), new byte[] {11}, StandardOpenOption.APPEND);
+    assertThatPath(fs.getPath("/foo0"))
+        .containsBytes(new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11});
+    assertThat(fileStore.getAttribute("jimfs:packedTailSize")).isEqualTo(23L);
+
+    for (int i = 0; i < 10; i++) {
+      Files.delete(fs.getPath("/foo" + i));
+    }
+    Files.delete(fs.getPath("/copy"));
+    assertThat(fileStore.getUnallocatedSpace()).isEqualTo(400);
+    assertThat(fileStore.getAttribute("jimfs:packedTailSize")).isEqualTo(0L);
+  }
+
+  @Test
+  public void testFileSystemWithConcurrentAppends() throws Exception {
+    FileSystem fs =
+        Jimfs.newFileSystem(
+            Configuration.unix().toBuilder().setBlockSize(64).setConcurrentAppends(true).build());
+    final Path file = fs.getPath("/log");
+    Files.createFile(file);
+
+    // each record is 10 bytes of its writer's number, so records often straddle blocks
+    final int writers = 8;
+    final int records = 500;
+    ExecutorService executor = Executors.newFixedThreadPool(writers);
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      for (int i = 0; i < writers; i++) {
+        final byte[] record = new byte[10];
+        Arrays.fill(record, (byte) i);
+        final boolean useStream = i % 2 == 0;
+        futures.add(
+            executor.submit(
+                new Callable<Void>() {
+                  @Override
+                  public Void call() throws IOException {
+                    if (useStream) {
+                      try (OutputStream out =
+                          Files.newOutputStream(file, StandardOpenOption.APPEND)) {
+                        for (int j = 0; j < records; j++) {
+                          out.write(record);
+                        }
+                      }
+                    } else {
+                      try (FileChannel channel =
+                          FileChannel.open(file, StandardOpenOption.APPEND)) {
+                        for (int j = 0; j < records; j++) {
+                          channel.write(ByteBuffer.wrap(record));
+                          assertThat(channel.position()).isAtMost(channel.size());
+                        }
+                      }
+                    }
+                    return null;
+                  }
+                }));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } finally {
+      executor.shutdown();
+    }
+
+    byte[] bytes = Files.readAllBytes(file);
+    assertThat(bytes.length).isEqualTo(writers * records * 10);
+    int[] counts = new int[writers];
+    for (int i = 0; i < bytes.length; i += 10) {
+      byte writer = bytes[i];
+      for (int j = 1; j < 10; j++) {
+        assertThat(bytes[i + j]).isEqualTo(writer);
+      }
+      counts[writer]++;
+    }
+    for (int count : counts) {
+      assertThat(count).isEqualTo(records);
+    }
+  }
+
+  @Test
+  public void testFileSystemWithConcurrentWrites() throws Exception {
+    FileSystem fs =
+        Jimfs.newFileSystem(
+            Configuration.unix().toBuilder().setBlockSize(64).setConcurrentWrites(true).build());
+    final Path file = fs.getPath("/pages");
+
+    // each writer repeatedly overwrites its own 100-byte page, so pages often straddle blocks
+    final int writers = 8;
+    final int pageSize = 100;
+    Files.write(file, new byte[writers * pageSize]);
+
+    ExecutorService executor = Executors.newFixedThreadPool(writers);
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      for (int i = 0; i < writers; i++) {
+        final int writer = i;
+        futures.add(
+            executor.submit(
+                new Callable<Void>() {
+                  @Override
+                  public Void call() throws IOException {
+                    byte[] page = new byte[pageSize];
+                    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                      for (int j = 1; j <= 100; j++) {
+                        Arrays.fill(page, (byte) (writer * 100 + j));
+                        channel.write(ByteBuffer.wrap(page), writer * pageSize);
+                      }
+                    }
+                    return null;
+                  }
+                }));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } finally {
+      executor.shutdown();
+    }
+
+    byte[] bytes = Files.readAllBytes(file);
+    assertThat(bytes.length).isEqualTo(writers * pageSize);
+    for (int i = 0; i < bytes.length; i++) {
+      assertThat(bytes[i]).isEqualTo((byte) ((i / pageSize) * 100 + 100));
+    }
+  }
+
+  @Test
+  public void testFileSystemWithCoalescedStreamWrites() throws IOException {
+    FileSystem fs =
+        Jimfs.newFileSystem(
+            Configuration.unix().toBuilder()
+                .setBlockSize(16)
+                .setCoalescedStreamWrites(true)
+                .build());
+    Path file = fs.getPath("/file");
+
+    try (OutputStream out = Files.newOutputStream(file)) {
+      for (int i = 0; i < 20; i++) {
+        out.write(i);
+      }
+      // the first block's worth was written when the staging buffer filled
+      assertThat(Files.size(file)).isEqualTo(16);
+
+      out.write(new byte[] {20, 21});
+      assertThat(Files.size(file)).isEqualTo(16);
+      out.flush();
+      assertThat(Files.size(file)).isEqualTo(22);
+
+      // writes of a block or more go straight to the file, after any staged bytes
+      out.write(22);
+      byte[] large = new byte[20];
+      Arrays.fill(large, (byte) 23);
+      out.write(large);
+      assertThat(Files.size(file)).isEqualTo(43);
+      out.write(24);
+    }
+
+    byte[] bytes = Files.readAllBytes(file);
+    assertThat(bytes.length).isEqualTo(44);
+    for (int i = 0; i < 23; i++) {
+      assertThat(bytes[i]).isEqualTo((byte) i);
+    }
+    for (int i = 23; i < 43; i++) {
+      assertThat(bytes[i]).isEqualTo((byte) 23);
+    }
+    assertThat(bytes[43]).isEqualTo((byte) 24);
+  }
+
+  @Test
+  public void testFileSystemWithAccessTimePolicy() throws IOException {
+    FileSystem fs =
+        Jimfs.newFileSystem(
+            Configuration.unix().toBuilder()
+                .setAccessTimePolicy(AccessTimePolicy.NOATIME)
+                .build());
+    Path file = fs.getPath("/foo");
+    Files.write(file, new byte[] {1, 2, 3});
+    Files.setAttribute(file, "lastAccessTime", FileTime.fromMillis(0));
+    Files.readAllBytes(file);
+    assertThat(Files.getAttribute(file, "lastAccessTime")).isEqualTo(FileTime.fromMillis(0));
+
+    fs =
+        Jimfs.newFileSystem(
+            Configuration.unix().toBuilder()
+                .setAccessTimePolicy(AccessTimePolicy.RELATIME)
+                .build());
+    file = fs.getPath("/foo");
+    Files.write(file, new byte[] {1, 2, 3});
+    long now = System.currentTimeMillis();
+
+    // not updated if accessed since it was modified and accessed recently
+    Files.setAttribute(file, "lastModifiedTime", FileTime.fromMillis(now - 2000));
+    Files.setAttribute(file, "lastAccessTime", FileTime.fromMillis(now - 1000));
+    Files.readAllBytes(file);
+    assertThat(Files.getAttribute(file, "lastAccessTime"))
+        .isEqualTo(FileTime.fromMillis(now - 1000));
+
+    // updated if modified since it was last accessed
+    Files.setAttribute(file, "lastModifiedTime", FileTime.fromMillis(now - 1000));
+    Files.setAttribute(file, "lastAccessTime", FileTime.fromMillis(now - 2000));
+    Files.readAllBytes(file);
+    assertThat(((FileTime) Files.getAttribute(file, "lastAccessTime")).toMillis()).isAtLeast(now);
+
+    // updated if last accessed more than a day ago
+    Files.setAttribute(file, "lastModifiedTime", FileTime.fromMillis(0));
+    Files.setAttribute(file, "lastAccessTime", FileTime.fromMillis(1000));
+    Files.readAllBytes(file);
+    assertThat(((FileTime) Files.getAttribute(file, "lastAccessTime")).toMillis()).isAtLeast(now);
+  }
+
+  @Test
+  public void testFileSystemWithCacheDecay() throws IOException {
+    FileSystem fs =
+        Jimfs.newFileSystem(
+            Configuration.unix().toBuilder()
+                .setBlockSize(4)
+                .setMinCacheSize(8)
+                .setCacheDecay(1, MINUTES)
+                .build());
+    FileStore fileStore = Iterables.getOnlyElement(fs.getFileStores());
+
+    Files.write(fs.getPath("/foo"), new byte[40]);
+    Files.delete(fs.getPath("/foo"));
+    assertThat(fileStore.getAttribute("jimfs:cacheSize")).isEqualTo(40L);
+
+    Jimfs.trim(fs);
+    assertThat(fileStore.getAttribute("jimfs:cacheSize")).isEqualTo(8L);
+
+    fs.close();
+    try {
+      Jimfs.trim(fs);
+      fail();
+    } catch (ClosedFileSystemException expected) {
+    }
+  }
+
   @Test
   public void testToBuilder() {
     Configuration config =
@@ -255,9 +637,24 @@ public class ConfigurationTest {
     assertThat(config.blockSize).isEqualTo(8192);
     assertThat(config.maxSize).isEqualTo(4L * 1024 * 1024 * 1024);
     assertThat(config.maxCacheSize).isEqualTo(-1);
+    assertThat(config.minCacheSize).isEqualTo(0);
+    assertThat(config.cacheDecayNanos).isEqualTo(-1);
+    assertThat(config.cacheTrimThreshold).isEqualTo(0.9);
+    assertThat(config.blockStorage).isEqualTo(BlockStorage.HEAP);
+    assertThat(config.blockCompressionDelayNanos).isEqualTo(-1);
+    assertThat(config.maxDecompressedCacheSize).isEqualTo(16 * 1024 * 1024);
+    assertThat((Object) config.spillDirectory).isNull();
+    assertThat(config.blockDeduplication).isFalse();
+    assertThat(config.maxInlineSize).isEqualTo(0);
+    assertThat(config.tailPacking).isFalse();
+    assertThat(config.blockPool).isNull();
+    assertThat(config.concurrentAppends).isFalse();
+    assertThat(config.concurrentWrites).isFalse();
+    assertThat(config.coalescedStreamWrites).isFalse();
     assertThat(config.attributeViews).containsExactly("basic", "posix");
     assertThat(config.attributeProviders).isEmpty();
     assertThat(config.defaultAttributeValues).isEmpty();
+    assertThat(config.accessTimePolicy).isEqualTo(AccessTimePolicy.STRICT);
   }
 
   @Test
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2026 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.jimfs;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link ContentLock} and optimistic reads of a {@link RegularFile}. */
+@RunWith(JUnit4.class)
+public class ContentLockTest {
+
+  private final ContentLock lock = new ContentLock();
+
+  @Test
+  public void testOptimisticRead() {
+    long stamp = lock.tryOptimisticRead();
+    assertThat(stamp).isNotEqualTo(0L);
+    assertThat(lock.validate(stamp)).isTrue();
+
+    // readers don't invalidate each other
+    lock.readLock().lock();
+    lock.readLock().unlock();
+    assertThat(lock.validate(stamp)).isTrue();
+
+    assertThat(lock.validate(0)).isFalse();
+  }
+
+  @Test
+  public void testWriteLockInvalidatesStamps() throws InterruptedException {
+    long stamp = lock.tryOptimisticRead();
+    lock.writeLock().lock();
+    assertThat(lock.tryOptimisticRead()).isEqualTo(0L);
+    assertThat(lock.validate(stamp)).isFalse();
+    lock.writeLock().unlock();
+    assertThat(lock.validate(stamp)).isFalse();
+
+    stamp = lock.tryOptimisticRead();
+    assertThat(lock.writeLock().tryLock(1, SECONDS)).isTrue();
+    lock.writeLock().unlock();
+    assertThat(lock.validate(stamp)).isFalse();
+  }
+
+  @Test
+  public void testConcurrentWritesInvalidateStamps() {
+    long version = lock.version();
+    long stamp = lock.tryOptimisticRead();
+    lock.readLock().lock();
+    try {
+      lock.beginConcurrentWrite();
+      assertThat(lock.validate(stamp)).isFalse();
+      // no optimistic reads start while the write is in progress
+      assertThat(lock.tryOptimisticRead()).isEqualTo(0L);
+      lock.endConcurrentWrite();
+
+      stamp = lock.tryOptimisticRead();
+      assertThat(stamp).isNotEqualTo(0L);
+      assertThat(lock.validate(stamp)).isTrue();
+      lock.beginConcurrentWrite();
+      lock.endConcurrentWrite();
+      assertThat(lock.validate(stamp)).isFalse();
+
+      // the version only follows the write lock
+      assertThat(lock.version()).isEqualTo(version);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  @Test
+  public void testRegularFileTryRead_conflictsWithConcurrentWrites() throws Exception {
+    HeapDisk disk =
+        new HeapDisk(
+            Configuration.unix().toBuilder()
+                .setBlockSize(4)
+                .setConcurrentAppends(true)
+                .setConcurrentWrites(true)
+                .build());
+    RegularFile file = RegularFile.create(0, disk);
+    file.write(0, new byte[] {1, 2, 3, 4, 5, 6}, 0, 6);
+
+    ContentLock lock = file.contentLock();
+    long stamp = lock.tryOptimisticRead();
+    file.readLock().lock();
+    try {
+      assertThat(file.tryAppend(new byte[] {7, 8}, 0, 2)).isEqualTo(8);
+      assertThat(lock.validate(stamp)).isFalse();
+
+      stamp = lock.tryOptimisticRead();
+      ByteBuffer[] bufs = {ByteBuffer.wrap(new byte[] {9, 9})};
+      assertThat(file.tryWriteInPlace(0, bufs, 0, 1)).isEqualTo(2);
+      assertThat(lock.validate(stamp)).isFalse();
+    } finally {
+      file.readLock().unlock();
+    }
+  }
+
+  @Test
+  public void testReentrantWriteLock() {
+    lock.writeLock().lock();
+    lock.writeLock().lock();
+    lock.writeLock().unlock();
+    // still held, so optimistic reads still can't start
+    assertThat(lock.tryOptimisticRead()).isEqualTo(0L);
+    lock.writeLock().unlock();
+
+    assertThat(lock.tryOptimisticRead()).isNotEqualTo(0L);
+    assertThat(lock.isWriteLocked()).isFalse();
+  }
+
+  @Test
+  public void testRegularFileTryRead() throws IOException {
+    RegularFile file = RegularFile.create(0, new HeapDisk(4, 10, 0));
+    file.write(0, new byte[] {1, 2, 3, 4, 5, 6}, 0, 6);
+
+    assertThat(file.tryRead(5)).isEqualTo(6);
+    assertThat(file.tryRead(6)).isEqualTo(-1);
+
+    byte[] bytes = new byte[10];
+    assertThat(file.tryRead(1, bytes, 0, 10)).isEqualTo(5);
+    assertThat(bytes[4]).isEqualTo(6);
+
+    ByteBuffer buf = ByteBuffer.allocate(3);
+    assertThat(file.tryRead(2, buf)).isEqualTo(3);
+    assertThat(buf.array()).isEqualTo(new byte[] {3, 4, 5});
+  }
+
+  @Test
+  public void testRegularFileTryRead_conflictsWithWriter() throws IOException {
+    RegularFile file = RegularFile.create(0, new HeapDisk(4, 10, 0));
+    file.write(0, new byte[] {1, 2, 3, 4, 5, 6}, 0, 6);
+
+    file.writeLock().lock();
+    try {
+      assertThat(file.tryRead(0)).isEqualTo(RegularFile.READ_CONFLICT);
+      assertThat(file.tryRead(0, new byte[6], 0, 6)).isEqualTo(RegularFile.READ_CONFLICT);
+
+      ByteBuffer buf = ByteBuffer.allocate(6);
+      buf.position(1);
+      assertThat(file.tryRead(0, buf)).isEqualTo(RegularFile.READ_CONFLICT);
+      assertThat(buf.position()).isEqualTo(1);
+    } finally {
+      file.writeLock().unlock();
+    }
+  }
+}
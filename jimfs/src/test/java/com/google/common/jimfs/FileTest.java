@@ -19,6 +19,7 @@ package com.google.common.jimfs;
 import static com.google.common.jimfs.FileFactoryTest.fakePath;
 import static com.google.common.jimfs.TestUtils.regularFile;
 import static com.google.common.truth.Truth.assertThat;
+import static java.util.concurrent.TimeUnit.HOURS;
 
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -113,4 +114,64 @@ public class FileTest {
     file.decrementLinkCount();
     assertThat(file.links()).isEqualTo(0);
   }
+
+  @Test
+  public void testUpdateAccessTime_strict() {
+    File file = regularFile(0);
+    long now = System.currentTimeMillis();
+
+    // always updates, even if the access time is newer than the modified time
+    file.setLastModifiedTime(1000);
+    file.setLastAccessTime(2000);
+    file.updateAccessTime(AccessTimePolicy.STRICT);
+    assertThat(file.getLastAccessTime()).isAtLeast(now);
+    assertThat(file.getLastModifiedTime()).isEqualTo(1000);
+  }
+
+  @Test
+  public void testUpdateAccessTime_relatime() {
+    File file = regularFile(0);
+    long now = System.currentTimeMillis();
+
+    // updates when the access time isn't newer than the modified time
+    file.setLastModifiedTime(now - 1000);
+    file.setLastAccessTime(now - 2000);
+    file.updateAccessTime(AccessTimePolicy.RELATIME);
+    assertThat(file.getLastAccessTime()).isAtLeast(now);
+
+    file.setLastAccessTime(now - 1000);
+    file.updateAccessTime(AccessTimePolicy.RELATIME);
+    assertThat(file.getLastAccessTime()).isAtLeast(now);
+
+    // doesn't update when the access time is newer but less than a day old
+    file.setLastAccessTime(now - 500);
+    file.updateAccessTime(AccessTimePolicy.RELATIME);
+    assertThat(file.getLastAccessTime()).isEqualTo(now - 500);
+
+    file.setLastModifiedTime(now - HOURS.toMillis(48));
+    file.setLastAccessTime(now - HOURS.toMillis(23));
+    file.updateAccessTime(AccessTimePolicy.RELATIME);
+    assertThat(file.getLastAccessTime()).isEqualTo(now - HOURS.toMillis(23));
+
+    // updates when the access time is newer but at least a day old
+    file.setLastAccessTime(now - HOURS.toMillis(24));
+    file.updateAccessTime(AccessTimePolicy.RELATIME);
+    assertThat(file.getLastAccessTime()).isAtLeast(now);
+    assertThat(file.getLastModifiedTime()).isEqualTo(now - HOURS.toMillis(48));
+  }
+
+  @Test
+  public void testUpdateAccessTime_noatime() {
+    File file = regularFile(0);
+    long now = System.currentTimeMillis();
+
+    file.setLastModifiedTime(now - 1000);
+    file.setLastAccessTime(now - 2000);
+    file.updateAccessTime(AccessTimePolicy.NOATIME);
+    assertThat(file.getLastAccessTime()).isEqualTo(now - 2000);
+
+    file.setLastAccessTime(now - HOURS.toMillis(48));
+    file.updateAccessTime(AccessTimePolicy.NOATIME);
+    assertThat(file.getLastAccessTime()).isEqualTo(now - HOURS.toMillis(48));
+  }
 }
@@ -20,8 +20,14 @@ import static com.google.common.truth.Truth.assertThat;
 import static org.junit.Assert.fail;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -50,7 +56,7 @@ public class HeapDiskTest {
     assertThat(disk.blockSize()).isEqualTo(8192);
     assertThat(disk.getTotalSpace()).isEqualTo(819200);
     assertThat(disk.getUnallocatedSpace()).isEqualTo(819200);
-    assertThat(disk.blockCache.blockCount()).isEqualTo(0);
+    assertThat(disk.cachedBlockCount()).isEqualTo(0);
   }
 
   @Test
@@ -67,7 +73,7 @@ public class HeapDiskTest {
     assertThat(disk.blockSize()).isEqualTo(4);
     assertThat(disk.getTotalSpace()).isEqualTo(96);
     assertThat(disk.getUnallocatedSpace()).isEqualTo(96);
-    assertThat(disk.blockCache.blockCount()).isEqualTo(0);
+    assertThat(disk.cachedBlockCount()).isEqualTo(0);
   }
 
   @Test
@@ -77,17 +83,71 @@ public class HeapDiskTest {
     disk.allocate(blocks, 1);
 
     assertThat(blocks.blockCount()).isEqualTo(1);
-    assertThat(blocks.getBlock(0).length).isEqualTo(4);
+    assertThat(((byte[]) blocks.getBlock(0)).length).isEqualTo(4);
     assertThat(disk.getUnallocatedSpace()).isEqualTo(36);
 
     disk.allocate(blocks, 5);
 
     assertThat(blocks.blockCount()).isEqualTo(6);
     for (int i = 0; i < blocks.blockCount(); i++) {
-      assertThat(blocks.getBlock(i).length).isEqualTo(4);
+      assertThat(((byte[]) blocks.getBlock(i)).length).isEqualTo(4);
     }
     assertThat(disk.getUnallocatedSpace()).isEqualTo(16);
-    assertThat(disk.blockCache.blockCount()).isEqualTo(0);
+    assertThat(disk.cachedBlockCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void testAllocate_minAndMaxCount() throws IOException {
+    HeapDisk disk = new HeapDisk(4, 10, 0);
+
+    assertThat(disk.allocate(blocks, 2, 6)).isEqualTo(6);
+    assertThat(blocks.blockCount()).isEqualTo(6);
+
+    // only as many blocks as the disk has space for
+    assertThat(disk.allocate(blocks, 2, 6)).isEqualTo(4);
+    assertThat(blocks.blockCount()).isEqualTo(10);
+    assertThat(disk.getUnallocatedSpace()).isEqualTo(0);
+
+    try {
+      disk.allocate(blocks, 1, 6);
+      fail();
+    } catch (IOException expected) {
+    }
+  }
+
+  @Test
+  public void testAllocate_directStorage() throws IOException {
+    HeapDisk disk = new HeapDisk(4, 10, 0, BlockStorage.DIRECT);
+    RegularFile file = RegularFile.create(-2, disk);
+
+    disk.allocate(file, 2);
+
+    assertThat(disk.storage()).isEqualTo(BlockStorage.DIRECT);
+    assertThat(file.blockCount()).isEqualTo(2);
+    for (int i = 0; i < file.blockCount(); i++) {
+      ByteBuffer block = (ByteBuffer) file.getBlock(i);
+      assertThat(block.isDirect()).isTrue();
+      assertThat(block.capacity()).isEqualTo(4);
+    }
+    assertThat(disk.getUnallocatedSpace()).isEqualTo(32);
+  }
+
+  @Test
+  public void testAllocate_directStorage_blocksCarvedFromSlabs() throws IOException {
+    HeapDisk disk = new HeapDisk(4, 100, 0, BlockStorage.DIRECT);
+    RegularFile file = RegularFile.create(-2, disk);
+
+    // spans more than one slab
+    disk.allocate(file, 50);
+
+    for (int i = 0; i < 50; i++) {
+      ByteBuffer block = (ByteBuffer) file.getBlock(i);
+      assertThat(block.capacity()).isEqualTo(4);
+      block.putInt(0, i);
+    }
+    for (int i = 0; i < 50; i++) {
+      assertThat(((ByteBuffer) file.getBlock(i)).getInt(0)).isEqualTo(i);
+    }
   }
 
   @Test
@@ -98,13 +158,176 @@ public class HeapDiskTest {
     disk.free(blocks, 2);
     assertThat(blocks.blockCount()).isEqualTo(4);
     assertThat(disk.getUnallocatedSpace()).isEqualTo(24);
-    assertThat(disk.blockCache.blockCount()).isEqualTo(0);
+    assertThat(disk.cachedBlockCount()).isEqualTo(0);
 
     disk.free(blocks);
 
     assertThat(blocks.blockCount()).isEqualTo(0);
     assertThat(disk.getUnallocatedSpace()).isEqualTo(40);
-    assertThat(disk.blockCache.blockCount()).isEqualTo(0);
+    assertThat(disk.cachedBlockCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void testCopyContent_sharesBlocks() throws IOException {
+    HeapDisk disk = new HeapDisk(4, 10, 10);
+    RegularFile file = RegularFile.create(-2, disk);
+    file.write(0, new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12}, 0, 12);
+    assertThat(disk.getUnallocatedSpace()).isEqualTo(28);
+
+    RegularFile copy = file.copyWithoutContent(-3);
+    file.copyContentTo(copy);
+
+    // shared blocks only count against the disk once
+    assertThat(disk.getUnallocatedSpace()).isEqualTo(28);
+    for (int i = 0; i < 3; i++) {
+      assertThat(copy.getBlock(i)).isSameInstanceAs(file.getBlock(i));
+    }
+
+    // writing to a shared block gives the writing file its own copy of it
+    copy.write(5, (byte) 0);
+    assertThat(disk.getUnallocatedSpace()).isEqualTo(24);
+    assertThat(copy.getBlock(0)).isSameInstanceAs(file.getBlock(0));
+    assertThat(copy.getBlock(1)).isNotSameInstanceAs(file.getBlock(1));
+    assertThat(copy.getBlock(2)).isSameInstanceAs(file.getBlock(2));
+    assertThat(file.read(5)).isEqualTo(6);
+    assertThat(copy.read(5)).isEqualTo(0);
+    assertThat(copy.read(6)).isEqualTo(7);
+  }
+
+  @Test
+  public void testFree_sharedBlocks() throws IOException {
+    HeapDisk disk = new HeapDisk(4, 10, 10);
+    RegularFile file = RegularFile.create(-2, disk);
+    file.write(0, new byte[12], 0, 12);
+    RegularFile copy = file.copyWithoutContent(-3);
+    file.copyContentTo(copy);
+
+    // freeing shared blocks only releases them, so they aren't cached while still in use
+    disk.free(file);
+    assertThat(file.blockCount()).isEqualTo(0);
+    assertThat(copy.blockCount()).isEqualTo(3);
+    assertThat(disk.getUnallocatedSpace()).isEqualTo(28);
+    assertThat(disk.cachedBlockCount()).isEqualTo(0);
+
+    // blocks no longer shared are written in place
+    Object block = copy.getBlock(0);
+    copy.write(0, (byte) 1);
+    assertThat(copy.getBlock(0)).isSameInstanceAs(block);
+
+    disk.free(copy);
+    assertThat(disk.getUnallocatedSpace()).isEqualTo(40);
+    assertThat(disk.cachedBlockCount()).isEqualTo(3);
+  }
+
+  @Test
+  public void testDecayCache() throws IOException {
+    HeapDisk disk = new HeapDisk(Configuration.unix().toBuilder().setBlockSize(4).build());
+    RegularFile file = RegularFile.create(-2, disk);
+    disk.allocate(file, 10);
+    disk.free(file);
+    assertThat(disk.cachedBlockCount()).isEqualTo(10);
+
+    // blocks freed since the last decay aren't idle yet
+    disk.decayCache();
+    assertThat(disk.cachedBlockCount()).isEqualTo(10);
+
+    // only the blocks that sat unused since the last decay are released
+    disk.allocate(file, 4);
+    disk.free(file, 1);
+    disk.decayCache();
+    assertThat(disk.cachedBlockCount()).isEqualTo(1);
+
+    disk.decayCache();
+    assertThat(disk.cachedBlockCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void testTrim() throws IOException {
+    HeapDisk disk =
+        new HeapDisk(
+            Configuration.unix().toBuilder().setBlockSize(4).setMinCacheSize(12).build());
+    RegularFile file = RegularFile.create(-2, disk);
+    disk.allocate(file, 10);
+    disk.free(file);
+    assertThat(disk.cachedBlockCount()).isEqualTo(10);
+
+    disk.trim();
+    assertThat(disk.cachedBlockCount()).isEqualTo(3);
+
+    // decay never goes below the minimum either
+    disk.decayCache();
+    disk.decayCache();
+    assertThat(disk.cachedBlockCount()).isEqualTo(3);
+
+    disk.allocate(file, 10);
+    assertThat(disk.cachedBlockCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void testDeduplicate() throws IOException {
+    HeapDisk disk = dedupDisk();
+    RegularFile file1 = RegularFile.create(-2, disk);
+    RegularFile file2 = RegularFile.create(-3, disk);
+    byte[] bytes = {1, 2, 3, 4, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10};
+    file1.write(0, bytes, 0, bytes.length);
+    file2.write(0, bytes, 0, bytes.length);
+
+    file1.seal();
+    // identical blocks within a file are deduplicated, but the partial last block isn't
+    assertThat(file1.getBlock(1)).isSameInstanceAs(file1.getBlock(0));
+    assertThat(disk.dedupBlockCount()).isEqualTo(2);
+    assertThat(disk.dedupReferenceCount()).isEqualTo(3);
+
+    file2.seal();
+    for (int i = 0; i < 3; i++) {
+      assertThat(file2.getBlock(i)).isSameInstanceAs(file1.getBlock(i));
+    }
+    assertThat(file2.getBlock(3)).isNotSameInstanceAs(file1.getBlock(3));
+    assertThat(disk.dedupBlockCount()).isEqualTo(2);
+    assertThat(disk.dedupReferenceCount()).isEqualTo(6);
+    assertThat(disk.dedupRatio()).isEqualTo(3.0);
+    assertThat(disk.getUnallocatedSpace()).isEqualTo(24);
+  }
+
+  @Test
+  public void testDeduplicate_copyOnWriteAndFree() throws IOException {
+    HeapDisk disk = dedupDisk();
+    RegularFile file1 = RegularFile.create(-2, disk);
+    RegularFile file2 = RegularFile.create(-3, disk);
+    file1.write(0, new byte[] {1, 2, 3, 4}, 0, 4);
+    file2.write(0, new byte[] {1, 2, 3, 4}, 0, 4);
+    file1.seal();
+    file2.seal();
+    Object block = file1.getBlock(0);
+
+    // a shared deduplicated block is copied before it's written
+    file1.write(0, (byte) 5);
+    assertThat(file1.getBlock(0)).isNotSameInstanceAs(block);
+    assertThat(file2.read(0)).isEqualTo(1);
+    assertThat(disk.dedupReferenceCount()).isEqualTo(1);
+
+    // when only one file references it, it leaves the index and is written in place
+    file2.write(0, (byte) 6);
+    assertThat(file2.getBlock(0)).isSameInstanceAs(block);
+    assertThat(disk.dedupBlockCount()).isEqualTo(0);
+    assertThat(disk.dedupReferenceCount()).isEqualTo(0);
+
+    file1.seal();
+    file2.seal();
+    disk.free(file1);
+    disk.free(file2);
+    assertThat(disk.dedupBlockCount()).isEqualTo(0);
+    assertThat(disk.getUnallocatedSpace()).isEqualTo(40);
+    assertThat(disk.cachedBlockCount()).isEqualTo(2);
+  }
+
+  private static HeapDisk dedupDisk() {
+    return new HeapDisk(
+        Configuration.unix().toBuilder()
+            .setBlockSize(4)
+            .setMaxSize(40)
+            .setBlockDeduplication(true)
+            .build());
   }
 
   @Test
@@ -116,13 +339,13 @@ public class HeapDiskTest {
 
     assertThat(blocks.blockCount()).isEqualTo(4);
     assertThat(disk.getUnallocatedSpace()).isEqualTo(24);
-    assertThat(disk.blockCache.blockCount()).isEqualTo(2);
+    assertThat(disk.cachedBlockCount()).isEqualTo(2);
 
     disk.free(blocks);
 
     assertThat(blocks.blockCount()).isEqualTo(0);
     assertThat(disk.getUnallocatedSpace()).isEqualTo(40);
-    assertThat(disk.blockCache.blockCount()).isEqualTo(6);
+    assertThat(disk.cachedBlockCount()).isEqualTo(6);
   }
 
   @Test
@@ -134,13 +357,13 @@ public class HeapDiskTest {
 
     assertThat(blocks.blockCount()).isEqualTo(4);
     assertThat(disk.getUnallocatedSpace()).isEqualTo(24);
-    assertThat(disk.blockCache.blockCount()).isEqualTo(2);
+    assertThat(disk.cachedBlockCount()).isEqualTo(2);
 
     disk.free(blocks);
 
     assertThat(blocks.blockCount()).isEqualTo(0);
     assertThat(disk.getUnallocatedSpace()).isEqualTo(40);
-    assertThat(disk.blockCache.blockCount()).isEqualTo(4);
+    assertThat(disk.cachedBlockCount()).isEqualTo(4);
   }
 
   @Test
@@ -153,17 +376,17 @@ public class HeapDiskTest {
     disk.free(blocks);
 
     assertThat(blocks.blockCount()).isEqualTo(0);
-    assertThat(disk.blockCache.blockCount()).isEqualTo(10);
+    assertThat(disk.cachedBlockCount()).isEqualTo(10);
 
-    List<byte[]> cachedBlocks = new ArrayList<>();
+    List<Object> cachedBlocks = new ArrayList<>();
     for (int i = 0; i < 10; i++) {
-      cachedBlocks.add(disk.blockCache.getBlock(i));
+      cachedBlocks.add(disk.blockCache().getBlock(i));
     }
 
     disk.allocate(blocks, 6);
 
     assertThat(blocks.blockCount()).isEqualTo(6);
-    assertThat(disk.blockCache.blockCount()).isEqualTo(4);
+    assertThat(disk.cachedBlockCount()).isEqualTo(4);
 
     // the 6 arrays in blocks are the last 6 arrays that were cached
     for (int i = 0; i < 6; i++) {
@@ -181,21 +404,21 @@ public class HeapDiskTest {
     disk.free(blocks);
 
     assertThat(blocks.blockCount()).isEqualTo(0);
-    assertThat(disk.blockCache.blockCount()).isEqualTo(4);
+    assertThat(disk.cachedBlockCount()).isEqualTo(4);
 
-    List<byte[]> cachedBlocks = new ArrayList<>();
+    List<Object> cachedBlocks = new ArrayList<>();
     for (int i = 0; i < 4; i++) {
-      cachedBlocks.add(disk.blockCache.getBlock(i));
+      cachedBlocks.add(disk.blockCache().getBlock(i));
     }
 
     disk.allocate(blocks, 6);
 
     assertThat(blocks.blockCount()).isEqualTo(6);
-    assertThat(disk.blockCache.blockCount()).isEqualTo(0);
+    assertThat(disk.cachedBlockCount()).isEqualTo(0);
 
-    // the last 4 arrays in blocks are the 4 arrays that were cached
-    for (int i = 2; i < 6; i++) {
-      assertThat(blocks.getBlock(i)).isEqualTo(cachedBlocks.get(i - 2));
+    // the first 4 arrays in blocks are the 4 arrays that were cached
+    for (int i = 0; i < 4; i++) {
+      assertThat(blocks.getBlock(i)).isEqualTo(cachedBlocks.get(i));
     }
   }
 
@@ -226,4 +449,40 @@ public class HeapDiskTest {
 
     assertThat(blocks2.blockCount()).isEqualTo(0);
   }
+
+  @Test
+  public void testConcurrentAllocateAndFree() throws Exception {
+    final HeapDisk disk = new HeapDisk(4, 1000, 500);
+    final int threadCount = 8;
+    final CountDownLatch start = new CountDownLatch(1);
+    List<Future<?>> futures = new ArrayList<>();
+    ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+    try {
+      for (int t = 0; t < threadCount; t++) {
+        final RegularFile file = RegularFile.create(-2 - t, disk);
+        futures.add(
+            executor.submit(
+                new Callable<Void>() {
+                  @Override
+                  public Void call() throws Exception {
+                    start.await();
+                    for (int i = 0; i < 1000; i++) {
+                      disk.allocate(file, 1 + i % 100);
+                      disk.free(file);
+                    }
+                    return null;
+                  }
+                }));
+      }
+      start.countDown();
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } finally {
+      executor.shutdown();
+    }
+
+    assertThat(disk.getUnallocatedSpace()).isEqualTo(4000);
+    assertThat(disk.cachedBlockCount()).isAtMost(500);
+  }
 }
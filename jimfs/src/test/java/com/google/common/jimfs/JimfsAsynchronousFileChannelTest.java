@@ -19,6 +19,7 @@ package com.google.common.jimfs;
 import static com.google.common.jimfs.TestUtils.buffer;
 import static com.google.common.jimfs.TestUtils.regularFile;
 import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.util.concurrent.MoreExecutors.directExecutor;
 import static java.nio.file.StandardOpenOption.READ;
 import static java.nio.file.StandardOpenOption.WRITE;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
@@ -26,10 +27,12 @@ import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.fail;
 
 import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.Runnables;
 import com.google.common.util.concurrent.SettableFuture;
 import com.google.common.util.concurrent.Uninterruptibles;
@@ -40,6 +43,7 @@ import java.nio.channels.AsynchronousFileChannel;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.CompletionHandler;
 import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
 import java.nio.file.OpenOption;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
@@ -204,14 +208,64 @@ public class JimfsAsynchronousFileChannelTest {
     assertThat(future.get(10, SECONDS)).isEqualTo(10);
   }
 
+  @Test
+  public void testLock_completesWhenGranted() throws Throwable {
+    RegularFile file = regularFile(10);
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    JimfsAsynchronousFileChannel channel1 = channel(file, executor, READ, WRITE);
+    JimfsAsynchronousFileChannel channel2 = channel(file, executor, READ, WRITE);
+
+    try {
+      FileLock lock1 = channel1.lock(0, 10, false).get(10, SECONDS);
+      assertNull(channel2.tryLock(0, 1, true));
+
+      ListenableFuture<FileLock> future = channel2.lock(5, 5, true);
+      final FileLockTable table = file.lockTable();
+      final SettableFuture<Boolean> listenerHeldTable = SettableFuture.create();
+      future.addListener(
+          new Runnable() {
+            @Override
+            public void run() {
+              listenerHeldTable.set(Thread.holdsLock(table));
+            }
+          },
+          directExecutor());
+      SettableFuture<FileLock> handled = SettableFuture.create();
+      channel2.lock(0, 1, true, null, setFuture(handled));
+      assertThat(future.isDone()).isFalse();
+      assertThat(handled.isDone()).isFalse();
+
+      lock1.release();
+      FileLock lock2 = future.get(10, SECONDS);
+      assertThat(listenerHeldTable.get(10, SECONDS)).isFalse();
+      assertThat(lock2.isValid()).isTrue();
+      assertThat(lock2.acquiredBy()).isSameInstanceAs(channel2);
+      assertThat(handled.get(10, SECONDS).isShared()).isTrue();
+
+      // cancelling a waiting request withdraws it
+      Future<FileLock> cancelled = channel1.lock(0, 10, false);
+      assertThat(cancelled.cancel(false)).isTrue();
+      assertThat(file.lockTable().waitingRequestCount()).isEqualTo(0);
+    } finally {
+      channel1.close();
+      channel2.close();
+      executor.shutdown();
+    }
+  }
+
   private static void checkAsyncLock(AsynchronousFileChannel channel) throws Throwable {
-    assertNotNull(channel.lock().get());
-    assertNotNull(channel.lock(0, 10, true).get());
+    channel.lock().get().release();
+    channel.lock(0, 10, true).get().release();
 
     SettableFuture<FileLock> future = SettableFuture.create();
     channel.lock(0, 10, true, null, setFuture(future));
 
     assertNotNull(future.get(10, SECONDS));
+    try {
+      channel.lock(5, 10, false);
+      fail();
+    } catch (OverlappingFileLockException expected) {
+    }
   }
 
   /**
@@ -25,9 +25,12 @@ import static java.nio.file.StandardOpenOption.APPEND;
 import static java.nio.file.StandardOpenOption.READ;
 import static java.nio.file.StandardOpenOption.WRITE;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
@@ -39,14 +42,17 @@ import com.google.common.util.concurrent.SettableFuture;
 import com.google.common.util.concurrent.Uninterruptibles;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.AsynchronousCloseException;
 import java.nio.channels.ClosedByInterruptException;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
 import java.nio.channels.FileLock;
 import java.nio.channels.FileLockInterruptionException;
 import java.nio.channels.NonReadableChannelException;
 import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.OverlappingFileLockException;
 import java.nio.file.OpenOption;
 import java.util.ArrayList;
 import java.util.List;
@@ -151,6 +157,34 @@ public class JimfsFileChannelTest {
     assertEquals(50, channel.position());
   }
 
+  @Test
+  public void testGatheringWriteAndScatteringRead_acrossBlocks() throws IOException {
+    RegularFile file = RegularFile.create(0, new HeapDisk(4, 100, 100));
+    FileChannel channel = channel(file, READ, WRITE);
+    channel.position(3);
+
+    ByteBuffer[] srcs = {
+      buffer("99"), buffer("12345"), ByteBuffer.allocate(0), buffer("678901"), buffer("99")
+    };
+    assertEquals(11, channel.write(srcs, 1, 3));
+    assertEquals(14, channel.position());
+    assertEquals(14, file.size());
+    assertEquals(2, srcs[0].remaining());
+    assertEquals(2, srcs[4].remaining());
+
+    ByteBuffer[] dsts = {
+      ByteBuffer.allocate(2), ByteBuffer.allocate(0), ByteBuffer.allocate(7), ByteBuffer.allocate(9)
+    };
+    channel.position(1);
+    assertEquals(13, channel.read(dsts));
+    assertEquals(14, channel.position());
+    assertEquals(buffer("00"), dsts[0].flip());
+    assertEquals(buffer("1234567"), dsts[2].flip());
+    assertEquals(buffer("8901"), dsts[3].flip());
+
+    assertEquals(-1, channel.read(dsts, 0, 4));
+  }
+
   @Test
   public void testAppend() throws IOException {
     RegularFile file = regularFile(0);
@@ -185,6 +219,86 @@ public class JimfsFileChannelTest {
     assertEquals(70, channel.position());
   }
 
+  @Test
+  public void testAppend_concurrentAppendsPublishedInOrder() throws Exception {
+    final RegularFile file = concurrentAppendFile();
+    file.setLastModifiedTime(0);
+    file.readLock().lock();
+    try {
+      assertEquals(3, file.reserveForAppend(4));
+      assertEquals(7, file.reserveForAppend(4));
+
+      // the later append waits for the earlier one to be published
+      Thread later =
+          new Thread(
+              new Runnable() {
+                @Override
+                public void run() {
+                  file.publishAppend(7, 11, 11);
+                }
+              });
+      later.start();
+      while (later.getState() != Thread.State.WAITING) {
+        assertTrue(later.isAlive());
+        Thread.yield();
+      }
+      assertEquals(3, file.sizeWithoutLocking());
+      assertEquals(0, file.getLastModifiedTime());
+
+      file.publishAppend(3, 7, 7);
+      later.join(10000);
+      assertFalse(later.isAlive());
+      assertEquals(11, file.sizeWithoutLocking());
+      assertTrue(file.getLastModifiedTime() > 0);
+    } finally {
+      file.readLock().unlock();
+    }
+  }
+
+  @Test
+  public void testAppend_concurrentAppendFails() throws IOException {
+    RegularFile file = concurrentAppendFile();
+    file.readLock().lock();
+    try {
+      // a failed append with no later append is rolled back
+      assertEquals(3, file.reserveForAppend(4));
+      file.publishAppend(3, 4, 7);
+      assertEquals(3, file.sizeWithoutLocking());
+
+      // a failed append with a later append is zeroed and published so the later one can be
+      assertEquals(3, file.reserveForAppend(4));
+      assertEquals(7, file.reserveForAppend(2));
+      file.publishAppend(3, 3, 7);
+      assertEquals(7, file.sizeWithoutLocking());
+      file.publishAppend(7, 9, 9);
+      assertEquals(9, file.sizeWithoutLocking());
+    } finally {
+      file.readLock().unlock();
+    }
+
+    byte[] bytes = new byte[4];
+    file.read(3, bytes, 0, 4);
+    assertArrayEquals(new byte[4], bytes);
+
+    // appends through a channel continue from the published end
+    FileChannel channel = channel(file, WRITE, APPEND);
+    assertEquals(2, channel.write(buffer("12")));
+    assertEquals(11, channel.position());
+    assertEquals(11, file.sizeWithoutLocking());
+  }
+
+  private static RegularFile concurrentAppendFile() throws IOException {
+    HeapDisk disk =
+        new HeapDisk(
+            Configuration.unix().toBuilder().setBlockSize(16).setConcurrentAppends(true).build());
+    RegularFile file = RegularFile.create(0, disk);
+    file.write(0, new byte[] {1, 2, 3}, 0, 3);
+    // dirty the rest of the block, past the end of the file
+    file.write(3, new byte[] {9, 9, 9, 9, 9, 9}, 0, 6);
+    file.truncate(3);
+    return file;
+  }
+
   @Test
   public void testTransferTo() throws IOException {
     RegularFile file = regularFile(10);
@@ -205,6 +319,71 @@ public class JimfsFileChannelTest {
     assertEquals(0, channel.position());
   }
 
+  @Test
+  public void testTransferTo_jimfsChannel() throws IOException {
+    RegularFile file = regularFile(0);
+    file.write(0, bytes("1234567890"), 0, 10);
+    FileChannel channel = channel(file, READ);
+
+    RegularFile targetFile = regularFile(0);
+    FileChannel target = channel(targetFile, WRITE);
+    target.position(2);
+
+    assertEquals(6, channel.transferTo(4, 6, target));
+    assertEquals(0, channel.position());
+    assertEquals(8, target.position());
+    assertEquals(8, targetFile.size());
+
+    byte[] result = new byte[6];
+    targetFile.read(2, result, 0, 6);
+    assertEquals(buffer("567890"), ByteBuffer.wrap(result));
+  }
+
+  @Test
+  public void testTransferFrom_jimfsChannel() throws IOException {
+    RegularFile srcFile = regularFile(0);
+    srcFile.write(0, bytes("1234567890"), 0, 10);
+    FileChannel src = channel(srcFile, READ);
+    src.position(3);
+
+    RegularFile file = regularFile(4);
+    FileChannel channel = channel(file, WRITE);
+
+    assertEquals(5, channel.transferFrom(src, 2, 5));
+    assertEquals(0, channel.position());
+    assertEquals(8, src.position());
+    assertEquals(7, file.size());
+
+    // nothing is transferred to a position beyond the end of the file
+    assertEquals(0, channel.transferFrom(src, 8, 2));
+    assertEquals(8, src.position());
+    assertEquals(7, file.size());
+  }
+
+  @Test
+  public void testTransferTo_jimfsChannel_sharesBlocksOnSameDisk() throws IOException {
+    HeapDisk disk = new HeapDisk(4, 100, 100);
+    RegularFile file = RegularFile.create(0, disk);
+    file.write(0, bytes("123456789012345678"), 0, 18);
+    RegularFile targetFile = RegularFile.create(1, disk);
+
+    FileChannel target = channel(targetFile, WRITE);
+    assertEquals(18, channel(file, READ).transferTo(0, 18, target));
+    assertEquals(18, targetFile.size());
+
+    // the full blocks are shared rather than copied
+    assertTrue(targetFile.mayShareBlock(0));
+    assertTrue(file.mayShareBlock(0));
+
+    // writing to the target copies the shared block rather than changing the source
+    target.write(buffer("0"), 0);
+    byte[] result = new byte[18];
+    file.read(0, result, 0, 18);
+    assertEquals(buffer("123456789012345678"), ByteBuffer.wrap(result));
+    targetFile.read(0, result, 0, 18);
+    assertEquals(buffer("023456789012345678"), ByteBuffer.wrap(result));
+  }
+
   @Test
   public void testTruncate() throws IOException {
     RegularFile file = regularFile(10);
@@ -224,6 +403,154 @@ public class JimfsFileChannelTest {
     assertEquals(2, channel.position());
   }
 
+  @Test
+  public void testMap_readWrite() throws IOException {
+    RegularFile file = regularFile(0);
+    FileChannel channel = channel(file, READ, WRITE);
+    channel.write(buffer("1234567890"));
+
+    MappedByteBuffer mapped = channel.map(MapMode.READ_WRITE, 2, 5);
+    assertEquals(5, mapped.capacity());
+    assertEquals(buffer("34567"), mapped);
+
+    // changes made to the buffer are written back when the channel is forced
+    mapped.put(0, (byte) 0).put(4, (byte) 9);
+    ByteBuffer buf = ByteBuffer.allocate(10);
+    channel.read(buf, 0);
+    assertEquals(buffer("1234567890"), buf.flip());
+    channel.force(false);
+    buf.clear();
+    channel.read(buf, 0);
+    assertEquals(buffer("1204569890"), buf.flip());
+
+    // writes through a channel are copied to the buffer
+    channel.write(buffer("11"), 4);
+    assertEquals(buffer("04119"), mapped);
+
+    // changes made after the channel is closed are no longer written back
+    mapped.put(2, (byte) 2);
+    channel.close();
+    mapped.put(1, (byte) 2);
+    FileChannel other = channel(file, READ);
+    buf.clear();
+    other.read(buf, 0);
+    assertEquals(buffer("1204219890"), buf.flip());
+  }
+
+  @Test
+  public void testMap_readWrite_writesBackChangedBytes() throws IOException {
+    RegularFile file = RegularFile.create(0, new HeapDisk(4, 1000, 1000));
+    FileChannel channel = channel(file, READ, WRITE);
+    channel.write(buffer("123456789012"));
+
+    MappedByteBuffer mapped = channel.map(MapMode.READ_WRITE, 0, 12);
+    MappedByteBuffer overlapping = channel.map(MapMode.READ_WRITE, 4, 8);
+
+    // bytes written through a channel since the buffer changed aren't overwritten
+    mapped.put(1, (byte) 0).put(6, (byte) 0);
+    channel.write(buffer("00"), 2);
+    channel.force(false);
+    ByteBuffer buf = ByteBuffer.allocate(12);
+    channel.read(buf, 0);
+    assertEquals(buffer("100056089012"), buf.flip());
+
+    // and changes written back from one buffer are copied to the others
+    assertEquals(buffer("56089012"), overlapping);
+    overlapping.put(7, (byte) 9);
+    channel.force(false);
+    assertEquals(buffer("100056089019"), mapped);
+
+    // a change that is undone before it's written back writes nothing
+    mapped.put(0, (byte) 9).put(0, (byte) 1);
+    long modified = file.getLastModifiedTime();
+    Uninterruptibles.sleepUninterruptibly(2, MILLISECONDS);
+    channel.force(false);
+    assertEquals(modified, file.getLastModifiedTime());
+
+    // truncating the file zeros the bytes of the buffer past its end
+    channel.truncate(10);
+    assertEquals(buffer("100056089000"), mapped);
+  }
+
+  @Test
+  public void testMap_readWrite_releasedWhenChannelCloses() throws IOException {
+    RegularFile file = regularFile(0);
+    FileChannel channel = channel(file, READ, WRITE);
+    channel.write(buffer("1234"));
+
+    MappedByteBuffer mapped = channel.map(MapMode.READ_WRITE, 0, 4);
+    FileChannel other = channel(file, READ, WRITE);
+    other.map(MapMode.READ_WRITE, 0, 4);
+    mapped.put(0, (byte) 0);
+    channel.close();
+
+    // the change is written back when the channel closes, but the other mapping is still tracked
+    ByteBuffer buf = ByteBuffer.allocate(4);
+    other.read(buf, 0);
+    assertEquals(buffer("0234"), buf.flip());
+    assertTrue(file.isMapped());
+    other.close();
+    assertFalse(file.isMapped());
+  }
+
+  @Test
+  public void testMap_positionPlusSizeOverflows() throws IOException {
+    FileChannel channel = channel(regularFile(0), READ, WRITE);
+    try {
+      channel.map(MapMode.READ_WRITE, Long.MAX_VALUE - 2, 5);
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  @Test
+  public void testMap_readOnlyAndPrivate() throws IOException {
+    RegularFile file = regularFile(0);
+    FileChannel channel = channel(file, READ, WRITE);
+    channel.write(buffer("1234567890"));
+
+    MappedByteBuffer readOnly = channel.map(MapMode.READ_ONLY, 0, 10);
+    assertTrue(readOnly.isReadOnly());
+    assertEquals(buffer("1234567890"), readOnly);
+
+    MappedByteBuffer copy = channel.map(MapMode.PRIVATE, 0, 10);
+    assertFalse(copy.isReadOnly());
+    copy.put(0, (byte) 0);
+    copy.force(); // does nothing for a private mapping
+
+    ByteBuffer buf = ByteBuffer.allocate(10);
+    channel.read(buf, 0);
+    assertEquals(buffer("1234567890"), buf.flip());
+  }
+
+  @Test
+  public void testMap_growsFile() throws IOException {
+    RegularFile file = regularFile(0);
+    FileChannel channel = channel(file, READ, WRITE);
+    channel.write(buffer("123"));
+
+    MappedByteBuffer mapped = channel.map(MapMode.READ_WRITE, 2, 6);
+    assertEquals(8, channel.size());
+    assertEquals(buffer("300000"), mapped);
+
+    FileChannel readOnly = channel(file, READ);
+    try {
+      readOnly.map(MapMode.READ_ONLY, 4, 5);
+      fail();
+    } catch (IOException expected) {
+    }
+    assertEquals(8, readOnly.size());
+
+    // writes back past the file's size once it's truncated are dropped
+    channel.truncate(4);
+    mapped.put(buffer("999999"));
+    channel.force(false);
+    assertEquals(4, channel.size());
+    ByteBuffer buf = ByteBuffer.allocate(4);
+    channel.read(buf, 0);
+    assertEquals(buffer("1299"), buf.flip());
+  }
+
   @Test
   public void testFileTimeUpdates() throws IOException {
     RegularFile file = regularFile(10);
@@ -302,6 +629,48 @@ public class JimfsFileChannelTest {
     assertNotEquals(modifiedTime, file.getLastModifiedTime());
   }
 
+  @Test
+  public void testFileTimeUpdates_accessTimePolicy() throws IOException {
+    long now = System.currentTimeMillis();
+
+    RegularFile file = policyFile(AccessTimePolicy.NOATIME);
+    FileChannel channel = channel(file, READ);
+    file.setLastAccessTime(1000);
+    channel.read(ByteBuffer.allocate(10), 0);
+    channel.transferTo(0, 10, new ByteBufferChannel(10));
+    assertEquals(1000, file.getLastAccessTime());
+
+    file = policyFile(AccessTimePolicy.RELATIME);
+    channel = channel(file, READ);
+
+    // not updated if accessed since it was last modified, less than a day ago
+    file.setLastModifiedTime(now - 2000);
+    file.setLastAccessTime(now - 1000);
+    channel.read(ByteBuffer.allocate(10), 0);
+    channel.transferTo(0, 10, new ByteBufferChannel(10));
+    assertEquals(now - 1000, file.getLastAccessTime());
+
+    // updated if modified since it was last accessed
+    file.setLastModifiedTime(now - 1000);
+    file.setLastAccessTime(now - 2000);
+    channel.read(ByteBuffer.allocate(10), 0);
+    assertTrue(file.getLastAccessTime() >= now);
+
+    // updated if last accessed more than a day ago
+    file.setLastModifiedTime(0);
+    file.setLastAccessTime(1000);
+    channel.read(ByteBuffer.allocate(10), 0);
+    assertTrue(file.getLastAccessTime() >= now);
+  }
+
+  private static RegularFile policyFile(AccessTimePolicy policy) throws IOException {
+    HeapDisk disk =
+        new HeapDisk(Configuration.unix().toBuilder().setAccessTimePolicy(policy).build());
+    RegularFile file = RegularFile.create(0, disk);
+    file.write(0, new byte[10], 0, 10);
+    return file;
+  }
+
   @Test
   public void testClose() throws IOException {
     FileChannel channel = channel(regularFile(0), READ, WRITE);
@@ -466,6 +835,12 @@ public class JimfsFileChannelTest {
       fail();
     } catch (NonWritableChannelException expected) {
     }
+
+    try {
+      channel.map(MapMode.READ_WRITE, 0, 10);
+      fail();
+    } catch (NonWritableChannelException expected) {
+    }
   }
 
   @Test
@@ -507,6 +882,12 @@ public class JimfsFileChannelTest {
       fail();
     } catch (NonReadableChannelException expected) {
     }
+
+    try {
+      channel.map(MapMode.READ_WRITE, 0, 10);
+      fail();
+    } catch (NonReadableChannelException expected) {
+    }
   }
 
   @Test
@@ -654,13 +1035,13 @@ public class JimfsFileChannelTest {
   public void testLock() throws IOException {
     FileChannel channel = channel(regularFile(10), READ, WRITE);
 
-    assertNotNull(channel.lock());
-    assertNotNull(channel.lock(0, 10, false));
-    assertNotNull(channel.lock(0, 10, true));
+    channel.lock().release();
+    channel.lock(0, 10, false).release();
+    channel.lock(0, 10, true).release();
 
-    assertNotNull(channel.tryLock());
-    assertNotNull(channel.tryLock(0, 10, false));
-    assertNotNull(channel.tryLock(0, 10, true));
+    channel.tryLock().release();
+    channel.tryLock(0, 10, false).release();
+    channel.tryLock(0, 10, true).release();
 
     FileLock lock = channel.lock();
     assertTrue(lock.isValid());
@@ -668,6 +1049,105 @@ public class JimfsFileChannelTest {
     assertFalse(lock.isValid());
   }
 
+  @Test
+  public void testLock_overlappingLockOnSameChannel() throws IOException {
+    FileChannel channel = channel(regularFile(10), READ, WRITE);
+    FileLock lock = channel.lock(0, 10, true);
+
+    try {
+      channel.lock(5, 10, true);
+      fail();
+    } catch (OverlappingFileLockException expected) {
+    }
+
+    try {
+      channel.tryLock(9, 1, false);
+      fail();
+    } catch (OverlappingFileLockException expected) {
+    }
+
+    // adjacent ranges don't overlap
+    assertNotNull(channel.tryLock(10, 5, false));
+
+    lock.release();
+    assertNotNull(channel.lock(5, 5, false));
+  }
+
+  @Test
+  public void testLock_conflictsWithOtherChannels() throws Exception {
+    RegularFile file = regularFile(10);
+    FileChannel channel1 = channel(file, READ, WRITE);
+    final FileChannel channel2 = channel(file, READ, WRITE);
+
+    FileLock shared = channel1.lock(0, 3, true);
+    assertNotNull(channel1.lock(3, 3, false));
+
+    FileLock otherShared = channel2.tryLock(0, 3, true);
+    assertNotNull(otherShared);
+    otherShared.release();
+    assertNull(channel2.tryLock(0, 3, false));
+    assertNull(channel2.tryLock(5, 10, true));
+    assertNotNull(channel2.tryLock(6, 10, false)); // doesn't overlap
+
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Future<FileLock> exclusive =
+          executor.submit(
+              new Callable<FileLock>() {
+                @Override
+                public FileLock call() throws IOException {
+                  return channel2.lock(0, 5, false);
+                }
+              });
+      Uninterruptibles.sleepUninterruptibly(50, MILLISECONDS);
+      assertFalse(exclusive.isDone());
+
+      shared.release();
+      Uninterruptibles.sleepUninterruptibly(50, MILLISECONDS);
+      assertFalse(exclusive.isDone()); // still conflicts with channel1's exclusive lock
+
+      channel1.close(); // releases all of channel1's locks
+      FileLock lock = exclusive.get(10, SECONDS);
+      assertTrue(lock.isValid());
+      assertSame(channel2, lock.channel());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testLock_waitingLockFailsWhenChannelClosed() throws Exception {
+    RegularFile file = regularFile(10);
+    FileChannel channel1 = channel(file, READ, WRITE);
+    final FileChannel channel2 = channel(file, READ, WRITE);
+    channel1.lock();
+
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Future<FileLock> waiting =
+          executor.submit(
+              new Callable<FileLock>() {
+                @Override
+                public FileLock call() throws IOException {
+                  return channel2.lock();
+                }
+              });
+      Uninterruptibles.sleepUninterruptibly(50, MILLISECONDS);
+      channel2.close();
+
+      try {
+        waiting.get(10, SECONDS);
+        fail();
+      } catch (ExecutionException expected) {
+        assertTrue(expected.getCause() instanceof AsynchronousCloseException);
+      }
+      assertEquals(0, file.lockTable().waitingRequestCount());
+      assertEquals(1, file.lockTable().heldLockCount());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
   @Test
   public void testAsynchronousClose() throws Exception {
     RegularFile file = regularFile(10);
@@ -1018,8 +1498,15 @@ public class JimfsFileChannelTest {
           }
         });
 
+    assertClosedByInterrupt(
+        new FileChannelMethod() {
+          @Override
+          public void call(FileChannel channel) throws IOException {
+            channel.map(MapMode.READ_WRITE, 0, 1);
+          }
+        });
+
     // tryLock() does not handle interruption
-    // map() always throws UOE; it doesn't make sense for it to try to handle interruption
   }
 
   private interface FileChannelMethod {
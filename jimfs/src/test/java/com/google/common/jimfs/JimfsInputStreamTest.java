@@ -23,6 +23,7 @@ import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.fail;
 
 import com.google.common.util.concurrent.Runnables;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -167,21 +168,103 @@ public class JimfsInputStreamTest {
   }
 
   @Test
-  public void testMark_unsupported() throws IOException {
-    JimfsInputStream in = newInputStream(1, 2, 3);
-    assertThat(in.markSupported()).isFalse();
+  public void testMarkAndReset() throws IOException {
+    JimfsInputStream in = newInputStream(1, 2, 3, 4, 5);
+    assertThat(in.markSupported()).isTrue();
+
+    // without a mark, reset goes back to the start of the file
+    assertThat(in.read()).isEqualTo(1);
+    in.reset();
+    assertThat(in.read()).isEqualTo(1);
+
+    in.mark(0); // the read limit is ignored
+    assertThat(in.read(new byte[10])).isEqualTo(4);
+    assertEmpty(in);
+
+    in.reset();
+    assertThat(in.available()).isEqualTo(4);
+    assertThat(in.read()).isEqualTo(2);
+  }
+
+  @Test
+  public void testReadAllBytes() throws IOException {
+    JimfsInputStream in = newInputStream(1, 2, 3, 4, 5);
+    assertThat(in.read()).isEqualTo(1);
+    assertArrayEquals(bytes(2, 3, 4, 5), in.readAllBytes());
+    assertEmpty(in);
+    assertArrayEquals(new byte[0], in.readAllBytes());
+  }
+
+  @Test
+  public void testReadAllBytes_acrossBlocks() throws IOException {
+    RegularFile file = RegularFile.create(0, new HeapDisk(4, 10, 10));
+    byte[] bytes = bytes(1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11);
+    file.write(0, bytes, 0, bytes.length);
+    JimfsInputStream in = new JimfsInputStream(file, new FileSystemState(Runnables.doNothing()));
+    assertThat(in.skip(1)).isEqualTo(1);
+    assertArrayEquals(bytes(2, 3, 4, 5, 6, 7, 8, 9, 10, 11), in.readAllBytes());
+  }
+
+  @Test
+  public void testReadNBytes() throws IOException {
+    JimfsInputStream in = newInputStream(1, 2, 3, 4, 5);
+    assertArrayEquals(bytes(1, 2), in.readNBytes(2));
+    assertArrayEquals(new byte[0], in.readNBytes(0));
 
-    // mark does nothing
-    in.mark(1);
+    byte[] bytes = new byte[5];
+    assertThat(in.readNBytes(bytes, 1, 4)).isEqualTo(3);
+    assertArrayEquals(bytes(0, 3, 4, 5, 0), bytes);
+    assertThat(in.readNBytes(bytes, 0, 5)).isEqualTo(0);
+    assertArrayEquals(new byte[0], in.readNBytes(10));
 
     try {
-      // reset throws IOException when unsupported
-      in.reset();
+      in.readNBytes(-1);
       fail();
-    } catch (IOException expected) {
+    } catch (IllegalArgumentException expected) {
     }
   }
 
+  @Test
+  public void testTransferTo() throws IOException {
+    JimfsInputStream in = newInputStream(1, 2, 3, 4, 5);
+    assertThat(in.read()).isEqualTo(1);
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    assertThat(in.transferTo(out)).isEqualTo(4);
+    assertArrayEquals(bytes(2, 3, 4, 5), out.toByteArray());
+    assertEmpty(in);
+    assertThat(in.transferTo(out)).isEqualTo(0);
+  }
+
+  @SuppressWarnings("GuardedByChecker")
+  @Test
+  public void testTransferTo_jimfsOutputStream() throws IOException {
+    JimfsInputStream in = newInputStream(1, 2, 3, 4, 5);
+    assertThat(in.read()).isEqualTo(1);
+
+    RegularFile target = regularFile(0);
+    JimfsOutputStream out =
+        new JimfsOutputStream(target, false, new FileSystemState(Runnables.doNothing()));
+    out.write(9);
+    assertThat(in.transferTo(out)).isEqualTo(4);
+    out.write(9);
+
+    byte[] bytes = new byte[6];
+    assertThat(target.read(0, bytes, 0, 6)).isEqualTo(6);
+    assertArrayEquals(bytes(9, 2, 3, 4, 5, 9), bytes);
+    assertEmpty(in);
+
+    // a stream to the same file gets the bytes through a buffer
+    in.reset();
+    assertThat(in.read()).isEqualTo(1);
+    JimfsOutputStream sameFile =
+        new JimfsOutputStream(in.file, false, new FileSystemState(Runnables.doNothing()));
+    assertThat(in.transferTo(sameFile)).isEqualTo(4);
+    bytes = new byte[5];
+    assertThat(in.file.read(0, bytes, 0, 5)).isEqualTo(5);
+    assertArrayEquals(bytes(2, 3, 4, 5, 5), bytes);
+  }
+
   @Test
   public void testClosedInputStream_throwsException() throws IOException {
     JimfsInputStream in = newInputStream(1, 2, 3);
@@ -217,6 +300,24 @@ public class JimfsInputStreamTest {
     } catch (IOException expected) {
     }
 
+    try {
+      in.readAllBytes();
+      fail();
+    } catch (IOException expected) {
+    }
+
+    try {
+      in.transferTo(new ByteArrayOutputStream());
+      fail();
+    } catch (IOException expected) {
+    }
+
+    try {
+      in.reset();
+      fail();
+    } catch (IOException expected) {
+    }
+
     in.close(); // does nothing
   }
 
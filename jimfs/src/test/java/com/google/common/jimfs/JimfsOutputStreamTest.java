@@ -18,6 +18,7 @@ package com.google.common.jimfs;
 
 import static com.google.common.jimfs.TestUtils.bytes;
 import static com.google.common.jimfs.TestUtils.regularFile;
+import static com.google.common.truth.Truth.assertThat;
 import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.fail;
@@ -182,6 +183,125 @@ public class JimfsOutputStreamTest {
     }
   }
 
+  @Test
+  public void testCoalescedWrites_invisibleUntilFlushed() throws IOException {
+    JimfsOutputStream out = newCoalescingOutputStream(false);
+    out.write(1);
+    out.write(new byte[] {2, 3, 4});
+    assertStoreSize(out, 0);
+
+    out.flush();
+    assertStoreContains(out, 1, 2, 3, 4);
+    assertStoreSize(out, 4);
+
+    out.write(5);
+    assertStoreSize(out, 4);
+  }
+
+  @Test
+  public void testCoalescedWrites_closeFlushes() throws IOException {
+    JimfsOutputStream out = newCoalescingOutputStream(false);
+    RegularFile file = fileOf(out);
+    out.write(new byte[] {1, 2, 3});
+    out.close();
+
+    byte[] bytes = new byte[3];
+    assertThat(file.read(0, bytes, 0, 3)).isEqualTo(3);
+    assertArrayEquals(bytes(1, 2, 3), bytes);
+    assertThat(file.sizeWithoutLocking()).isEqualTo(3);
+  }
+
+  @Test
+  public void testCoalescedWrites_flushedWhenBlockFilled() throws IOException {
+    JimfsOutputStream out = newCoalescingOutputStream(false);
+    out.write(new byte[] {1, 2, 3, 4, 5, 6, 7});
+    assertStoreSize(out, 0);
+
+    // the eighth byte fills the file's first block
+    out.write(8);
+    assertStoreSize(out, 8);
+
+    out.write(new byte[] {9, 10, 11, 12, 13, 14});
+    assertStoreSize(out, 8);
+    out.write(new byte[] {15, 16});
+    assertStoreSize(out, 16);
+    assertStoreContains(out, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16);
+  }
+
+  @Test
+  public void testCoalescedWrites_alignedToFileBlocks() throws IOException {
+    JimfsOutputStream out = newCoalescingOutputStream(true);
+    addBytesToStore(out, 1, 2, 3, 4, 5);
+
+    // staged bytes are written when they reach the end of the file's block, not when 8 are staged
+    out.write(new byte[] {6, 7});
+    assertStoreSize(out, 5);
+    out.write(8);
+    assertStoreSize(out, 8);
+
+    out.write(new byte[] {9, 10, 11, 12, 13, 14, 15});
+    assertStoreSize(out, 8);
+    // bytes that don't fit in the block are split, so the staged bytes end on its boundary
+    out.write(new byte[] {16, 17});
+    assertStoreSize(out, 16);
+    out.flush();
+    assertStoreSize(out, 17);
+    assertStoreContains(out, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 17);
+  }
+
+  @Test
+  public void testCoalescedWrites_largeWriteBypassesBuffer() throws IOException {
+    JimfsOutputStream out = newCoalescingOutputStream(false);
+    out.write(new byte[] {1, 2});
+    assertStoreSize(out, 0);
+
+    // staged bytes are written first, then the large write directly
+    out.write(new byte[] {3, 4, 5, 6, 7, 8, 9, 10, 11, 12});
+    assertStoreSize(out, 12);
+    assertStoreContains(out, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12);
+
+    out.write(new byte[] {13, 14, 15, 16, 17, 18, 19, 20});
+    assertStoreSize(out, 20);
+    out.write(21);
+    assertStoreSize(out, 20);
+  }
+
+  @Test
+  public void testCoalescedWrites_appendMode() throws IOException {
+    JimfsOutputStream out = newCoalescingOutputStream(true);
+    addBytesToStore(out, 1, 2, 3);
+    out.write(new byte[] {4, 5});
+    assertStoreSize(out, 3);
+
+    // the staged bytes go at the end of the file as it is when they're written
+    addBytesToStore(out, 6);
+    out.write(7);
+    out.flush();
+    assertStoreContains(out, 1, 2, 3, 6, 4, 5, 7);
+    assertStoreSize(out, 7);
+  }
+
+  private static JimfsOutputStream newCoalescingOutputStream(boolean append) {
+    HeapDisk disk =
+        new HeapDisk(
+            Configuration.unix().toBuilder()
+                .setBlockSize(8)
+                .setCoalescedStreamWrites(true)
+                .build());
+    RegularFile file = RegularFile.create(0, disk);
+    return new JimfsOutputStream(file, append, new FileSystemState(Runnables.doNothing()));
+  }
+
+  @SuppressWarnings("GuardedByChecker")
+  private static RegularFile fileOf(JimfsOutputStream out) {
+    return out.file;
+  }
+
+  @SuppressWarnings("GuardedByChecker")
+  private static void assertStoreSize(JimfsOutputStream out, long size) {
+    assertThat(out.file.sizeWithoutLocking()).isEqualTo(size);
+  }
+
   private static JimfsOutputStream newOutputStream(boolean append) {
     RegularFile file = regularFile(0);
     return new JimfsOutputStream(file, append, new FileSystemState(Runnables.doNothing()));
@@ -197,7 +317,7 @@ public class JimfsOutputStreamTest {
   }
 
   @SuppressWarnings("GuardedByChecker")
-  private static void assertStoreContains(JimfsOutputStream out, int... bytes) {
+  private static void assertStoreContains(JimfsOutputStream out, int... bytes) throws IOException {
     byte[] actualBytes = new byte[bytes.length];
     out.file.read(0, actualBytes, 0, actualBytes.length);
     assertArrayEquals(bytes(bytes), actualBytes);
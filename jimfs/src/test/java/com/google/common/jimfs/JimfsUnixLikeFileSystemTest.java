@@ -144,6 +144,23 @@ public class JimfsUnixLikeFileSystemTest extends AbstractJimfsIntegrationTest {
     assertThat(fileStore.getUnallocatedSpace()).isEqualTo(totalSpace);
     assertThat(fileStore.getUsableSpace()).isEqualTo(totalSpace);
 
+    // block compression, spilling, deduplication and tail packing are disabled by default
+    assertThat(fileStore.getAttribute("jimfs:compressedBlockCount")).isEqualTo(0);
+    assertThat(fileStore.getAttribute("jimfs:compressedSize")).isEqualTo(0L);
+    assertThat(fileStore.getAttribute("jimfs:uncompressedSize")).isEqualTo(0L);
+    assertThat(fileStore.getAttribute("jimfs:spilledBlockCount")).isEqualTo(0);
+    assertThat(fileStore.getAttribute("jimfs:spillFileSize")).isEqualTo(0L);
+    assertThat(fileStore.getAttribute("jimfs:dedupBlockCount")).isEqualTo(0);
+    assertThat(fileStore.getAttribute("jimfs:dedupReferenceCount")).isEqualTo(0);
+    assertThat(fileStore.getAttribute("jimfs:dedupRatio")).isEqualTo(1.0);
+    assertThat(fileStore.getAttribute("jimfs:packedTailSize")).isEqualTo(0L);
+    assertThat(fileStore.getAttribute("jimfs:cacheSize")).isEqualTo(0L);
+    try {
+      fileStore.getAttribute("jimfs:foo");
+      fail();
+    } catch (UnsupportedOperationException expected) {
+    }
+
     Files.write(fs.getPath("/foo"), new byte[10000]);
 
     assertThat(fileStore.getTotalSpace()).isEqualTo(totalSpace);
@@ -163,6 +180,99 @@ public class JimfsUnixLikeFileSystemTest extends AbstractJimfsIntegrationTest {
     assertThat(fileStore.getUsableSpace()).isEqualTo(totalSpace);
   }
 
+  @Test
+  public void testFileStoreAttributeView() throws IOException {
+    FileStore fileStore = Iterables.getOnlyElement(fs.getFileStores());
+    JimfsFileStoreAttributeView view =
+        fileStore.getFileStoreAttributeView(JimfsFileStoreAttributeView.class);
+    assertThat(view.name()).isEqualTo("jimfs");
+    assertThat(view.blockSize()).isEqualTo(8192);
+    assertThat(view.allocatedBlockCount()).isEqualTo(0);
+    assertThat(view.contentSize()).isEqualTo(0L);
+
+    Files.write(fs.getPath("/foo"), new byte[10000]);
+    Files.createLink(fs.getPath("/bar"), fs.getPath("/foo"));
+    assertThat(view.allocatedBlockCount()).isEqualTo(2);
+    assertThat(view.allocatedSize()).isEqualTo(16384L);
+    assertThat(view.contentSize()).isEqualTo(10000L);
+    assertThat(fileStore.getAttribute("jimfs:allocatedBlockCount")).isEqualTo(2);
+    assertThat(fileStore.getAttribute("jimfs:contentSize")).isEqualTo(10000L);
+    assertThat(fileStore.getAttribute("jimfs:blockSize")).isEqualTo(8192);
+
+    // a deleted file stays pinned in memory until the last channel open to it is closed
+    try (SeekableByteChannel channel = Files.newByteChannel(fs.getPath("/foo"), READ)) {
+      Files.delete(fs.getPath("/foo"));
+      assertThat(view.pinnedFileCount()).isEqualTo(0);
+      Files.delete(fs.getPath("/bar"));
+      assertThat(view.pinnedFileCount()).isEqualTo(1);
+      assertThat(view.pinnedSize()).isEqualTo(16384L);
+      assertThat(fileStore.getAttribute("jimfs:pinnedSize")).isEqualTo(16384L);
+      // the content of a pinned file is counted until it's freed
+      assertThat(view.contentSize()).isEqualTo(10000L);
+    }
+    assertThat(view.contentSize()).isEqualTo(0L);
+    assertThat(view.pinnedFileCount()).isEqualTo(0);
+    assertThat(view.pinnedSize()).isEqualTo(0L);
+    assertThat(view.allocatedBlockCount()).isEqualTo(0);
+    // the freed blocks are cached, along with any that were allocated ahead of the write
+    assertThat(view.cachedBlockCount()).isAtLeast(2);
+    assertThat(view.cacheSize()).isEqualTo(view.cachedBlockCount() * 8192L);
+
+    // the content size follows writes, truncation and copies
+    Files.write(fs.getPath("/baz"), new byte[100]);
+    try (FileChannel channel = FileChannel.open(fs.getPath("/baz"), WRITE)) {
+      channel.truncate(40);
+    }
+    Files.copy(fs.getPath("/baz"), fs.getPath("/qux"));
+    assertThat(view.contentSize()).isEqualTo(80L);
+  }
+
+  @Test
+  public void testSparseFile() throws IOException {
+    FileStore fileStore = Iterables.getOnlyElement(fs.getFileStores());
+    long totalSpace = fileStore.getTotalSpace();
+    long position = totalSpace / 2;
+
+    try (FileChannel channel = FileChannel.open(path("/sparse"), CREATE_NEW, WRITE, SPARSE)) {
+      channel.write(ByteBuffer.wrap(new byte[] {1, 2, 3}), position);
+      assertThat(channel.size()).isEqualTo(position + 3);
+    }
+
+    // only the block that was written to is allocated
+    assertThat(fileStore.getUnallocatedSpace()).isAtLeast(totalSpace - 2 * 8192);
+
+    try (FileChannel channel = FileChannel.open(path("/sparse"), READ)) {
+      ByteBuffer buf = ByteBuffer.allocate(10);
+      channel.read(buf, position - 7);
+      assertArrayEquals(new byte[] {0, 0, 0, 0, 0, 0, 0, 1, 2, 3}, buf.array());
+    }
+
+    Files.delete(path("/sparse"));
+    assertThat(fileStore.getUnallocatedSpace()).isEqualTo(totalSpace);
+  }
+
+  @Test
+  public void testSequentialWrites_unusedBlocksFreedOnClose() throws IOException {
+    FileStore fileStore = Iterables.getOnlyElement(fs.getFileStores());
+    long totalSpace = fileStore.getTotalSpace();
+    byte[] bytes = preFilledBytes(8192);
+
+    try (OutputStream out = Files.newOutputStream(path("/foo"))) {
+      for (int i = 0; i < 100; i++) {
+        out.write(bytes);
+      }
+      // more blocks than needed may be allocated while the file is growing
+      assertThat(fileStore.getUnallocatedSpace()).isAtMost(totalSpace - 100 * 8192);
+    }
+    assertThat(fileStore.getUnallocatedSpace()).isEqualTo(totalSpace - 100 * 8192);
+
+    try (FileChannel channel = FileChannel.open(path("/foo"), WRITE)) {
+      channel.write(ByteBuffer.wrap(bytes), 100 * 8192);
+    }
+    assertThat(fileStore.getUnallocatedSpace()).isEqualTo(totalSpace - 101 * 8192);
+    assertThat(Files.size(path("/foo"))).isEqualTo(101 * 8192);
+  }
+
   @Test
   public void testPaths() {
     assertThatPath("/").isAbsolute().and().hasRootComponent("/").and().hasNoNameComponents();
@@ -1564,6 +1674,39 @@ public class JimfsUnixLikeFileSystemTest extends AbstractJimfsIntegrationTest {
     }
   }
 
+  @Test
+  public void testCopy_fileToPath_sharesContentUntilWritten() throws IOException {
+    FileStore fileStore = Iterables.getOnlyElement(fs.getFileStores());
+    byte[] bytes = preFilledBytes(100000);
+    Files.write(path("/foo"), bytes);
+    long unallocatedSpace = fileStore.getUnallocatedSpace();
+
+    Files.copy(path("/foo"), path("/bar"));
+    Files.copy(path("/foo"), path("/baz"));
+    assertThat(fileStore.getUnallocatedSpace()).isEqualTo(unallocatedSpace);
+
+    try (SeekableByteChannel channel = Files.newByteChannel(path("/bar"), WRITE)) {
+      channel.position(50000);
+      channel.write(ByteBuffer.wrap(new byte[] {-1, -1, -1}));
+    }
+    assertThat(fileStore.getUnallocatedSpace()).isLessThan(unallocatedSpace);
+
+    byte[] expected = bytes.clone();
+    expected[50000] = expected[50001] = expected[50002] = -1;
+    assertThatPath("/foo").containsBytes(bytes);
+    assertThatPath("/bar").containsBytes(expected);
+    assertThatPath("/baz").containsBytes(bytes);
+
+    Files.delete(path("/foo"));
+    Files.write(path("/baz"), new byte[] {1, 2, 3}, APPEND);
+    assertThatPath("/bar").containsBytes(expected);
+    assertThatPath("/baz").containsBytes(concat(bytes, new byte[] {1, 2, 3}));
+
+    Files.delete(path("/bar"));
+    Files.delete(path("/baz"));
+    assertThat(fileStore.getUnallocatedSpace()).isEqualTo(fileStore.getTotalSpace());
+  }
+
   @Test
   public void testCopy_withCopyAttributes() throws IOException {
     Path foo = path("/foo");
@@ -0,0 +1,235 @@
+/*
+ * Copyright 2026 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.jimfs;
+
+import static com.google.common.jimfs.TestUtils.buffer;
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link RangeLock} and writes in place to a {@link RegularFile}. */
+@RunWith(JUnit4.class)
+public class RangeLockTest {
+
+  private final RangeLock lock = new RangeLock();
+
+  @Test
+  public void testDisjointRanges() throws InterruptedException {
+    RangeLock.Range a = lock.lock(0, 10);
+    RangeLock.Range b = lock.lock(10, 20);
+    RangeLock.Range c = lock.lock(30, 31);
+    assertThat(lock.lockedRangeCount()).isEqualTo(3);
+
+    lock.unlock(b);
+    lock.unlock(a);
+    lock.unlock(c);
+    assertThat(lock.lockedRangeCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void testOverlappingRangeWaits() throws InterruptedException {
+    RangeLock.Range a = lock.lock(0, 10);
+
+    final CountDownLatch locked = new CountDownLatch(1);
+    Thread thread =
+        new Thread(
+            new Runnable() {
+              @Override
+              public void run() {
+                try {
+                  RangeLock.Range b = lock.lock(9, 12);
+                  locked.countDown();
+                  lock.unlock(b);
+                } catch (InterruptedException e) {
+                  throw new AssertionError(e);
+                }
+              }
+            });
+    thread.start();
+
+    assertThat(locked.await(50, TimeUnit.MILLISECONDS)).isFalse();
+    lock.unlock(a);
+    assertThat(locked.await(10, TimeUnit.SECONDS)).isTrue();
+    thread.join();
+  }
+
+  @Test
+  public void testSharedRanges() throws InterruptedException {
+    RangeLock.Range a = lock.lockUninterruptibly(0, 10, true);
+    RangeLock.Range b = lock.lockUninterruptibly(5, 15, true);
+    assertThat(lock.lockedRangeCount()).isEqualTo(2);
+
+    // an exclusive range waits for overlapping shared ranges
+    final CountDownLatch locked = new CountDownLatch(1);
+    Thread thread =
+        new Thread(
+            new Runnable() {
+              @Override
+              public void run() {
+                RangeLock.Range c = lock.lockUninterruptibly(12, 20, false);
+                locked.countDown();
+                lock.unlock(c);
+              }
+            });
+    thread.start();
+
+    assertThat(locked.await(50, TimeUnit.MILLISECONDS)).isFalse();
+    lock.unlock(a);
+    assertThat(locked.await(50, TimeUnit.MILLISECONDS)).isFalse();
+    lock.unlock(b);
+    assertThat(locked.await(10, TimeUnit.SECONDS)).isTrue();
+    thread.join();
+  }
+
+  @Test
+  public void testExclusiveRangeWaitsForUntrackedSharedRanges() throws InterruptedException {
+    // with no exclusive range locked, a shared range isn't tracked, so an exclusive range waits for
+    // it even though they don't overlap
+    RangeLock.Range a = lock.lockUninterruptibly(0, 10, true);
+
+    final CountDownLatch locked = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    Thread thread =
+        new Thread(
+            new Runnable() {
+              @Override
+              public void run() {
+                RangeLock.Range b = lock.lockUninterruptibly(20, 30, false);
+                locked.countDown();
+                Uninterruptibles.awaitUninterruptibly(release);
+                lock.unlock(b);
+              }
+            });
+    thread.start();
+
+    assertThat(locked.await(50, TimeUnit.MILLISECONDS)).isFalse();
+    lock.unlock(a);
+    assertThat(locked.await(10, TimeUnit.SECONDS)).isTrue();
+
+    // while an exclusive range is locked, shared ranges are tracked and only wait for overlapping
+    // exclusive ranges
+    RangeLock.Range c = lock.lockUninterruptibly(0, 10, true);
+    assertThat(lock.lockedRangeCount()).isEqualTo(2);
+    lock.unlock(c);
+    release.countDown();
+    thread.join();
+    assertThat(lock.lockedRangeCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void testSharedRangeWaitsForExclusiveRange() throws InterruptedException {
+    RangeLock.Range a = lock.lock(0, 10);
+
+    final CountDownLatch locked = new CountDownLatch(1);
+    Thread thread =
+        new Thread(
+            new Runnable() {
+              @Override
+              public void run() {
+                RangeLock.Range b = lock.lockUninterruptibly(9, 12, true);
+                locked.countDown();
+                lock.unlock(b);
+              }
+            });
+    thread.start();
+    // waiting for a shared range isn't interrupted
+    thread.interrupt();
+
+    assertThat(locked.await(50, TimeUnit.MILLISECONDS)).isFalse();
+    lock.unlock(a);
+    assertThat(locked.await(10, TimeUnit.SECONDS)).isTrue();
+    thread.join();
+  }
+
+  @Test
+  public void testEmptyRangeAndUnlockedRange() throws InterruptedException {
+    try {
+      lock.lock(5, 5);
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+
+    RangeLock.Range range = lock.lock(0, 1);
+    lock.unlock(range);
+    try {
+      lock.unlock(range);
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  @Test
+  public void testRegularFileTryWriteInPlace() throws IOException, InterruptedException {
+    HeapDisk disk =
+        new HeapDisk(
+            Configuration.unix().toBuilder().setBlockSize(4).setConcurrentWrites(true).build());
+    RegularFile file = RegularFile.create(0, disk);
+    file.write(0, new byte[10], 0, 10);
+
+    ByteBuffer[] bufs = {buffer("12"), buffer("345")};
+    assertThat(file.tryWriteInPlace(3, bufs, 0, 2)).isEqualTo(5);
+    byte[] bytes = new byte[10];
+    file.read(0, bytes, 0, 10);
+    assertThat(bytes).isEqualTo(new byte[] {0, 0, 0, 1, 2, 3, 4, 5, 0, 0});
+
+    // writes that would change the size, or that are empty, need the write lock
+    assertThat(file.tryWriteInPlace(8, new ByteBuffer[] {buffer("123")}, 0, 1))
+        .isEqualTo(RegularFile.WRITE_CONFLICT);
+    assertThat(file.tryWriteInPlace(0, new ByteBuffer[0], 0, 0))
+        .isEqualTo(RegularFile.WRITE_CONFLICT);
+
+    // as do writes to blocks shared with another file
+    RegularFile copy = file.copyWithoutContent(1);
+    file.copyContentTo(copy);
+    assertThat(copy.tryWriteInPlace(0, new ByteBuffer[] {buffer("1")}, 0, 1))
+        .isEqualTo(RegularFile.WRITE_CONFLICT);
+
+    // or shared with another file by a transfer
+    RegularFile other = RegularFile.create(2, disk);
+    RegularFile target = RegularFile.create(3, disk);
+    other.write(0, new byte[8], 0, 8);
+    assertThat(other.transferTo(0, 8, target, 0)).isEqualTo(8);
+    assertThat(other.tryWriteInPlace(4, new ByteBuffer[] {buffer("1")}, 0, 1))
+        .isEqualTo(RegularFile.WRITE_CONFLICT);
+
+    // reads and transfers to channels, which lock the ranges they read, still work
+    bytes = new byte[10];
+    assertThat(file.read(0, bytes, 0, 10)).isEqualTo(10);
+    ByteBuffer buf = ByteBuffer.allocate(10);
+    assertThat(file.read(0, new ByteBuffer[] {buf}, 0, 1)).isEqualTo(10);
+    ByteBufferChannel channel = new ByteBufferChannel(10);
+    assertThat(file.transferTo(0, 10, channel)).isEqualTo(10);
+    assertThat(channel.buffer().array()).isEqualTo(new byte[] {0, 0, 0, 1, 2, 3, 4, 5, 0, 0});
+  }
+
+  @Test
+  public void testRegularFileTryWriteInPlace_disabled() throws IOException, InterruptedException {
+    RegularFile file = RegularFile.create(0, new HeapDisk(4, 10, 0));
+    file.write(0, new byte[10], 0, 10);
+    assertThat(file.writesConcurrently()).isFalse();
+    assertThat(file.tryWriteInPlace(0, new ByteBuffer[] {buffer("1")}, 0, 1))
+        .isEqualTo(RegularFile.WRITE_CONFLICT);
+  }
+}
@@ -56,13 +56,13 @@ public class RegularFileBlocksTest {
     file.addBlock(new byte[] {1});
 
     assertThat(file.blockCount()).isEqualTo(1);
-    assertThat(Bytes.asList(file.getBlock(0))).isEqualTo(Bytes.asList(new byte[] {1}));
+    assertThat(Bytes.asList((byte[]) file.getBlock(0))).isEqualTo(Bytes.asList(new byte[] {1}));
     assertThat(file.getBlock(1)).isNull();
 
     file.addBlock(new byte[] {1, 2});
 
     assertThat(file.blockCount()).isEqualTo(2);
-    assertThat(Bytes.asList(file.getBlock(1))).isEqualTo(Bytes.asList(new byte[] {1, 2}));
+    assertThat(Bytes.asList((byte[]) file.getBlock(1))).isEqualTo(Bytes.asList(new byte[] {1, 2}));
     assertThat(file.getBlock(2)).isNull();
   }
 
@@ -130,16 +130,46 @@ public class RegularFileBlocksTest {
     assertThat(other.blockCount()).isEqualTo(3);
 
     assertThat(file.getBlock(0)).isNull();
-    assertThat(Bytes.asList(other.getBlock(0))).isEqualTo(Bytes.asList(new byte[] {1}));
-    assertThat(Bytes.asList(other.getBlock(1))).isEqualTo(Bytes.asList(new byte[] {1, 2}));
-    assertThat(Bytes.asList(other.getBlock(2))).isEqualTo(Bytes.asList(new byte[] {1, 2, 3}));
+    assertThat(Bytes.asList((byte[]) other.getBlock(0))).isEqualTo(Bytes.asList(new byte[] {1}));
+    assertThat(Bytes.asList((byte[]) other.getBlock(1))).isEqualTo(Bytes.asList(new byte[] {1, 2}));
+    assertThat(Bytes.asList((byte[]) other.getBlock(2))).isEqualTo(Bytes.asList(new byte[] {1, 2, 3}));
 
     other.transferBlocksTo(file, 1);
 
     assertThat(file.blockCount()).isEqualTo(1);
     assertThat(other.blockCount()).isEqualTo(2);
     assertThat(other.getBlock(2)).isNull();
-    assertThat(Bytes.asList(file.getBlock(0))).isEqualTo(Bytes.asList(new byte[] {1, 2, 3}));
+    assertThat(Bytes.asList((byte[]) file.getBlock(0))).isEqualTo(Bytes.asList(new byte[] {1, 2, 3}));
     assertThat(file.getBlock(1)).isNull();
   }
+
+  @Test
+  public void testManyBlocks() {
+    int count = BlockTable.CHUNK_SIZE * 3 + 5;
+    for (int i = 0; i < count; i++) {
+      file.addBlock(new byte[] {(byte) i});
+    }
+    assertThat(file.blockCount()).isEqualTo(count);
+    assertThat(file.getBlock(BlockTable.CHUNK_SIZE)).isEqualTo(new byte[] {0});
+    assertThat(file.getBlock(count - 1)).isEqualTo(new byte[] {(byte) (count - 1)});
+
+    // copy to a file whose chunks don't line up with this file's
+    RegularFile other = createFile();
+    other.addBlock(new byte[0]);
+    file.copyBlocksTo(other, count - 1);
+    assertThat(other.blockCount()).isEqualTo(count);
+    for (int i = 1; i < count; i++) {
+      assertThat(other.getBlock(i)).isSameInstanceAs(file.getBlock(i));
+    }
+
+    file.truncateBlocks(3);
+    assertThat(file.blockCount()).isEqualTo(3);
+    assertThat(file.getBlock(3)).isNull();
+    assertThat(file.getBlock(BlockTable.CHUNK_SIZE - 1)).isNull();
+
+    for (int i = 3; i < count; i++) {
+      file.addBlock(other.getBlock(i));
+    }
+    assertThat(file.getBlock(count - 1)).isSameInstanceAs(other.getBlock(count - 1));
+  }
 }
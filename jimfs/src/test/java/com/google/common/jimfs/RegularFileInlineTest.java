@@ -0,0 +1,143 @@
+/*
+ * Copyright 2026 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.jimfs;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link RegularFile} storing small content inline rather than in blocks. */
+@RunWith(JUnit4.class)
+public class RegularFileInlineTest {
+
+  private HeapDisk disk;
+  private RegularFile file;
+
+  @Before
+  public void setUp() {
+    Configuration config =
+        Configuration.unix().toBuilder()
+            .setBlockSize(8)
+            .setMaxSize(16)
+            .setMaxInlineSize(6)
+            .build();
+    disk = new HeapDisk(config);
+    file = RegularFile.create(0, disk);
+  }
+
+  private static byte[] read(RegularFile file) throws IOException {
+    byte[] bytes = new byte[(int) file.size()];
+    file.read(0, bytes, 0, bytes.length);
+    return bytes;
+  }
+
+  @Test
+  public void testSmallFile_storedInline() throws IOException {
+    file.write(0, new byte[] {1, 2, 3}, 0, 3);
+    file.write(3, (byte) 4);
+    file.write(4, ByteBuffer.wrap(new byte[] {5, 6}));
+    file.seal();
+
+    assertThat(file.isInline()).isTrue();
+    assertThat(file.blockCount()).isEqualTo(0);
+    assertThat(disk.getUnallocatedSpace()).isEqualTo(16);
+
+    assertThat(read(file)).isEqualTo(new byte[] {1, 2, 3, 4, 5, 6});
+    assertThat(file.read(5)).isEqualTo(6);
+    assertThat(file.read(6)).isEqualTo(-1);
+    ByteBuffer buf = ByteBuffer.allocate(4);
+    assertThat(file.read(2, buf)).isEqualTo(4);
+    assertThat(buf.array()).isEqualTo(new byte[] {3, 4, 5, 6});
+  }
+
+  @Test
+  public void testWritePastMaxInlineSize_movesContentToBlocks() throws IOException {
+    file.write(0, new byte[] {1, 2, 3, 4}, 0, 4);
+    file.write(4, new byte[] {5, 6, 7, 8, 9}, 0, 5);
+
+    assertThat(file.isInline()).isFalse();
+    assertThat(file.blockCount()).isAtLeast(2);
+    assertThat(read(file)).isEqualTo(new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9});
+
+    // the content stays in blocks even once it would fit inline again
+    file.truncate(2);
+    file.write(0, (byte) 0);
+    assertThat(file.isInline()).isFalse();
+    assertThat(read(file)).isEqualTo(new byte[] {0, 2});
+  }
+
+  @Test
+  public void testWritePastEnd_zeroesGap() throws IOException {
+    file.write(0, new byte[] {1, 2, 3, 4}, 0, 4);
+    file.truncate(1);
+    file.write(3, (byte) 9);
+
+    assertThat(file.isInline()).isTrue();
+    assertThat(read(file)).isEqualTo(new byte[] {1, 0, 0, 9});
+  }
+
+  @Test
+  public void testTransfer() throws IOException {
+    byte[] bytes = {1, 2, 3, 4, 5};
+    assertThat(file.transferFrom(Channels.newChannel(new ByteArrayInputStream(bytes)), 0, 6))
+        .isEqualTo(5);
+    assertThat(file.isInline()).isTrue();
+    assertThat(file.size()).isEqualTo(5);
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    assertThat(file.transferTo(1, 10, Channels.newChannel(out))).isEqualTo(4);
+    assertThat(out.toByteArray()).isEqualTo(new byte[] {2, 3, 4, 5});
+  }
+
+  @Test
+  public void testCopy() throws IOException {
+    file.write(0, new byte[] {1, 2, 3}, 0, 3);
+
+    RegularFile copy = file.copyWithoutContent(1);
+    file.copyContentTo(copy);
+    copy.write(0, (byte) 9);
+
+    assertThat(copy.isInline()).isTrue();
+    assertThat(read(copy)).isEqualTo(new byte[] {9, 2, 3});
+    assertThat(read(file)).isEqualTo(new byte[] {1, 2, 3});
+  }
+
+  @Test
+  public void testMoveToBlocksWhenDiskFull_leavesContentInline() throws IOException {
+    RegularFile other = RegularFile.create(1, disk);
+    other.write(0, new byte[16], 0, 16);
+    file.write(0, new byte[] {1, 2, 3}, 0, 3);
+
+    try {
+      file.write(3, new byte[8], 0, 8);
+      fail();
+    } catch (IOException expected) {
+    }
+
+    assertThat(file.isInline()).isTrue();
+    assertThat(read(file)).isEqualTo(new byte[] {1, 2, 3});
+  }
+}
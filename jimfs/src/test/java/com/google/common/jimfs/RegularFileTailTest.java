@@ -0,0 +1,176 @@
+/*
+ * Copyright 2026 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.jimfs;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link RegularFile} packing its partial last block into a tail. */
+@RunWith(JUnit4.class)
+public class RegularFileTailTest {
+
+  private static final byte[] CONTENT = {1, 2, 3, 4, 5, 6, 7, 8, 9, 10};
+
+  private HeapDisk disk;
+  private RegularFile file;
+
+  @Before
+  public void setUp() {
+    Configuration config =
+        Configuration.unix().toBuilder()
+            .setBlockSize(4)
+            .setMaxSize(16)
+            .setTailPacking(true)
+            .build();
+    disk = new HeapDisk(config);
+    file = RegularFile.create(0, disk);
+  }
+
+  private static byte[] read(RegularFile file) throws IOException {
+    byte[] bytes = new byte[(int) file.size()];
+    file.read(0, bytes, 0, bytes.length);
+    return bytes;
+  }
+
+  @Test
+  public void testSeal_packsTail() throws IOException {
+    file.write(0, CONTENT, 0, CONTENT.length);
+    file.seal();
+
+    assertThat(file.blockCount()).isEqualTo(2);
+    assertThat(file.getTail()).isNotNull();
+    assertThat(disk.packedTailSize()).isEqualTo(2);
+    assertThat(disk.getUnallocatedSpace()).isEqualTo(16 - 2 * 4 - 2);
+
+    assertThat(read(file)).isEqualTo(CONTENT);
+    assertThat(file.read(9)).isEqualTo(10);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    file.transferTo(6, 10, Channels.newChannel(out));
+    assertThat(out.toByteArray()).isEqualTo(new byte[] {7, 8, 9, 10});
+  }
+
+  @Test
+  public void testSeal_fullLastBlock_noTail() throws IOException {
+    file.write(0, CONTENT, 0, 8);
+    file.seal();
+
+    assertThat(file.getTail()).isNull();
+    assertThat(disk.packedTailSize()).isEqualTo(0);
+  }
+
+  @Test
+  public void testWriteWithinFullBlocks_leavesTailPacked() throws IOException {
+    file.write(0, CONTENT, 0, CONTENT.length);
+    file.seal();
+
+    file.write(0, (byte) 0);
+    assertThat(file.getTail()).isNotNull();
+  }
+
+  @Test
+  public void testWritePastFullBlocks_unpacksTail() throws IOException {
+    file.write(0, CONTENT, 0, CONTENT.length);
+    file.seal();
+
+    file.write(9, new byte[] {0, 11}, 0, 2);
+    assertThat(file.getTail()).isNull();
+    assertThat(disk.packedTailSize()).isEqualTo(0);
+    assertThat(read(file)).isEqualTo(new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9, 0, 11});
+
+    file.seal();
+    assertThat(disk.packedTailSize()).isEqualTo(3);
+    assertThat(disk.getUnallocatedSpace()).isEqualTo(16 - 2 * 4 - 3);
+  }
+
+  @Test
+  public void testFullDisk_packAndUnpackUseSpaceReservedForTails() throws IOException {
+    disk =
+        new HeapDisk(
+            Configuration.unix().toBuilder()
+                .setBlockSize(4)
+                .setMaxSize(20)
+                .setTailPacking(true)
+                .build());
+    file = RegularFile.create(0, disk);
+    RegularFile other = RegularFile.create(1, disk);
+    other.write(0, CONTENT, 0, 7);
+    other.seal();
+    file.write(0, CONTENT, 0, CONTENT.length);
+    // all blocks are allocated; only the byte left over in the block reserved for tails is free
+    assertThat(disk.getUnallocatedSpace()).isEqualTo(1);
+
+    // packing the second tail needs more space for tails, which the freed block provides
+    file.seal();
+    assertThat(disk.packedTailSize()).isEqualTo(5);
+    assertThat(disk.getUnallocatedSpace()).isEqualTo(3);
+
+    // unpacking each tail frees up a block of the space reserved for tails for it to use
+    file.write(10, (byte) 11);
+    other.write(7, (byte) 8);
+    assertThat(disk.packedTailSize()).isEqualTo(0);
+    assertThat(disk.getUnallocatedSpace()).isEqualTo(0);
+    assertThat(read(file)).isEqualTo(new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11});
+    assertThat(read(other)).isEqualTo(new byte[] {1, 2, 3, 4, 5, 6, 7, 8});
+
+    try {
+      file.write(12, (byte) 12);
+      fail();
+    } catch (IOException expected) {
+    }
+  }
+
+  @Test
+  public void testTruncate() throws IOException {
+    file.write(0, CONTENT, 0, CONTENT.length);
+    file.seal();
+
+    file.truncate(9);
+    assertThat(file.getTail()).isNotNull();
+    assertThat(disk.packedTailSize()).isEqualTo(1);
+    assertThat(read(file)).isEqualTo(new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9});
+
+    file.truncate(6);
+    assertThat(file.getTail()).isNull();
+    assertThat(disk.packedTailSize()).isEqualTo(0);
+    assertThat(read(file)).isEqualTo(new byte[] {1, 2, 3, 4, 5, 6});
+  }
+
+  @Test
+  public void testCopyAndDelete() throws IOException {
+    file.write(0, CONTENT, 0, CONTENT.length);
+    file.seal();
+
+    RegularFile copy = file.copyWithoutContent(1);
+    file.copyContentTo(copy);
+    assertThat(copy.getTail()).isNotNull();
+    assertThat(disk.packedTailSize()).isEqualTo(4);
+    assertThat(read(copy)).isEqualTo(CONTENT);
+
+    file.deleted();
+    copy.deleted();
+    assertThat(disk.packedTailSize()).isEqualTo(0);
+    assertThat(disk.getUnallocatedSpace()).isEqualTo(16);
+  }
+}
@@ -23,6 +23,7 @@ import static com.google.common.primitives.Bytes.concat;
 import static org.junit.Assert.assertArrayEquals;
 
 import com.google.common.base.Predicate;
+import com.google.common.base.Strings;
 import com.google.common.collect.FluentIterable;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
@@ -54,28 +55,35 @@ public class RegularFileTest {
   public static TestSuite suite() {
     TestSuite suite = new TestSuite();
 
-    for (ReuseStrategy reuseStrategy : EnumSet.allOf(ReuseStrategy.class)) {
-      TestSuite suiteForReuseStrategy = new TestSuite(reuseStrategy.toString());
-      Set<List<Integer>> sizeOptions =
-          Sets.cartesianProduct(ImmutableList.of(BLOCK_SIZES, CACHE_SIZES));
-      for (List<Integer> options : sizeOptions) {
-        int blockSize = options.get(0);
-        int cacheSize = options.get(1);
-        if (cacheSize > 0 && cacheSize < blockSize) {
-          // skip cases where the cache size is not -1 (all) or 0 (none) but it is < blockSize,
-          // because this is equivalent to a cache size of 0
-          continue;
-        }
+    for (BlockStorage storage : EnumSet.allOf(BlockStorage.class)) {
+      TestSuite suiteForStorage = new TestSuite(storage.toString());
+      for (ReuseStrategy reuseStrategy : EnumSet.allOf(ReuseStrategy.class)) {
+        TestSuite suiteForReuseStrategy = new TestSuite(reuseStrategy.toString());
+        Set<List<Integer>> sizeOptions =
+            Sets.cartesianProduct(ImmutableList.of(BLOCK_SIZES, CACHE_SIZES));
+        for (List<Integer> options : sizeOptions) {
+          int blockSize = options.get(0);
+          int cacheSize = options.get(1);
+          if (cacheSize > 0 && cacheSize < blockSize) {
+            // skip cases where the cache size is not -1 (all) or 0 (none) but it is < blockSize,
+            // because this is equivalent to a cache size of 0
+            continue;
+          }
 
-        TestConfiguration state = new TestConfiguration(blockSize, cacheSize, reuseStrategy);
-        TestSuite suiteForTest = new TestSuite(state.toString());
-        for (Method method : TEST_METHODS) {
-          RegularFileTestRunner tester = new RegularFileTestRunner(method.getName(), state);
-          suiteForTest.addTest(tester);
+          for (boolean sparse : new boolean[] {false, true}) {
+            TestConfiguration state =
+                new TestConfiguration(blockSize, cacheSize, reuseStrategy, storage, sparse);
+            TestSuite suiteForTest = new TestSuite(state.toString());
+            for (Method method : TEST_METHODS) {
+              RegularFileTestRunner tester = new RegularFileTestRunner(method.getName(), state);
+              suiteForTest.addTest(tester);
+            }
+            suiteForReuseStrategy.addTest(suiteForTest);
+          }
         }
-        suiteForReuseStrategy.addTest(suiteForTest);
+        suiteForStorage.addTest(suiteForReuseStrategy);
       }
-      suite.addTest(suiteForReuseStrategy);
+      suite.addTest(suiteForStorage);
     }
 
     return suite;
@@ -120,13 +128,22 @@ public class RegularFileTest {
     private final int blockSize;
     private final int cacheSize;
     private final ReuseStrategy reuseStrategy;
+    private final BlockStorage storage;
+    private final boolean sparse;
 
     private HeapDisk disk;
 
-    public TestConfiguration(int blockSize, int cacheSize, ReuseStrategy reuseStrategy) {
+    public TestConfiguration(
+        int blockSize,
+        int cacheSize,
+        ReuseStrategy reuseStrategy,
+        BlockStorage storage,
+        boolean sparse) {
       this.blockSize = blockSize;
       this.cacheSize = cacheSize;
       this.reuseStrategy = reuseStrategy;
+      this.storage = storage;
+      this.sparse = sparse;
 
       if (reuseStrategy != ReuseStrategy.NEW_DISK) {
         this.disk = createDisk();
@@ -135,14 +152,14 @@ public class RegularFileTest {
 
     private HeapDisk createDisk() {
       int maxCachedBlockCount = cacheSize == -1 ? Integer.MAX_VALUE : (cacheSize / blockSize);
-      return new HeapDisk(blockSize, Integer.MAX_VALUE, maxCachedBlockCount);
+      return new HeapDisk(blockSize, Integer.MAX_VALUE, maxCachedBlockCount, storage);
     }
 
     public RegularFile createRegularFile() {
       if (reuseStrategy == ReuseStrategy.NEW_DISK) {
         disk = createDisk();
       }
-      return RegularFile.create(0, disk);
+      return RegularFile.create(0, disk, sparse);
     }
 
     public void tearDown(RegularFile file) {
@@ -164,7 +181,14 @@ public class RegularFileTest {
 
     @Override
     public String toString() {
-      return reuseStrategy + " [" + blockSize + ", " + cacheSize + "]";
+      return storage
+          + (sparse ? " SPARSE " : " ")
+          + reuseStrategy
+          + " ["
+          + blockSize
+          + ", "
+          + cacheSize
+          + "]";
     }
   }
 
@@ -199,30 +223,30 @@ public class RegularFileTest {
       file.write(0, buffer(fill));
     }
 
-    public void testEmpty() {
+    public void testEmpty() throws IOException {
       assertEquals(0, file.size());
       assertContentEquals("", file);
     }
 
-    public void testEmpty_read_singleByte() {
+    public void testEmpty_read_singleByte() throws IOException {
       assertEquals(-1, file.read(0));
       assertEquals(-1, file.read(1));
     }
 
-    public void testEmpty_read_byteArray() {
+    public void testEmpty_read_byteArray() throws IOException {
       byte[] array = new byte[10];
       assertEquals(-1, file.read(0, array, 0, array.length));
       assertArrayEquals(bytes("0000000000"), array);
     }
 
-    public void testEmpty_read_singleBuffer() {
+    public void testEmpty_read_singleBuffer() throws IOException {
       ByteBuffer buffer = ByteBuffer.allocate(10);
       int read = file.read(0, buffer);
       assertEquals(-1, read);
       assertEquals(0, buffer.position());
     }
 
-    public void testEmpty_read_multipleBuffers() {
+    public void testEmpty_read_multipleBuffers() throws IOException {
       ByteBuffer buf1 = ByteBuffer.allocate(5);
       ByteBuffer buf2 = ByteBuffer.allocate(5);
       long read = file.read(0, ImmutableList.of(buf1, buf2));
@@ -841,6 +865,23 @@ public class RegularFileTest {
       assertContentEquals("123456", file);
     }
 
+    public void testNonEmpty_write_farPastEnd_thenIntoGap() throws IOException {
+      fillContent("222222");
+      file.write(40, bytes("111"), 0, 3);
+      file.write(20, (byte) 3);
+      assertContentEquals("222222" + zeros(14) + "3" + zeros(19) + "111", file);
+
+      file.truncate(4);
+      file.write(30, buffer("44"));
+      assertContentEquals("2222" + zeros(26) + "44", file);
+    }
+
+    public void testNonEmpty_transferFrom_farPastEnd() throws IOException {
+      fillContent("222222");
+      file.transferFrom(new ByteBufferChannel(buffer("111")), 40, 3);
+      assertContentEquals("222222" + zeros(34) + "111", file);
+    }
+
     public void testDeletedStoreRemainsUsableWhileOpen() throws IOException {
       byte[] bytes = bytes("1234567890");
       file.write(0, bytes, 0, bytes.length);
@@ -868,6 +909,10 @@ public class RegularFileTest {
       // deleted and completely closed
     }
 
+    private static String zeros(int count) {
+      return Strings.repeat("0", count);
+    }
+
     private static void assertBufferEquals(String expected, ByteBuffer actual) {
       assertEquals(expected.length(), actual.capacity());
       assertArrayEquals(bytes(expected), actual.array());
@@ -878,11 +923,11 @@ public class RegularFileTest {
       assertEquals(remaining, actual.remaining());
     }
 
-    private static void assertContentEquals(String expected, RegularFile actual) {
+    private static void assertContentEquals(String expected, RegularFile actual) throws IOException {
       assertContentEquals(bytes(expected), actual);
     }
 
-    protected static void assertContentEquals(byte[] expected, RegularFile actual) {
+    protected static void assertContentEquals(byte[] expected, RegularFile actual) throws IOException {
       assertEquals(expected.length, actual.sizeWithoutLocking());
       byte[] actualBytes = new byte[(int) actual.sizeWithoutLocking()];
       actual.read(0, ByteBuffer.wrap(actualBytes));